@@ -0,0 +1,98 @@
+package org.voltdb.simbox.bench;
+
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.voltdb.types.TimestampType;
+
+import simbox.CellHistoryWrangler;
+
+/**
+ * CellHistoryWrangler's functions, which run for every ReportCellChange, on
+ * histories of different lengths.
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class CellHistoryBenchmark {
+
+    /**
+     * How many moves are in the history. 12 is the most we keep.
+     */
+    @Param({ "1", "3", "6", "12" })
+    public int historyLength;
+
+    private CellHistoryWrangler wrangler;
+    private TimestampType eventTime;
+    private byte[] history;
+
+    @Setup
+    public void setup() {
+
+        wrangler = new CellHistoryWrangler();
+        eventTime = new TimestampType(System.currentTimeMillis() * 1000);
+        history = null;
+
+        for (int i = 0; i < historyLength; i++) {
+            history = wrangler.addNewCell(history, i, eventTime);
+        }
+    }
+
+    @Benchmark
+    public byte[] addNewCell() {
+        return wrangler.addNewCell(history, 42, eventTime);
+    }
+
+    @Benchmark
+    public long getLast3Hash() {
+        return wrangler.getLastNHash(history, 3);
+    }
+
+    @Benchmark
+    public long getLast6Hash() {
+        return wrangler.getLastNHash(history, 6);
+    }
+
+    @Benchmark
+    public long getLshBand() {
+        return wrangler.getLshBand(history, 1);
+    }
+
+}
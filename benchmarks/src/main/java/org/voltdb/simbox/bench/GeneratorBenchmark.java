@@ -0,0 +1,137 @@
+package org.voltdb.simbox.bench;
+
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.voltdb.simbox.CountingEventSink;
+import org.voltdb.simbox.DeviceStore;
+import org.voltdb.simbox.Simbox;
+import org.voltdb.simbox.UnthrottledRateController;
+import org.voltdb.simbox.UserDevice;
+
+/**
+ * The generator's per-call hot paths: picking a number to call, and routing a
+ * call through the simbox, for different simbox sizes.
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class GeneratorBenchmark {
+
+    /**
+     * How many devices aren't in the simbox
+     */
+    private static final int DEVICE_COUNT = 10000;
+
+    /**
+     * How many sims are in the simbox. 128 is what a real one holds.
+     */
+    @Param({ "16", "128", "1024" })
+    public int simCount;
+
+    /**
+     * How many sims are tied up in calls that won't end during the run
+     */
+    @Param({ "0", "90" })
+    public int busyPct;
+
+    private Simbox simbox;
+    private UserDevice[] devices;
+    private SplittableRandom r;
+    private CountingEventSink sink;
+    private UnthrottledRateController rc;
+    private int next;
+
+    @Setup
+    public void setup() {
+
+        DeviceStore store = new DeviceStore(0, simCount + DEVICE_COUNT);
+
+        simbox = new Simbox(0);
+        simbox.setRandom(new SplittableRandom(1));
+
+        for (int i = 0; i < simCount; i++) {
+
+            UserDevice sim = store.createDevice(i, 0);
+            simbox.addSim(sim);
+
+            if (i < (simCount * busyPct) / 100) {
+                sim.areBusyUntil(Long.MAX_VALUE);
+            }
+        }
+
+        devices = new UserDevice[DEVICE_COUNT];
+        r = new SplittableRandom(0);
+
+        for (int i = 0; i < devices.length; i++) {
+            devices[i] = store.createDevice(simCount + i, 0);
+        }
+
+        // Fill up popular number lists, as they would be after warm up
+        for (int i = 0; i < devices.length; i++) {
+            for (int j = 0; j < DeviceStore.POPULAR_NUMBER_LIST_SIZE; j++) {
+                devices[i].getNextNumberToCall(simbox, r, simCount + DEVICE_COUNT);
+            }
+        }
+
+        sink = new CountingEventSink();
+        rc = new UnthrottledRateController();
+    }
+
+    @Benchmark
+    public long getNextNumberToCall() {
+        next = (next + 1) % DEVICE_COUNT;
+        return devices[next].getNextNumberToCall(simbox, r, simCount + DEVICE_COUNT);
+    }
+
+    /**
+     * Route a zero length call, which finds an idle sim using
+     * Simbox.getUnusedDevice. A sim stays busy for the rest of the millisecond
+     * it was used in, so some calls find every sim busy, as they do in a
+     * busy simbox.
+     */
+    @Benchmark
+    public boolean routeInternationalCall() throws Exception {
+        next = (next + 1) % DEVICE_COUNT;
+        return simbox.routeInternationalCall(devices[next], sink, rc, 0);
+    }
+
+}
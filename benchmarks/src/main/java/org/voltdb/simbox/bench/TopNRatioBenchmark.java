@@ -0,0 +1,106 @@
+package org.voltdb.simbox.bench;
+
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.voltdb.VoltTable;
+
+import simbox.CalleeSummary;
+
+/**
+ * What ReportDeviceActivity does to find the ratio between calls to a
+ * device's top and bottom N numbers: merge a day of per-bucket callee
+ * summaries and turn the result into the table getTopNRatio reads.
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class TopNRatioBenchmark {
+
+    /**
+     * 24 hours of 10 minute buckets
+     */
+    private static final int BUCKET_COUNT = 144;
+
+    /**
+     * Calls made per bucket
+     */
+    private static final int CALLS_PER_BUCKET = 20;
+
+    /**
+     * How many different numbers the device calls
+     */
+    @Param({ "20", "200", "2000" })
+    public int calledNumbers;
+
+    private byte[][] buckets;
+
+    @Setup
+    public void setup() {
+
+        SplittableRandom r = new SplittableRandom(0);
+        buckets = new byte[BUCKET_COUNT][];
+
+        for (int i = 0; i < buckets.length; i++) {
+
+            CalleeSummary summary = new CalleeSummary();
+
+            for (int j = 0; j < CALLS_PER_BUCKET; j++) {
+                summary.add(r.nextInt(calledNumbers));
+            }
+
+            buckets[i] = summary.toBytes();
+        }
+    }
+
+    @Benchmark
+    public VoltTable mergeSummaries() {
+
+        CalleeSummary merged = new CalleeSummary();
+
+        for (int i = 0; i < buckets.length; i++) {
+            merged.merge(CalleeSummary.fromBytes(buckets[i]));
+        }
+
+        return merged.toVoltTable();
+    }
+
+}
@@ -4,9 +4,13 @@ load classes ../jars/voltdb-simbox.jar;
 
 file -inlinebatch END_OF_BATCH
 
-CREATE FUNCTION add_new_cell FROM METHOD simbox.CellHistoryAsStringWrangler.addNewCell;
+CREATE FUNCTION add_new_cell FROM METHOD simbox.CellHistoryWrangler.addNewCell;
 
-CREATE FUNCTION get_last_n_cells FROM METHOD simbox.CellHistoryAsStringWrangler.getLastN;
+CREATE FUNCTION get_last_n_cells_hash FROM METHOD simbox.CellHistoryWrangler.getLastNHash;
+
+CREATE FUNCTION get_lsh_band FROM METHOD simbox.CellHistoryWrangler.getLshBand;
+
+CREATE FUNCTION format_cell_history FROM METHOD simbox.CellHistoryWrangler.formatHistory;
 
 --
 -- Various parameters used to control system behavior
@@ -15,32 +19,82 @@ CREATE TABLE simbox_parameters
 (parameter_name varchar(50) not null primary key
 ,parameter_value bigint not null);
 
+--
+-- Incremented by UpdateParameter, so procedures that cache parameters know
+-- when to reload them. Procedures only reload when this changes, so always
+-- change parameters with UpdateParameter, or increment this in the same
+-- transaction. Changes made any other way are ignored until the next one
+-- that does.
+--
+CREATE TABLE simbox_parameters_version
+(version_id tinyint not null primary key
+,parameter_version bigint not null);
+
 CREATE TABLE simbox_stats
-(stat_name varchar(80) not null primary key
-,stat_value bigint not null);
+(publisher_id bigint not null
+,stat_name varchar(80) not null
+,stat_value bigint not null
+,primary key (publisher_id, stat_name));
+
+PARTITION TABLE simbox_stats ON COLUMN publisher_id;
 
 CREATE table cell_table
 (cell_id bigint not null primary key);
 
-CREATE table cell_suspicious_cohorts
-(cell_id bigint not null
-,event_date timestamp not null
-,primary key (cell_id, event_date));
-
+--
+-- Partitioned so ReportCellChange can record cohorts as they form.
+-- detection_level is 3 for an early warning based on the last 3 moves, 
+-- 6 for a cohort confirmed using the last 6 moves and 12 for a cohort 
+-- whose last 12 moves are similar but not identical.
+--
 CREATE table cell_suspicious_cohort_members
 (cell_id bigint not null
 ,event_date timestamp not null
 ,device_id bigint not null not null
-,primary key (cell_id, event_date,device_id));
+,detection_level tinyint default 6 not null
+,primary key (cell_id, event_date,device_id,detection_level));
+
+PARTITION TABLE cell_suspicious_cohort_members ON COLUMN device_id;
+
+CREATE VIEW cell_suspicious_cohorts AS
+SELECT cell_id, event_date, detection_level, count(*) how_many
+FROM cell_suspicious_cohort_members
+GROUP BY cell_id, event_date, detection_level;
 
 CREATE INDEX cscm_ix1 ON cell_suspicious_cohort_members
 (device_id,event_date);
 
+--
+-- Devices in a group that mostly call each other, as found by 
+-- CallGraphAnalyzer. density_pct is how many of the possible calling 
+-- pairs in the community actually called each other.
+--
+CREATE table call_graph_community_members
+(community_id bigint not null
+,event_date timestamp not null
+,device_id bigint not null
+,community_size int not null
+,density_pct int not null
+,primary key (community_id, event_date, device_id))
+USING TTL 25 HOURS ON COLUMN event_date;
+
+PARTITION TABLE call_graph_community_members ON COLUMN device_id;
+
+CREATE INDEX cgcm_ix1 ON call_graph_community_members
+(device_id,event_date);
+
+CREATE INDEX cgcm_ix2 ON call_graph_community_members
+(event_date);
+
+--
+-- Only confirmed and fuzzy cohorts make a device suspicious
+--
 CREATE view suspicious_devices_view AS
 SELECT device_id, min(event_date) min_event_date
 , max(event_date) max_event_date
 , count(*) how_many 
 from cell_suspicious_cohort_members
+WHERE detection_level >= 6
 GROUP BY device_id;
 
 
@@ -49,21 +103,33 @@ CREATE table device_table
 ,current_cell_id bigint 
 ,first_seen timestamp not null
 ,last_seen timestamp not null
-,cell_history_as_string varchar(120) not null
-,cell_history_as_string_last3 varchar(120) not null
-,cell_history_as_string_last6 varchar(120) not null
+,cell_history varbinary(60) not null
+,cell_history_last3_hash bigint not null
+,cell_history_last6_hash bigint not null
+,lsh_band_1 bigint default 0 not null
+,lsh_band_2 bigint default 0 not null
+,lsh_band_3 bigint default 0 not null
+,lsh_band_4 bigint default 0 not null
 ,suspicious_because varchar(120)
 ,suspicious_value bigint
 );
 
 PARTITION TABLE device_table ON COLUMN device_id;
 
-CREATE INDEX dt_ix1 ON device_table (cell_history_as_string_last3,device_id);
+CREATE INDEX dt_ix1 ON device_table (cell_history_last3_hash,device_id);
 
-CREATE INDEX dt_ix2 ON device_table (cell_history_as_string_last6, device_id);
+CREATE INDEX dt_ix2 ON device_table (cell_history_last6_hash, device_id);
 
 CREATE INDEX dt_ix3 ON device_table (suspicious_because, device_id);
 
+CREATE INDEX dt_ix4 ON device_table (lsh_band_1, device_id);
+
+CREATE INDEX dt_ix5 ON device_table (lsh_band_2, device_id);
+
+CREATE INDEX dt_ix6 ON device_table (lsh_band_3, device_id);
+
+CREATE INDEX dt_ix7 ON device_table (lsh_band_4, device_id);
+
 CREATE VIEW suspicious_totals_view AS
 SELECT suspicious_because, count(*) how_many
 FROM device_table
@@ -71,22 +137,63 @@ WHERE suspicious_because IS NOT NULL
 GROUP BY suspicious_because;
 
 CREATE VIEW last_3_cells AS
-SELECT cell_history_as_string_last3
+SELECT cell_history_last3_hash
      , count(*) how_many
 FROM device_table
-GROUP BY cell_history_as_string_last3;
+GROUP BY cell_history_last3_hash;
 
 CREATE INDEX l3c_ix1 ON last_3_cells (how_many) 
 ;
      
 CREATE VIEW last_6_cells AS
-SELECT cell_history_as_string_last6
+SELECT cell_history_last6_hash
      , count(*) how_many
 FROM device_table
-GROUP BY cell_history_as_string_last6;
+GROUP BY cell_history_last6_hash;
 
 CREATE INDEX l6c_ix1 ON last_6_cells (how_many) ;
 
+--
+-- How many devices share each LSH band of their cell move MinHash 
+-- signature. Devices with similar cell moves are likely to share at least 
+-- one band.
+--
+CREATE VIEW lsh_band_1_cells AS
+SELECT lsh_band_1
+     , count(*) how_many
+FROM device_table
+WHERE lsh_band_1 <> 0
+GROUP BY lsh_band_1;
+
+CREATE INDEX lb1c_ix1 ON lsh_band_1_cells (how_many);
+
+CREATE VIEW lsh_band_2_cells AS
+SELECT lsh_band_2
+     , count(*) how_many
+FROM device_table
+WHERE lsh_band_2 <> 0
+GROUP BY lsh_band_2;
+
+CREATE INDEX lb2c_ix1 ON lsh_band_2_cells (how_many);
+
+CREATE VIEW lsh_band_3_cells AS
+SELECT lsh_band_3
+     , count(*) how_many
+FROM device_table
+WHERE lsh_band_3 <> 0
+GROUP BY lsh_band_3;
+
+CREATE INDEX lb3c_ix1 ON lsh_band_3_cells (how_many);
+
+CREATE VIEW lsh_band_4_cells AS
+SELECT lsh_band_4
+     , count(*) how_many
+FROM device_table
+WHERE lsh_band_4 <> 0
+GROUP BY lsh_band_4;
+
+CREATE INDEX lb4c_ix1 ON lsh_band_4_cells (how_many);
+
 CREATE table device_cell_history
 (device_id bigint not null 
 ,current_cell_id bigint 
@@ -104,6 +211,8 @@ PARTITION TABLE device_cell_history ON COLUMN device_id;
 
 CREATE INDEX dch_ix1 ON device_cell_history (device_id, to_timestamp);
 
+CREATE INDEX dch_ix2 ON device_cell_history (to_timestamp, device_id, from_timestamp);
+
 CREATE table device_incoming_call_history
 (device_id bigint not null 
 ,other_number  bigint not null 
@@ -117,6 +226,32 @@ CREATE table device_incoming_call_history
 
 PARTITION TABLE device_incoming_call_history ON COLUMN device_id;
 
+CREATE INDEX dich_ix1 ON device_incoming_call_history (start_time, device_id);
+
+--
+-- Call totals for each device, in 10 minute buckets by call start time.
+-- Maintained by ReportDeviceActivity so it can score a device by reading a
+-- fixed number of rows.
+--
+CREATE table device_call_buckets
+(device_id bigint not null 
+,bucket_start timestamp not null
+,incoming_call_count bigint default 0 not null
+,incoming_call_duration bigint default 0 not null
+,first_incoming_start timestamp
+,last_incoming_end timestamp
+,outgoing_call_count bigint default 0 not null
+,outgoing_call_duration bigint default 0 not null
+,first_outgoing_start timestamp
+,last_outgoing_end timestamp
+,callee_summary varbinary(514)
+,primary key (device_id,bucket_start)
+);
+
+PARTITION TABLE device_call_buckets ON COLUMN device_id;
+
+CREATE INDEX dcb_ix1 ON device_call_buckets (bucket_start, device_id);
+
 
 
 CREATE table device_outgoing_call_history
@@ -132,27 +267,108 @@ CREATE table device_outgoing_call_history
 
 PARTITION TABLE device_outgoing_call_history ON COLUMN device_id;
 
+CREATE INDEX doch_ix1 ON device_outgoing_call_history (start_time, device_id);
+
+--
+-- Where PurgeHistory sends expired history if ARCHIVE_EXPIRED_HISTORY is 1.
+-- Rows go nowhere unless the history_archive export target is configured.
+-- See scripts/deployment_export_example.xml.
+--
+CREATE STREAM call_history_archive 
+PARTITION ON COLUMN device_id
+EXPORT TO TARGET history_archive
+(device_id bigint not null 
+,in_or_out varchar(1) not null
+,other_number  bigint not null 
+,cell_id bigint not null
+,start_time timestamp not null
+,end_time timestamp not null
+,duration int not null
+,status_code varchar(1) not null
+);
+
+CREATE STREAM cell_history_archive 
+PARTITION ON COLUMN device_id
+EXPORT TO TARGET history_archive
+(device_id bigint not null 
+,current_cell_id bigint 
+,from_timestamp timestamp not null
+,to_timestamp timestamp not null
+,incoming_call_count bigint not null
+,outgoing_call_count bigint not null
+,incoming_call_duration bigint not null
+,outgoing_call_duration bigint not null
+,suspicious_because varchar(120)
+);
+
+--
+-- One row each time a device's suspicious_because changes, or a device 
+-- joins a cell cohort at a detection level for the first time. Rows go 
+-- nowhere unless the suspicion_alerts export target is configured. See 
+-- scripts/deployment_export_example.xml.
+--
+CREATE STREAM suspicion_alerts 
+PARTITION ON COLUMN device_id
+EXPORT TO TARGET suspicion_alerts
+(device_id bigint not null 
+,event_date timestamp not null
+,alert_source varchar(20) not null
+,old_suspicious_because varchar(120)
+,new_suspicious_because varchar(120)
+,suspicious_value bigint
+,cell_id bigint
+,detection_level tinyint
+);
+
 
 
 CREATE PROCEDURE 
    PARTITION ON TABLE device_table COLUMN device_id
    FROM CLASS simbox.ReportCellChange;  
    
+CREATE PROCEDURE 
+   PARTITION ON TABLE device_table COLUMN device_id PARAMETER 0
+   FROM CLASS simbox.ReportCellChangeBatch;  
+   
 CREATE PROCEDURE 
    PARTITION ON TABLE device_table COLUMN device_id
    FROM CLASS simbox.RegisterDevice;  
    
+CREATE PROCEDURE 
+   PARTITION ON TABLE device_table COLUMN device_id PARAMETER 0
+   FROM CLASS simbox.RegisterDevicesBatch;  
+   
     
 CREATE PROCEDURE 
    PARTITION ON TABLE device_table COLUMN device_id
    FROM CLASS simbox.ReportDeviceActivity;       
    
+CREATE PROCEDURE 
+   PARTITION ON TABLE device_table COLUMN device_id PARAMETER 0
+   FROM CLASS simbox.ReportDeviceActivityBatch;       
+   
 CREATE PROCEDURE 
    PARTITION ON TABLE device_table COLUMN device_id
    FROM CLASS simbox.GetDevice;
    
 CREATE PROCEDURE 
+   DIRECTED
    FROM CLASS simbox.NoteSuspiciousCohort;       
+
+CREATE PROCEDURE 
+   DIRECTED
+   FROM CLASS simbox.PurgeHistory;
+
+--
+-- Purge old history in every partition 5 times a second. Each run deletes
+-- up to PURGE_BATCH_SIZE * PURGE_MAX_ROUNDS rows of each kind, so with the
+-- defaults a partition can purge 25000 rows of each kind a second.
+--
+CREATE TASK purge_history 
+ON SCHEDULE EVERY 200 MILLISECONDS
+PROCEDURE PurgeHistory 
+ON ERROR LOG
+RUN ON PARTITIONS;
    
 create procedure getSimboxDeviceStatus as 
 select suspicious_because
@@ -167,13 +383,34 @@ select suspicious_because, how_many
 from suspicious_totals_view
 order by how_many desc;
 
-create procedure clearStats AS
-UPDATE simbox_stats SET stat_value = 0;
+CREATE PROCEDURE UpdateParameter AS
+BEGIN
+UPSERT INTO simbox_parameters (parameter_name,parameter_value) VALUES (?,?);
+UPDATE simbox_parameters_version SET parameter_version = parameter_version + 1;
+END;
+
+CREATE PROCEDURE 
+   PARTITION ON TABLE simbox_stats COLUMN publisher_id
+   FROM CLASS simbox.PublishStats;
+
+--
+-- How many rows of each kind of history in a partition are older than the
+-- cutoff, and so waiting to be purged. Pass the same cutoff 4 times.
+--
+CREATE PROCEDURE GetPurgeBacklog
+DIRECTED
+AS
+BEGIN
+SELECT count(*) how_many FROM device_incoming_call_history WHERE start_time < ?;
+SELECT count(*) how_many FROM device_outgoing_call_history WHERE start_time < ?;
+SELECT count(*) how_many FROM device_cell_history WHERE to_timestamp < ?;
+SELECT count(*) how_many FROM device_call_buckets WHERE bucket_start < ?;
+END;
 
 CREATE procedure GetPartition6CellRuns 
 DIRECTED 
 AS
-select cell_history_as_string_last6
+select cell_history_last6_hash
      , how_many  
 from last_6_cells
 order by how_many desc limit 3;
@@ -181,10 +418,50 @@ order by how_many desc limit 3;
 CREATE procedure GetPartition3CellRuns 
 DIRECTED 
 AS
-select cell_history_as_string_last3
+select cell_history_last3_hash
      , how_many  
 from last_3_cells
-order by how_many desc limit 1;
+order by how_many desc limit 3;
+
+CREATE PROCEDURE GetPartitionLshBuckets
+DIRECTED
+AS
+BEGIN
+select lsh_band_1 lsh_band
+     , how_many  
+from lsh_band_1_cells
+order by how_many desc limit 3;
+select lsh_band_2 lsh_band
+     , how_many  
+from lsh_band_2_cells
+order by how_many desc limit 3;
+select lsh_band_3 lsh_band
+     , how_many  
+from lsh_band_3_cells
+order by how_many desc limit 3;
+select lsh_band_4 lsh_band
+     , how_many  
+from lsh_band_4_cells
+order by how_many desc limit 3;
+END;
+
+CREATE procedure GetPartitionCallEdges
+DIRECTED
+AS
+select device_id
+     , other_number
+     , count(*) how_many
+from device_outgoing_call_history
+where device_id >= ?
+and   device_id < ?
+group by device_id, other_number;
+
+CREATE PROCEDURE NoteCallGraphCommunityMember
+PARTITION ON TABLE call_graph_community_members COLUMN device_id PARAMETER 2
+AS
+UPSERT INTO call_graph_community_members 
+(community_id, event_date, device_id, community_size, density_pct) 
+VALUES (?,?,?,?,?);
 
 CREATE PROCEDURE ShowSimboxActivity__promBL AS
 BEGIN
@@ -196,8 +473,10 @@ from simbox_parameters order by parameter_name;
 --
 select 'simbox_stats_'||stat_name statname
      ,  'simbox_stats_'||stat_name stathelp  
-     , stat_value statvalue 
-from simbox_stats order by stat_name;
+     , sum(stat_value) statvalue 
+from simbox_stats 
+group by stat_name
+order by stat_name;
 --
 END;
 
@@ -207,8 +486,14 @@ END_OF_BATCH
 
 
 --
--- These parameters can be changed while the system is running
+-- These parameters can be changed while the system is running, using
+-- UpdateParameter
 --
+upsert into simbox_parameters_version
+(version_id,parameter_version)
+VALUES
+(0,0);
+
 upsert into simbox_parameters
 (parameter_name,parameter_value)
 VALUES
@@ -250,22 +535,85 @@ VALUES
 ('SIMBOX_CALLS_ITSELF',0);
 
 --
--- We create values for all stats so prometheus works properly...
+-- If more than 0, and ENABLE_SUSPICOUS_COHORT_DETECTION is 1, 
+-- ReportCellChange records a cohort as soon as this many devices in a 
+-- partition share the same last 6 moves, and the generator polls for 
+-- cohorts every 5 minutes instead of every minute.
+-- The threshold is per partition: a cohort spread evenly across P 
+-- partitions only has about 1/P of its devices in each, so size it as 
+-- roughly the cohort size you want to catch divided by the partition 
+-- count. The generator's poll looks across all partitions and catches 
+-- what this misses.
+--
+upsert into simbox_parameters
+(parameter_name,parameter_value)
+VALUES
+('PARTITION_COHORT_DETECTION_SIZE',0);
+
+--
+-- How many devices in a partition must share their last 3 moves before 
+-- ReportCellChange issues an early warning and looks at their last 6 moves. 
+-- Like PARTITION_COHORT_DETECTION_SIZE this is per partition. 
+-- Must not be more than PARTITION_COHORT_DETECTION_SIZE. 0 means the same 
+-- as PARTITION_COHORT_DETECTION_SIZE.
+--
+upsert into simbox_parameters
+(parameter_name,parameter_value)
+VALUES
+('PARTITION_COHORT_WARNING_SIZE',0);
+
+--
+-- If 1, and ENABLE_SUSPICOUS_COHORT_DETECTION is 1, the generator looks for 
+-- cohorts whose moves are similar but not identical
+--
+upsert into simbox_parameters
+(parameter_name,parameter_value)
+VALUES
+('ENABLE_FUZZY_COHORT_DETECTION',0);
+
+--
+-- How long we keep call and cell history, how many rows of each kind 
+-- PurgeHistory deletes per round, how many rounds it does per run while 
+-- there's a backlog, and whether it sends rows to call_history_archive and 
+-- cell_history_archive first. 
 --
+upsert into simbox_parameters
+(parameter_name,parameter_value)
+VALUES
+('HISTORY_RETENTION_HOURS',25);
+
+upsert into simbox_parameters
+(parameter_name,parameter_value)
+VALUES
+('PURGE_BATCH_SIZE',500);
+
+upsert into simbox_parameters
+(parameter_name,parameter_value)
+VALUES
+('PURGE_MAX_ROUNDS',10);
+
+upsert into simbox_parameters
+(parameter_name,parameter_value)
+VALUES
+('ARCHIVE_EXPIRED_HISTORY',0);
 
-UPSERT INTO simbox_stats VALUES ('simboxstatus_not_suspected',0);
-UPSERT INTO simbox_stats VALUES ('simboxstatus_some_incoming_calls_from_known_bad_numbers',0);
-UPSERT INTO simbox_stats VALUES ('simboxstatus_suspicious_device_has_no_incoming_calls',0);
-UPSERT INTO simbox_stats VALUES ('simboxstatus_suspiciously_moving_device',0);
-UPSERT INTO simbox_stats VALUES ('simboxstatus_total_incoming_outgoing_ratio_bad',0);
-UPSERT INTO simbox_stats VALUES ('simboxstatus_topn_incoming_outgoing_ratio_bad',0);
+--
+-- We create values for all stats so prometheus works properly...
+--
 
-UPSERT INTO simbox_stats VALUES ('suspicious_because_some_incoming_calls_from_known_bad_numbers',0);
-UPSERT INTO simbox_stats VALUES ('suspicious_because_suspicious_device_has_no_incoming_calls',0);
-UPSERT INTO simbox_stats VALUES ('suspicious_because_suspiciously_moving_device',0);
-UPSERT INTO simbox_stats VALUES ('suspicious_because_all_incoming_calls_from_known_bad_numbers',0);
-UPSERT INTO simbox_stats VALUES ('suspicious_because_total_incoming_outgoing_ratio_bad',0);
-UPSERT INTO simbox_stats VALUES ('suspicious_because_topn_incoming_outgoing_ratio_bad',0);                                                                                                          
+UPSERT INTO simbox_stats VALUES (0,'simboxstatus_not_suspected',0);
+UPSERT INTO simbox_stats VALUES (0,'simboxstatus_some_incoming_calls_from_known_bad_numbers',0);
+UPSERT INTO simbox_stats VALUES (0,'simboxstatus_suspicious_device_has_no_incoming_calls',0);
+UPSERT INTO simbox_stats VALUES (0,'simboxstatus_suspiciously_moving_device',0);
+UPSERT INTO simbox_stats VALUES (0,'simboxstatus_total_incoming_outgoing_ratio_bad',0);
+UPSERT INTO simbox_stats VALUES (0,'simboxstatus_topn_incoming_outgoing_ratio_bad',0);
+
+UPSERT INTO simbox_stats VALUES (0,'suspicious_because_some_incoming_calls_from_known_bad_numbers',0);
+UPSERT INTO simbox_stats VALUES (0,'suspicious_because_suspicious_device_has_no_incoming_calls',0);
+UPSERT INTO simbox_stats VALUES (0,'suspicious_because_suspiciously_moving_device',0);
+UPSERT INTO simbox_stats VALUES (0,'suspicious_because_all_incoming_calls_from_known_bad_numbers',0);
+UPSERT INTO simbox_stats VALUES (0,'suspicious_because_total_incoming_outgoing_ratio_bad',0);
+UPSERT INTO simbox_stats VALUES (0,'suspicious_because_topn_incoming_outgoing_ratio_bad',0);                                                                                                          
 
 
 
@@ -1,7 +1,10 @@
-upsert into simbox_parameters
-(parameter_name,parameter_value)
-VALUES
-('ENABLE_SUSPICOUS_COHORT_DETECTION',1);
-
-
-
+exec UpdateParameter ENABLE_SUSPICOUS_COHORT_DETECTION 1;
+--
+-- These thresholds are per partition. They suit a simbox of 60 sims spread 
+-- over about 6 partitions; for other setups use roughly the cohort size 
+-- divided by the partition count. The generator still polls for cohorts 
+-- across all partitions every few minutes.
+--
+exec UpdateParameter PARTITION_COHORT_DETECTION_SIZE 10;
+exec UpdateParameter PARTITION_COHORT_WARNING_SIZE 5;
+exec UpdateParameter ENABLE_FUZZY_COHORT_DETECTION 1;
@@ -1,4 +1 @@
-upsert into simbox_parameters
-(parameter_name,parameter_value)
-VALUES
-('SIMBOX_CALLS_ITSELF',1);
+exec UpdateParameter SIMBOX_CALLS_ITSELF 1;
@@ -1,31 +1,55 @@
+DROP TASK purge_history IF EXISTS;
+
 DROP PROCEDURE ReportCellChange IF EXISTS;  
+DROP PROCEDURE ReportCellChangeBatch IF EXISTS;  
 DROP PROCEDURE RegisterDevice IF EXISTS;  
+DROP PROCEDURE RegisterDevicesBatch IF EXISTS;  
 DROP PROCEDURE ReportDeviceActivity IF EXISTS;       
+DROP PROCEDURE ReportDeviceActivityBatch IF EXISTS;       
 DROP PROCEDURE NoteSuspiciousCohort IF EXISTS;       
 DROP PROCEDURE getSimboxDeviceStatus IF EXISTS;
 DROP PROCEDURE ShowSimboxActivity__promBL IF EXISTS;
 DROP PROCEDURE getSuspectedDeviceSummary IF EXISTS;
-DROP PROCEDURE clearStats IF EXISTS;
+DROP PROCEDURE UpdateParameter IF EXISTS;
+DROP PROCEDURE PublishStats IF EXISTS;
 DROP PROCEDURE GetDevice IF EXISTS;
 DROP PROCEDURE GetPartition6CellRuns IF EXISTS;
 DROP PROCEDURE GetPartition3CellRuns IF EXISTS;
+DROP PROCEDURE PurgeHistory IF EXISTS;
+DROP PROCEDURE GetPurgeBacklog IF EXISTS;
+DROP PROCEDURE GetPartitionLshBuckets IF EXISTS;
+DROP PROCEDURE GetPartitionCallEdges IF EXISTS;
+DROP PROCEDURE NoteCallGraphCommunityMember IF EXISTS;
 
 DROP view suspicious_devices_view IF EXISTS;
 DROP VIEW suspicious_totals_view  IF EXISTS;
+DROP VIEW cell_suspicious_cohorts  IF EXISTS;
 DROP VIEW last_3_cells  IF EXISTS;
 DROP VIEW last_6_cells  IF EXISTS;
+DROP VIEW lsh_band_1_cells  IF EXISTS;
+DROP VIEW lsh_band_2_cells  IF EXISTS;
+DROP VIEW lsh_band_3_cells  IF EXISTS;
+DROP VIEW lsh_band_4_cells  IF EXISTS;
 
 DROP TABLE simbox_parameters  IF EXISTS;
+DROP TABLE simbox_parameters_version  IF EXISTS;
 DROP TABLE simbox_stats IF EXISTS;
 DROP table cell_table IF EXISTS;
-DROP table cell_suspicious_cohorts IF EXISTS;
 DROP table cell_suspicious_cohort_members IF EXISTS;
+DROP table call_graph_community_members IF EXISTS;
 DROP table device_table IF EXISTS;
 DROP table device_cell_history IF EXISTS;
 DROP table device_incoming_call_history IF EXISTS;
 DROP table device_outgoing_call_history IF EXISTS;
+DROP table device_call_buckets IF EXISTS;
+DROP STREAM call_history_archive IF EXISTS;
+DROP STREAM cell_history_archive IF EXISTS;
+DROP STREAM suspicion_alerts IF EXISTS;
 
 DROP FUNCTION add_new_cell  IF EXISTS;
 DROP FUNCTION get_last_n_cells  IF EXISTS;
+DROP FUNCTION get_last_n_cells_hash  IF EXISTS;
+DROP FUNCTION get_lsh_band  IF EXISTS;
+DROP FUNCTION format_cell_history  IF EXISTS;
 
 
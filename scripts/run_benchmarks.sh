@@ -0,0 +1,12 @@
+#!/bin/sh
+
+# Build the JMH benchmarks in benchmarks/ with Maven and run them. Any
+# arguments are passed to JMH, e.g.
+#   ./run_benchmarks.sh CellHistory -p historyLength=12
+# Run with -h to see JMH's options.
+
+cd `dirname $0`/..
+
+mvn -B -q -DskipTests package || exit 1
+
+java -jar benchmarks/target/benchmarks.jar -prof gc "$@"
@@ -0,0 +1,159 @@
+package simbox;
+
+
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+import org.voltdb.SQLStmt;
+import org.voltdb.types.TimestampType;
+
+/**
+ * SQL for recording cohorts of devices that move cell together, shared by
+ * ReportCellChange, which finds them as devices move, and
+ * NoteSuspiciousCohort, which records those the generator finds by polling.
+ * Both record the same rows, so a cohort found both ways is only recorded and
+ * alerted on once.
+ * <p>
+ * Each recordCohort statement has a matching alertCohort statement, which
+ * must be run first so it can tell which devices weren't members already.
+ *
+ */
+public abstract class AbstractCohortProcedure extends AbstractSimboxProcedure {
+
+    // @formatter:off
+
+    public static final SQLStmt alertCohort3 = new SQLStmt(
+            "INSERT INTO suspicion_alerts "
+            + "(device_id, event_date, alert_source, cell_id, detection_level) "
+            + "SELECT d.device_id, ?, 'cell_cohort', d.current_cell_id, 3 "
+            + "FROM device_table d "
+            + "WHERE d.cell_history_last3_hash = ? "
+            + "AND NOT EXISTS (SELECT m.device_id FROM cell_suspicious_cohort_members m "
+            + "                WHERE m.device_id = d.device_id AND m.detection_level = 3);");
+
+    public static final SQLStmt recordCohort3 = new SQLStmt(
+            "UPSERT INTO cell_suspicious_cohort_members "
+            + "(cell_id, event_date, device_id, detection_level) "
+            + "SELECT current_cell_id, ?, device_id, 3 "
+            + "FROM device_table "
+            + "WHERE cell_history_last3_hash = ?;");
+
+    public static final SQLStmt alertCohort6 = new SQLStmt(
+            "INSERT INTO suspicion_alerts "
+            + "(device_id, event_date, alert_source, cell_id, detection_level) "
+            + "SELECT d.device_id, ?, 'cell_cohort', d.current_cell_id, 6 "
+            + "FROM device_table d "
+            + "WHERE d.cell_history_last6_hash = ? "
+            + "AND NOT EXISTS (SELECT m.device_id FROM cell_suspicious_cohort_members m "
+            + "                WHERE m.device_id = d.device_id AND m.detection_level = 6);");
+
+    public static final SQLStmt recordCohort6 = new SQLStmt(
+            "UPSERT INTO cell_suspicious_cohort_members "
+            + "(cell_id, event_date, device_id, detection_level) "
+            + "SELECT current_cell_id, ?, device_id, 6 "
+            + "FROM device_table "
+            + "WHERE cell_history_last6_hash = ?;");
+
+    public static final SQLStmt alertFuzzyCohort1 = new SQLStmt(
+            "INSERT INTO suspicion_alerts "
+            + "(device_id, event_date, alert_source, cell_id, detection_level) "
+            + "SELECT d.device_id, ?, 'cell_cohort', d.current_cell_id, 12 "
+            + "FROM device_table d "
+            + "WHERE d.lsh_band_1 = ? "
+            + "AND NOT EXISTS (SELECT m.device_id FROM cell_suspicious_cohort_members m "
+            + "                WHERE m.device_id = d.device_id AND m.detection_level = 12);");
+
+    public static final SQLStmt recordFuzzyCohort1 = new SQLStmt(
+            "UPSERT INTO cell_suspicious_cohort_members "
+            + "(cell_id, event_date, device_id, detection_level) "
+            + "SELECT current_cell_id, ?, device_id, 12 "
+            + "FROM device_table "
+            + "WHERE lsh_band_1 = ?;");
+
+    public static final SQLStmt alertFuzzyCohort2 = new SQLStmt(
+            "INSERT INTO suspicion_alerts "
+            + "(device_id, event_date, alert_source, cell_id, detection_level) "
+            + "SELECT d.device_id, ?, 'cell_cohort', d.current_cell_id, 12 "
+            + "FROM device_table d "
+            + "WHERE d.lsh_band_2 = ? "
+            + "AND NOT EXISTS (SELECT m.device_id FROM cell_suspicious_cohort_members m "
+            + "                WHERE m.device_id = d.device_id AND m.detection_level = 12);");
+
+    public static final SQLStmt recordFuzzyCohort2 = new SQLStmt(
+            "UPSERT INTO cell_suspicious_cohort_members "
+            + "(cell_id, event_date, device_id, detection_level) "
+            + "SELECT current_cell_id, ?, device_id, 12 "
+            + "FROM device_table "
+            + "WHERE lsh_band_2 = ?;");
+
+    public static final SQLStmt alertFuzzyCohort3 = new SQLStmt(
+            "INSERT INTO suspicion_alerts "
+            + "(device_id, event_date, alert_source, cell_id, detection_level) "
+            + "SELECT d.device_id, ?, 'cell_cohort', d.current_cell_id, 12 "
+            + "FROM device_table d "
+            + "WHERE d.lsh_band_3 = ? "
+            + "AND NOT EXISTS (SELECT m.device_id FROM cell_suspicious_cohort_members m "
+            + "                WHERE m.device_id = d.device_id AND m.detection_level = 12);");
+
+    public static final SQLStmt recordFuzzyCohort3 = new SQLStmt(
+            "UPSERT INTO cell_suspicious_cohort_members "
+            + "(cell_id, event_date, device_id, detection_level) "
+            + "SELECT current_cell_id, ?, device_id, 12 "
+            + "FROM device_table "
+            + "WHERE lsh_band_3 = ?;");
+
+    public static final SQLStmt alertFuzzyCohort4 = new SQLStmt(
+            "INSERT INTO suspicion_alerts "
+            + "(device_id, event_date, alert_source, cell_id, detection_level) "
+            + "SELECT d.device_id, ?, 'cell_cohort', d.current_cell_id, 12 "
+            + "FROM device_table d "
+            + "WHERE d.lsh_band_4 = ? "
+            + "AND NOT EXISTS (SELECT m.device_id FROM cell_suspicious_cohort_members m "
+            + "                WHERE m.device_id = d.device_id AND m.detection_level = 12);");
+
+    public static final SQLStmt recordFuzzyCohort4 = new SQLStmt(
+            "UPSERT INTO cell_suspicious_cohort_members "
+            + "(cell_id, event_date, device_id, detection_level) "
+            + "SELECT current_cell_id, ?, device_id, 12 "
+            + "FROM device_table "
+            + "WHERE lsh_band_4 = ?;");
+
+    // @formatter:on
+
+    /**
+     * Microseconds in a minute
+     */
+    private static final long MINUTE_MICROS = 60L * 1000 * 1000;
+
+    /**
+     * @return the event_date we record cohort members with: the start of the
+     *         minute the transaction is in, as every device in a cohort moved
+     *         in the same minute
+     */
+    protected TimestampType getCohortEventDate() {
+
+        final long txnTimeMicros = getTransactionTime().getTime() * 1000;
+        return new TimestampType(txnTimeMicros - Math.floorMod(txnTimeMicros, MINUTE_MICROS));
+    }
+
+}
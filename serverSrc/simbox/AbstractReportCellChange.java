@@ -0,0 +1,326 @@
+package simbox;
+
+
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import org.voltdb.SQLStmt;
+import org.voltdb.VoltTable;
+import org.voltdb.types.TimestampType;
+
+/**
+ * What ReportCellChange and ReportCellChangeBatch have in common. Moving a
+ * device also updates the columns cell_history_last3_hash and
+ * cell_history_last6_hash that are used to spot cohorts of devices that
+ * move at the same time.
+ * <p>
+ * If ENABLE_SUSPICOUS_COHORT_DETECTION is 1 and PARTITION_COHORT_DETECTION_SIZE
+ * is more than 0 we also look for cohorts as devices move. As soon as
+ * PARTITION_COHORT_WARNING_SIZE devices in this partition share a last 3 cell
+ * signature they are recorded in cell_suspicious_cohort_members with a
+ * detection_level of 3. If PARTITION_COHORT_DETECTION_SIZE of them also share
+ * a last 6 cell signature they are recorded again with a detection_level of
+ * 6. Devices that join a cohort later are recorded when they move. The first
+ * time a device is recorded at a level it is also reported in
+ * suspicion_alerts.
+ * <p>
+ * Both thresholds are per partition, as we only see this partition's devices.
+ * The generator still polls for cohorts across all partitions now and then.
+ *
+ */
+public abstract class AbstractReportCellChange extends AbstractCohortProcedure {
+
+    // @formatter:off
+
+    public static final SQLStmt updateCurrentCell1 = new SQLStmt(
+            "UPDATE device_table "
+            + "SET current_cell_id = ? "
+            + "  , cell_history = add_new_cell(cell_history, ?,?) "
+            + "WHERE device_id = ?;");
+
+    public static final SQLStmt updateCurrentCell2 = new SQLStmt(
+            "UPDATE device_table "
+            + "SET cell_history_last3_hash = get_last_n_cells_hash(cell_history,3) "
+            + "  , cell_history_last6_hash = get_last_n_cells_hash(cell_history,6) "
+            + "  , lsh_band_1 = get_lsh_band(cell_history,1) "
+            + "  , lsh_band_2 = get_lsh_band(cell_history,2) "
+            + "  , lsh_band_3 = get_lsh_band(cell_history,3) "
+            + "  , lsh_band_4 = get_lsh_band(cell_history,4) "
+            + "  , last_seen = NOW "
+            + "WHERE device_id = ?;");
+    
+    public static final SQLStmt finishCurrentCellHist = new SQLStmt(
+            "UPDATE device_cell_history "
+            + "SET to_timestamp = ? "
+            + "WHERE device_id = ? "
+            + "AND   to_timestamp = MAX_VALID_TIMESTAMP();");
+
+    public static final SQLStmt createNewDeviceCellHist = new SQLStmt(
+            "INSERT INTO device_cell_history "
+            + "(device_id,current_cell_id,from_timestamp"
+            + ",to_timestamp)"
+            + "VALUES"
+            + "(?,?,?,MAX_VALID_TIMESTAMP());");
+
+    public static final SQLStmt getParameterVersion = new SQLStmt(
+            "SELECT parameter_version FROM simbox_parameters_version;");
+
+    public static final SQLStmt getParameters = new SQLStmt(
+            "SELECT parameter_name, parameter_value FROM simbox_parameters;");
+
+    public static final SQLStmt getCohortSize3 = new SQLStmt(
+            "SELECT d.device_id, d.cell_history_last3_hash signature, v.how_many "
+            + "FROM device_table d "
+            + "   , last_3_cells v "
+            + "WHERE d.device_id = ? "
+            + "AND   v.cell_history_last3_hash = d.cell_history_last3_hash;");
+
+    public static final SQLStmt getCohortSize6 = new SQLStmt(
+            "SELECT d.device_id, d.cell_history_last6_hash signature, v.how_many "
+            + "FROM device_table d "
+            + "   , last_6_cells v "
+            + "WHERE d.device_id = ? "
+            + "AND   v.cell_history_last6_hash = d.cell_history_last6_hash;");
+
+    public static final SQLStmt alertCohortMember = new SQLStmt(
+            "INSERT INTO suspicion_alerts "
+            + "(device_id, event_date, alert_source, cell_id, detection_level) "
+            + "SELECT d.device_id, ?, 'cell_cohort', d.current_cell_id, ? "
+            + "FROM device_table d "
+            + "WHERE d.device_id = ? "
+            + "AND NOT EXISTS (SELECT m.device_id FROM cell_suspicious_cohort_members m "
+            + "                WHERE m.device_id = d.device_id AND m.detection_level = ?);");
+
+    public static final SQLStmt recordCohortMember = new SQLStmt(
+            "UPSERT INTO cell_suspicious_cohort_members "
+            + "(cell_id, event_date, device_id, detection_level) "
+            + "SELECT current_cell_id, ?, device_id, ? "
+            + "FROM device_table "
+            + "WHERE device_id = ?;");
+
+    // @formatter:on
+
+    /**
+     * How many statements queueCellChange queues
+     */
+    protected static final int STATEMENTS_PER_CELL_CHANGE = 4;
+
+    /**
+     * Our copy of simbox_parameters
+     */
+    private final ParameterCache parameters = new ParameterCache();
+
+    /**
+     * How many devices in this partition must share a signature before they're
+     * a cohort, or 0 if we don't look for cohorts as devices move. Only
+     * changes when 'parameters' is reloaded.
+     */
+    private long partitionCohortDetectionSize = 0;
+
+    /**
+     * How many devices in this partition must share a last 3 cell signature
+     * before we check their last 6 cell signatures. Same as
+     * partitionCohortDetectionSize unless PARTITION_COHORT_WARNING_SIZE is set.
+     */
+    private long partitionCohortWarningSize = 0;
+
+    /**
+     * Queue the statements that move a device to a new cell. The device and
+     * cell must exist.
+     * 
+     * @param deviceId
+     * @param cellId
+     * @param eventTime when the move happened. Each move for a device must have
+     *                  a different time.
+     */
+    protected void queueCellChange(long deviceId, long cellId, TimestampType eventTime) {
+
+        voltQueueSQL(updateCurrentCell1, cellId, cellId, eventTime, deviceId);
+        voltQueueSQL(updateCurrentCell2, deviceId);
+        voltQueueSQL(finishCurrentCellHist, new TimestampType(eventTime.getTime() - 1), deviceId);
+        voltQueueSQL(createNewDeviceCellHist, deviceId, cellId, eventTime);
+    }
+
+    /**
+     * Reload our parameters if they've changed.
+     * 
+     * @param versionTable result of getParameterVersion
+     */
+    protected void checkParameters(VoltTable versionTable) {
+
+        if (parameters.needsReload(versionTable)) {
+
+            voltQueueSQL(getParameters);
+            parameters.load(voltExecuteSQL()[0]);
+
+            if (parameters.get("ENABLE_SUSPICOUS_COHORT_DETECTION", 0) == 1) {
+                partitionCohortDetectionSize = parameters.get("PARTITION_COHORT_DETECTION_SIZE", 0);
+                partitionCohortWarningSize = parameters.get("PARTITION_COHORT_WARNING_SIZE", 0);
+
+                if (partitionCohortWarningSize <= 0) {
+                    partitionCohortWarningSize = partitionCohortDetectionSize;
+                }
+            } else {
+                partitionCohortDetectionSize = 0;
+            }
+        }
+    }
+
+    /**
+     * See if any of the devices we've just moved are now part of a cohort, and
+     * if so record it. Everything we've queued must have been executed.
+     * Recording is queued but not executed.
+     * <p>
+     * We look at last 3 cell signatures first, as an early warning. Only the
+     * devices that turn out to be in a last 3 cohort are checked against
+     * their last 6 cell signatures.
+     * 
+     * @param deviceIds devices that have moved. May contain duplicates.
+     */
+    protected void recordCohorts(long[] deviceIds) {
+
+        if (partitionCohortDetectionSize <= 0) {
+            return;
+        }
+
+        final long[] warnedDeviceIds = recordCohortsAtLevel(deviceIds, getCohortSize3, alertCohort3, recordCohort3,
+                3, partitionCohortWarningSize);
+
+        if (warnedDeviceIds.length > 0) {
+            voltExecuteSQL();
+            recordCohortsAtLevel(warnedDeviceIds, getCohortSize6, alertCohort6, recordCohort6, 6,
+                    partitionCohortDetectionSize);
+        }
+    }
+
+    /**
+     * Record cohorts at one level of detail. Everything we've queued must
+     * have been executed. Recording is queued but not executed. Devices that
+     * weren't already in a cohort at this level are reported in
+     * suspicion_alerts.
+     * 
+     * @param deviceIds      devices that have moved. May contain duplicates.
+     * @param getCohortSize  getCohortSize3 or getCohortSize6
+     * @param alertCohort    alertCohort3 or alertCohort6
+     * @param recordCohort   recordCohort3 or recordCohort6
+     * @param detectionLevel 3 or 6
+     * @param threshold      how many devices need to share a signature
+     * @return the devices in 'deviceIds' that are in a cohort at this level
+     */
+    private long[] recordCohortsAtLevel(long[] deviceIds, SQLStmt getCohortSize, SQLStmt alertCohort,
+            SQLStmt recordCohort, int detectionLevel, long threshold) {
+
+        // How many devices share each signature, and which of them just moved
+        HashMap<Long, Long> cohortSizes = new HashMap<Long, Long>();
+        HashMap<Long, HashSet<Long>> movedMembers = new HashMap<Long, HashSet<Long>>();
+        HashSet<Long> devicesInCohorts = new HashSet<Long>();
+
+        for (int i = 0; i < deviceIds.length; i += MAX_QUEUED_STATEMENTS) {
+
+            final int end = Math.min(deviceIds.length, i + MAX_QUEUED_STATEMENTS);
+
+            for (int j = i; j < end; j++) {
+                voltQueueSQL(getCohortSize, deviceIds[j]);
+            }
+
+            VoltTable[] results = voltExecuteSQL();
+
+            for (int j = 0; j < results.length; j++) {
+
+                if (results[j].advanceRow()) {
+
+                    final long signature = results[j].getLong("signature");
+                    final long howMany = results[j].getLong("how_many");
+
+                    if (howMany >= threshold) {
+
+                        cohortSizes.put(signature, howMany);
+
+                        if (!movedMembers.containsKey(signature)) {
+                            movedMembers.put(signature, new HashSet<Long>());
+                        }
+
+                        movedMembers.get(signature).add(results[j].getLong("device_id"));
+                        devicesInCohorts.add(results[j].getLong("device_id"));
+                    }
+                }
+            }
+        }
+
+        final TimestampType eventDate = getCohortEventDate();
+
+        int queuedStatements = 0;
+
+        for (Map.Entry<Long, Long> cohort : cohortSizes.entrySet()) {
+
+            final HashSet<Long> moved = movedMembers.get(cohort.getKey());
+
+            if (cohort.getValue() - moved.size() < threshold) {
+
+                // We've just become a cohort, so record everyone
+                queuedStatements = flushIfFull(queuedStatements);
+                voltQueueSQL(alertCohort, eventDate, cohort.getKey());
+                voltQueueSQL(recordCohort, eventDate, cohort.getKey());
+                queuedStatements += 2;
+
+            } else {
+
+                // Members that didn't move this time were recorded earlier
+                for (Long deviceId : moved) {
+                    queuedStatements = flushIfFull(queuedStatements);
+                    voltQueueSQL(alertCohortMember, eventDate, detectionLevel, deviceId, detectionLevel);
+                    voltQueueSQL(recordCohortMember, eventDate, detectionLevel, deviceId);
+                    queuedStatements += 2;
+                }
+            }
+        }
+
+        long[] devicesInCohortsArray = new long[devicesInCohorts.size()];
+        int count = 0;
+
+        for (Long deviceId : devicesInCohorts) {
+            devicesInCohortsArray[count++] = deviceId;
+        }
+
+        return devicesInCohortsArray;
+    }
+
+    /**
+     * @param queuedStatements how many statements we've queued
+     * @return how many statements are queued after executing them if we
+     *         can't queue any more
+     */
+    private int flushIfFull(int queuedStatements) {
+
+        if (queuedStatements >= MAX_QUEUED_STATEMENTS) {
+            voltExecuteSQL();
+            return 0;
+        }
+
+        return queuedStatements;
+    }
+}
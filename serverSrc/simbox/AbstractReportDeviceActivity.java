@@ -0,0 +1,678 @@
+package simbox;
+
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+import java.util.Date;
+
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2019 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+import org.voltdb.SQLStmt;
+import org.voltdb.VoltProcedure;
+import org.voltdb.VoltTable;
+import org.voltdb.types.TimestampType;
+
+/**
+ * What ReportDeviceActivity and ReportDeviceActivityBatch have in common:
+ * recording a call and then deciding whether the device's behaviour means it's
+ * in a simbox.
+ *
+ */
+public abstract class AbstractReportDeviceActivity extends VoltProcedure {
+
+    // @formatter:off
+
+    public static final SQLStmt getDevice = new SQLStmt(
+            "SELECT * FROM device_table WHERE device_id = ?;");
+
+    public static final SQLStmt upsertInCall = new SQLStmt(
+            "UPSERT INTO device_incoming_call_history "
+                    + "( other_number "
+                    + "  , cell_id "
+                    + "  , end_time "
+                    + "  , duration "
+                    + "  , status_code "
+                    + ", device_id "
+                    + ",   start_time ) "
+                    + "VALUES "
+                    + "(?,?,?,?,?,?,?)");
+
+    public static final SQLStmt upsertOutCall = new SQLStmt(
+            "UPSERT INTO device_outgoing_call_history "
+                    + "( other_number "
+                    + "  , cell_id "
+                    + "  , end_time "
+                    + "  , duration "
+                    + "  , status_code "
+                    + ", device_id "
+                    + ",   start_time ) "
+                    + "VALUES "
+                    + "(?,?,?,?,?,?,?)");
+
+    public static final SQLStmt incrementCallHistory = new SQLStmt(
+            "UPDATE device_cell_history "
+                    + "SET incoming_call_count = incoming_call_count + ? "
+                    + "  , outgoing_call_count = outgoing_call_count + ? "
+                    + "  , incoming_call_duration = incoming_call_duration + ? "
+                    + "  , outgoing_call_duration = outgoing_call_duration + ? "
+            + "WHERE device_id = ? AND to_timestamp = MAX_VALID_TIMESTAMP();");
+    
+    public static final SQLStmt updateDeviceLastSeen = new SQLStmt(
+            "UPDATE device_table "
+            + "SET last_seen = NOW "
+            + "WHERE device_id = ?;");
+
+    public static final SQLStmt getParameterVersion = new SQLStmt(
+            "SELECT parameter_version FROM simbox_parameters_version;");
+
+    public static final SQLStmt getParameters = new SQLStmt(
+            "SELECT parameter_name, parameter_value FROM simbox_parameters;");
+
+    public static final SQLStmt getCallBucket = new SQLStmt(
+            "SELECT * FROM device_call_buckets WHERE device_id = ? AND bucket_start = ?;");
+
+    public static final SQLStmt upsertCallBucket = new SQLStmt(
+            "UPSERT INTO device_call_buckets "
+            + "(device_id, bucket_start"
+            + ",incoming_call_count, incoming_call_duration, first_incoming_start, last_incoming_end"
+            + ",outgoing_call_count, outgoing_call_duration, first_outgoing_start, last_outgoing_end"
+            + ",callee_summary) "
+            + "VALUES "
+            + "(?,?,?,?,?,?,?,?,?,?,?);");
+
+    public static final SQLStmt getOutgoingBucketSummary = new SQLStmt(
+            "SELECT min(first_outgoing_start) start_time"
+            + "    , max(last_outgoing_end) end_time"
+            + "    , COALESCE(sum(outgoing_call_duration),0) duration "
+            + "    , COALESCE(sum(outgoing_call_count),0) how_many "
+            + "FROM device_call_buckets "
+            + "WHERE device_id = ? "
+            + "AND   bucket_start >= ? ; ");
+
+    public static final SQLStmt getIncomingBucketSummary = new SQLStmt(
+            "SELECT min(first_incoming_start) start_time"
+            + "    , max(last_incoming_end) end_time"
+            + "    , COALESCE(sum(incoming_call_duration),0) duration "
+            + "    , COALESCE(sum(incoming_call_count),0) how_many "
+            + "FROM device_call_buckets "
+            + "WHERE device_id = ? "
+            + "AND   bucket_start >= ? ; ");
+
+    public static final SQLStmt getCalleeSummaries = new SQLStmt(
+            "SELECT callee_summary "
+            + "FROM device_call_buckets "
+            + "WHERE device_id = ? "
+            + "AND   bucket_start >= ? "
+            + "AND   callee_summary IS NOT NULL; ");
+
+
+    public static final SQLStmt getSuspiciousDevice = new SQLStmt(
+            "SELECT * FROM suspicious_devices_view WHERE device_id = ?;");
+
+ 
+    public static final SQLStmt flagDevice = new SQLStmt(
+            "UPDATE device_table "
+            + "SET suspicious_because = ?"
+            + "  , suspicious_value = ? "
+            + "WHERE device_id = ?;");
+
+
+    public static final SQLStmt clearDevice = new SQLStmt(
+            "UPDATE device_table "
+            + "SET suspicious_because = null"
+            + "  , suspicious_value = null "
+            + "WHERE device_id = ?;");
+
+    public static final SQLStmt reportSuspicionChange = new SQLStmt(
+            "INSERT INTO suspicion_alerts "
+            + "(device_id, event_date, alert_source, old_suspicious_because, new_suspicious_because"
+            + ",suspicious_value) "
+            + "VALUES "
+            + "(?,?,'device_activity',?,?,?);");
+
+
+	// @formatter:on
+
+    /**
+     * How long each row in device_call_buckets covers. Scoring looks at up to
+     * this much more history than HOURS_BACK_TO_CHECK.
+     */
+    public static final long CALL_BUCKET_MICROS = 10L * 60 * 1000 * 1000;
+
+    /**
+     * Our copy of simbox_parameters
+     */
+    private final ParameterCache parameters = new ParameterCache();
+
+    /**
+     * Parameters that affect the decision making logic. Only change when
+     * 'parameters' is reloaded.
+     */
+    private long outgoingCallThreshold;
+    private long incomingCallThreshold;
+    private long outgoingIncoming;
+    private long notNewAnyMoreDays;
+    private long busynessPercentage;
+    private long hoursBackToCheck;
+    private long topN;
+    private long topBottomNRatio;
+
+    /**
+     * Record the fact that a call has happened. As well as the call itself we
+     * add it to the device's totals for the time bucket it started in, so we
+     * can score the device without reading every call it has made.
+     * 
+     * @param deviceId
+     * @param startTime
+     * @param durationSeconds
+     * @param inOrOut
+     * @param otherNumber
+     * @param status
+     */
+    protected void updateDatabaseTablesForDevice(long deviceId, TimestampType startTime, int durationSeconds,
+            String inOrOut, long otherNumber, String status) {
+        final TimestampType bucketStart = getBucketStart(startTime.getTime());
+
+        // See if we know about this user and transaction...
+        voltQueueSQL(getDevice, deviceId);
+        voltQueueSQL(getCallBucket, deviceId, bucketStart);
+
+        VoltTable[] deviceAndBucket = voltExecuteSQL();
+        VoltTable deviceTable = deviceAndBucket[0];
+
+        // Sanity Check: Is this a real user?
+        if (!deviceTable.advanceRow()) {
+            throw new VoltAbortException("Device " + deviceId + " does not exist");
+        }
+
+        long currentCellId = deviceTable.getLong("current_cell_id");
+
+        TimestampType endTime = new TimestampType(
+                new Date(startTime.asExactJavaDate().getTime() + (1000 * durationSeconds)));
+
+        if (inOrOut.equalsIgnoreCase("I")) {
+
+            voltQueueSQL(upsertInCall, otherNumber, currentCellId, endTime, durationSeconds, status, deviceId,
+                    startTime);
+            voltQueueSQL(incrementCallHistory, 1, 0, durationSeconds, 0, deviceId);
+
+        } else {
+
+            voltQueueSQL(upsertOutCall, otherNumber, currentCellId, endTime, durationSeconds, status, deviceId,
+                    startTime);
+            voltQueueSQL(incrementCallHistory, 0, 1, 0, durationSeconds, deviceId);
+        }
+
+        queueCallBucketUpdate(deviceAndBucket[1], deviceId, bucketStart, startTime, endTime, durationSeconds,
+                inOrOut.equalsIgnoreCase("I"), otherNumber);
+
+        voltQueueSQL(updateDeviceLastSeen, deviceId);
+
+        voltExecuteSQL();
+    }
+
+    /**
+     * See if given device might be in a simbox by looking at its behaviour.
+     * Flagging or clearing the device is queued but not executed.
+     * 
+     * @param deviceId
+     * @param startTime
+     * @param durationSeconds
+     * @param inOrOut
+     * @param otherNumber
+     * @param status
+     * @param checkParameters whether to see if our parameters have changed.
+     *                        Only needs to happen once per transaction.
+     */
+    @SuppressWarnings("unused")
+    protected void seeIfDeviceIsSuspect(long deviceId, TimestampType startTime, int durationSeconds, String inOrOut,
+            long otherNumber, String status, boolean checkParameters) {
+
+        // See if the parameters that affect the decision making logic have
+        // changed.
+        if (checkParameters) {
+            voltQueueSQL(getParameterVersion);
+        }
+
+        voltQueueSQL(getDevice, EXPECT_ONE_ROW, deviceId);
+        voltQueueSQL(getSuspiciousDevice, deviceId);
+
+        VoltTable[] firstResults = voltExecuteSQL();
+        final int offset = checkParameters ? 1 : 0;
+
+        if (checkParameters && parameters.needsReload(firstResults[0])) {
+            voltQueueSQL(getParameters);
+            loadParameters(voltExecuteSQL()[0]);
+        }
+
+        VoltTable device = firstResults[offset];
+        device.advanceRow();
+
+        VoltTable suspiciousDevice = firstResults[offset + 1];
+        boolean thisDeviceIsSuspicious = false;
+
+        if (suspiciousDevice.advanceRow()) {
+            thisDeviceIsSuspicious = true;
+        }
+
+        final TimestampType deviceFirstSeen = device.getTimestampAsTimestamp("first_seen");
+        String suspiciousBecause = device.getString("suspicious_because");
+
+        if (suspiciousBecause == null) {
+            suspiciousBecause = new String("");
+        }
+
+        final Date deviceIsYoungEnoughToWorryAbout = new Date(
+                this.getTransactionTime().getTime() - (notNewAnyMoreDays * 24 * 60 * 60 * 1000));
+
+        if (deviceIsYoungEnoughToWorryAbout.before(deviceFirstSeen.asApproximateJavaDate())) {
+
+            // Read a fixed number of bucket rows, no matter how busy we are
+            final TimestampType windowStart = getBucketStart(
+                    (this.getTransactionTime().getTime() - (hoursBackToCheck * 60 * 60 * 1000)) * 1000);
+
+            voltQueueSQL(getOutgoingBucketSummary, deviceId, windowStart);
+            voltQueueSQL(getIncomingBucketSummary, deviceId, windowStart);
+
+            VoltTable[] secondResults = voltExecuteSQL();
+
+            long actualBusyOutCallPct = getActualBusyOutCallPct(outgoingCallThreshold, secondResults[0]);
+            final long outgoingCallCount = secondResults[0].getLong("how_many");
+
+            long actualBusyInCallPct = getActualBusyInCallPct(incomingCallThreshold, secondResults[1]);
+            final long incomingCallCount = secondResults[1].getLong("how_many");
+
+            // suspicious_devices_view is only about this device, so if it's in
+            // there all its incoming calls count.
+            long actualBusyInCallSuspicuousPct = 0;
+
+            if (thisDeviceIsSuspicious) {
+                secondResults[1].resetRowPosition();
+                actualBusyInCallSuspicuousPct = getActualBusyInCallSuspiciousPct(secondResults[1]);
+            }
+
+            // Decide what kind of device this is...
+            if (thisDeviceIsSuspicious // Known suspicious number
+                    && actualBusyInCallPct >= 1 // We have incoming calls..
+                    && actualBusyInCallSuspicuousPct == actualBusyInCallPct) // All of them are from bad numbers
+            {
+
+                queueFlagDevice(deviceId, suspiciousBecause, "all_incoming_calls_from_known_bad_numbers",
+                        actualBusyInCallSuspicuousPct);
+
+            } else if (thisDeviceIsSuspicious && // Known suspicious number
+                    actualBusyInCallSuspicuousPct > 1) { // At least one call from a bad number
+
+                queueFlagDevice(deviceId, suspiciousBecause, "some_incoming_calls_from_known_bad_numbers",
+                        actualBusyInCallSuspicuousPct);
+
+            } else if (thisDeviceIsSuspicious // Known suspicious number
+                    && incomingCallCount == 0 // no incoming calls
+                    && outgoingCallCount > 0 // some outgoing calls
+            ) {
+                queueFlagDevice(deviceId, suspiciousBecause, "suspicious_device_has_no_incoming_calls",
+                        actualBusyOutCallPct);
+
+            } else if (thisDeviceIsSuspicious) { // Device is part of a group that have all moved together >= 6 times
+
+                queueFlagDevice(deviceId, suspiciousBecause, "suspiciously_moving_device", actualBusyOutCallPct);
+
+            } else if ((actualBusyInCallPct + actualBusyOutCallPct) >= busynessPercentage // We're very busy
+                    && (outgoingIncoming * incomingCallCount) < outgoingCallCount) { // Lots of calls out
+
+                queueFlagDevice(deviceId, suspiciousBecause, "total_incoming_outgoing_ratio_bad",
+                        actualBusyInCallPct + actualBusyOutCallPct);
+
+            } else if ((actualBusyInCallPct + actualBusyOutCallPct) >= busynessPercentage) { // We're very busy
+
+                final int outCallTopBottomNRatio = getOutCallTopBottomNRatio(deviceId, windowStart);
+
+                if (outCallTopBottomNRatio < topBottomNRatio) { // Lots of calls out
+                    queueFlagDevice(deviceId, suspiciousBecause, "topn_incoming_outgoing_ratio_bad",
+                            outCallTopBottomNRatio);
+                } else {
+                    queueClearDevice(deviceId, suspiciousBecause);
+                }
+
+            } else {
+                queueClearDevice(deviceId, suspiciousBecause);
+            }
+
+        }
+
+    }
+
+    /**
+     * Flag a device as suspicious. If the reason has changed, tell the outside
+     * world using suspicion_alerts.
+     *
+     * @param deviceId
+     * @param oldReason        suspicious_because before we started, or ""
+     * @param newReason
+     * @param suspiciousValue
+     */
+    private void queueFlagDevice(long deviceId, String oldReason, String newReason, long suspiciousValue) {
+
+        voltQueueSQL(flagDevice, newReason, suspiciousValue, deviceId);
+
+        if (!newReason.equals(oldReason)) {
+            voltQueueSQL(reportSuspicionChange, deviceId, getTransactionTime(),
+                    oldReason.length() == 0 ? null : oldReason, newReason, suspiciousValue);
+        }
+    }
+
+    /**
+     * Stop regarding a device as suspicious, if we did. Devices that were
+     * never flagged are left alone, so ordinary calls don't update anything.
+     *
+     * @param deviceId
+     * @param oldReason suspicious_because before we started, or ""
+     */
+    private void queueClearDevice(long deviceId, String oldReason) {
+
+        if (oldReason.length() > 0) {
+            voltQueueSQL(clearDevice, deviceId);
+            voltQueueSQL(reportSuspicionChange, deviceId, getTransactionTime(), oldReason, null, null);
+        }
+    }
+
+    /**
+     * Determine what % of time is spent making calls
+     * @param outgoingCallThreshold min number of calls before we care
+     * @param outCallHistory Call history
+     * @return 0 or pct spent making calls
+     */
+    private long getActualBusyOutCallPct(final long outgoingCallThreshold, VoltTable outCallHistory) {
+        long actualBusyOutCallPct = 0;
+
+        if (outCallHistory.advanceRow()) {
+
+            final TimestampType firstSeen = outCallHistory.getTimestampAsTimestamp("start_time");
+            final TimestampType lastSeen = outCallHistory.getTimestampAsTimestamp("end_time");
+            long outgoingCallDurationRecent = outCallHistory.getLong("duration");
+            long howMany = outCallHistory.getLong("how_many");
+
+            if (howMany > outgoingCallThreshold) {
+                // calculate time period covered in seconds
+                final long timePeriodSeconds = (lastSeen.asApproximateJavaDate().getTime()
+                        - firstSeen.asApproximateJavaDate().getTime()) / 1000;
+
+                if (timePeriodSeconds > 0) {
+                actualBusyOutCallPct = (100 * outgoingCallDurationRecent) / timePeriodSeconds;
+                }
+            }
+        }
+        return actualBusyOutCallPct;
+    }
+
+    /**
+     * Determine what % of time is spent receiving calls
+     * @param outgoingCallThreshold min number of calls before we care
+     * @param outCallHistory Call history
+     * @return 0 or pct spent receiving calls
+     */ 
+    private long getActualBusyInCallPct(final long outgoingCallOnlyCount, VoltTable inCallHistory) {
+        long actualBusyInCallPct = 0;
+
+        if (inCallHistory.advanceRow()) {
+
+            final TimestampType firstSeen = inCallHistory.getTimestampAsTimestamp("start_time");
+            final TimestampType lastSeen = inCallHistory.getTimestampAsTimestamp("end_time");
+            long incomingCallDurationRecent = inCallHistory.getLong("duration");
+            long howMany = inCallHistory.getLong("how_many");
+
+            if (howMany > outgoingCallOnlyCount) {
+                // calculate time period covered in seconds
+                final long timePeriodSeconds = (lastSeen.asApproximateJavaDate().getTime()
+                        - firstSeen.asApproximateJavaDate().getTime()) / 1000;
+                if (timePeriodSeconds > 0) {
+                actualBusyInCallPct = (100 * incomingCallDurationRecent) / timePeriodSeconds;
+                }
+            }
+        }
+        return actualBusyInCallPct;
+    }
+
+    /**
+     * Determine what % of time is spent receiving calls from numbers we think are suspicious
+     * @param outCallHistory Call history
+     * @return pct spent receiving calls
+     */ 
+     private long getActualBusyInCallSuspiciousPct(VoltTable suspiciousInCallHistorySummary) {
+
+        long actualBusyInCallSuspicuousPct = 0;
+
+        if (suspiciousInCallHistorySummary.advanceRow()) {
+
+            final TimestampType firstSeen = suspiciousInCallHistorySummary.getTimestampAsTimestamp("start_time");
+            final TimestampType lastSeen = suspiciousInCallHistorySummary.getTimestampAsTimestamp("end_time");
+            long incomingCallDurationRecent = suspiciousInCallHistorySummary.getLong("duration");
+            long howMany = suspiciousInCallHistorySummary.getLong("how_many");
+
+            if (howMany > 0) {
+                // calculate time period covered in seconds
+                final long timePeriodSeconds = (lastSeen.asApproximateJavaDate().getTime()
+                        - firstSeen.asApproximateJavaDate().getTime()) / 1000;
+
+                if (timePeriodSeconds > 0) {
+                    actualBusyInCallSuspicuousPct = (100 * incomingCallDurationRecent) / timePeriodSeconds;
+
+                }
+
+            }
+        }
+
+        return actualBusyInCallSuspicuousPct;
+    }
+
+    /**
+     * Add a call to the totals for the bucket it started in. 
+     * 
+     * @param bucket          the bucket's current row, if it has one
+     * @param deviceId
+     * @param bucketStart
+     * @param startTime
+     * @param endTime
+     * @param durationSeconds
+     * @param incoming        true if the call is incoming
+     * @param otherNumber     the other party, added to our callee summary if
+     *                        the call is outgoing
+     */
+    private void queueCallBucketUpdate(VoltTable bucket, long deviceId, TimestampType bucketStart,
+            TimestampType startTime, TimestampType endTime, int durationSeconds, boolean incoming,
+            long otherNumber) {
+
+        long incomingCallCount = 0;
+        long incomingCallDuration = 0;
+        TimestampType firstIncomingStart = null;
+        TimestampType lastIncomingEnd = null;
+        long outgoingCallCount = 0;
+        long outgoingCallDuration = 0;
+        TimestampType firstOutgoingStart = null;
+        TimestampType lastOutgoingEnd = null;
+        byte[] calleeSummary = null;
+
+        if (bucket.advanceRow()) {
+            incomingCallCount = bucket.getLong("incoming_call_count");
+            incomingCallDuration = bucket.getLong("incoming_call_duration");
+            firstIncomingStart = bucket.getTimestampAsTimestamp("first_incoming_start");
+            lastIncomingEnd = bucket.getTimestampAsTimestamp("last_incoming_end");
+            outgoingCallCount = bucket.getLong("outgoing_call_count");
+            outgoingCallDuration = bucket.getLong("outgoing_call_duration");
+            firstOutgoingStart = bucket.getTimestampAsTimestamp("first_outgoing_start");
+            lastOutgoingEnd = bucket.getTimestampAsTimestamp("last_outgoing_end");
+            calleeSummary = bucket.getVarbinary("callee_summary");
+        }
+
+        if (incoming) {
+            incomingCallCount++;
+            incomingCallDuration += durationSeconds;
+            firstIncomingStart = getEarlier(firstIncomingStart, startTime);
+            lastIncomingEnd = getLater(lastIncomingEnd, endTime);
+        } else {
+            outgoingCallCount++;
+            outgoingCallDuration += durationSeconds;
+            firstOutgoingStart = getEarlier(firstOutgoingStart, startTime);
+            lastOutgoingEnd = getLater(lastOutgoingEnd, endTime);
+
+            CalleeSummary summary = CalleeSummary.fromBytes(calleeSummary);
+            summary.add(otherNumber);
+            calleeSummary = summary.toBytes();
+        }
+
+        voltQueueSQL(upsertCallBucket, deviceId, bucketStart, incomingCallCount, incomingCallDuration,
+                firstIncomingStart, lastIncomingEnd, outgoingCallCount, outgoingCallDuration, firstOutgoingStart,
+                lastOutgoingEnd, calleeSummary);
+    }
+
+    /**
+     * @param timeMicros
+     * @return start of the device_call_buckets bucket 'timeMicros' falls in
+     */
+    protected static TimestampType getBucketStart(long timeMicros) {
+        return new TimestampType(timeMicros - Math.floorMod(timeMicros, CALL_BUCKET_MICROS));
+    }
+
+    /**
+     * @param a may be null
+     * @param b
+     * @return whichever of 'a' and 'b' is earlier
+     */
+    private static TimestampType getEarlier(TimestampType a, TimestampType b) {
+        return (a == null || b.getTime() < a.getTime()) ? b : a;
+    }
+
+    /**
+     * @param a may be null
+     * @param b
+     * @return whichever of 'a' and 'b' is later
+     */
+    private static TimestampType getLater(TimestampType a, TimestampType b) {
+        return (a == null || b.getTime() > a.getTime()) ? b : a;
+    }
+
+    /**
+     * Only called when everything else has failed to find a reason to flag
+     * a busy device. Merges the callee summaries of the buckets we're looking
+     * at, so the cost doesn't depend on how many calls the device has made.
+     * 
+     * @param deviceId
+     * @param windowStart first bucket to look at
+     * @return ratio between calls to our top 'n' and bottom 'n' numbers
+     */
+    private int getOutCallTopBottomNRatio(long deviceId, TimestampType windowStart) {
+
+        voltQueueSQL(getCalleeSummaries, deviceId, windowStart);
+
+        return getTopNRatio(mergeCalleeSummaries(voltExecuteSQL()[0]).toVoltTable(), (int) topN);
+    }
+
+    /**
+     * @param summaryTable rows from device_call_buckets with a callee_summary
+     *                     column
+     * @return all the summaries in 'summaryTable' merged into one
+     */
+    protected static CalleeSummary mergeCalleeSummaries(VoltTable summaryTable) {
+
+        CalleeSummary merged = new CalleeSummary();
+
+        while (summaryTable.advanceRow()) {
+            merged.merge(CalleeSummary.fromBytes(summaryTable.getVarbinary("callee_summary")));
+        }
+
+        return merged;
+    }
+
+    /**
+     * Get ratio between total number of calls for top 'n' busiest numbers and 
+     * bottom 'n' busiest numbers
+     * 
+     * @param suspiciousInCallHistory
+     * @param n - how many to compare 
+     * @return Integer.MAX_VALUE if less than n * 2 calls, otherwise ratio top n : bottom n
+     */
+    private int getTopNRatio(VoltTable suspiciousInCallHistory, int n) {
+
+        int topNCalls = 0;
+        int bottomNCalls = 0;
+
+        if (suspiciousInCallHistory.getRowCount() >= (n * 2)) {
+
+            while (suspiciousInCallHistory.advanceRow()) {
+
+                if (suspiciousInCallHistory.getActiveRowIndex() < n) {
+                    topNCalls += suspiciousInCallHistory.getLong("how_many");
+                } else if (suspiciousInCallHistory.getActiveRowIndex() > suspiciousInCallHistory.getRowCount() - n) {
+                    bottomNCalls += suspiciousInCallHistory.getLong("how_many");
+                }
+
+            }
+
+        } else {
+            return Integer.MAX_VALUE;
+        }
+
+        return topNCalls / bottomNCalls;
+    }
+
+    /**
+     * Reload our parameters, using default values for any that aren't set.
+     * 
+     * @param parameterTable
+     */
+    private void loadParameters(VoltTable parameterTable) {
+
+        parameters.load(parameterTable);
+
+        outgoingCallThreshold = parameters.get("OUTGOING_CALL_ONLY_COUNT", 2);
+        incomingCallThreshold = parameters.get("IMCOMING_CALL_ONLY_COUNT", 2);
+        outgoingIncoming = parameters.get("OUTGOING_INCOMING_RATIO", 10);
+        notNewAnyMoreDays = parameters.get("NOT_NEW_ANY_MORE_DAYS", 10);
+        busynessPercentage = parameters.get("BUSYNESS_PERCENTAGE", 30);
+        hoursBackToCheck = parameters.get("HOURS_BACK_TO_CHECK", 3);
+        topN = parameters.get("TOP_N", 5);
+        topBottomNRatio = parameters.get("TOP_BOTTOM_N_RATIO", 10);
+    }
+
+}
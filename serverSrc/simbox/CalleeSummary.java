@@ -0,0 +1,222 @@
+package simbox;
+
+
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.voltdb.VoltTable;
+import org.voltdb.VoltType;
+
+/**
+ * A bounded-size summary of the numbers a device calls most often, using the
+ * Space-Saving algorithm. We track at most CAPACITY numbers. When a new number
+ * turns up and we're full it replaces whichever number has the lowest count,
+ * inheriting that count as its possible error. Counts are therefore never
+ * lower than the truth, and are exact if the device has called no more than
+ * CAPACITY different numbers.
+ * <p>
+ * Summaries are stored as VARBINARY in device_call_buckets, one per bucket.
+ * Summaries for several buckets can be merged to cover a longer period.
+ *
+ */
+public class CalleeSummary {
+
+    /**
+     * How many numbers we track. Must be at least 2 * TOP_N for the top/bottom
+     * ratio to be meaningful.
+     */
+    public static final int CAPACITY = 32;
+
+    /**
+     * Bytes per entry when serialized: number, count and error.
+     */
+    private static final int ENTRY_BYTES = 8 + 4 + 4;
+
+    /**
+     * Longest a serialized summary can be. Must match device_call_buckets.
+     */
+    public static final int MAX_BYTES = 2 + (CAPACITY * ENTRY_BYTES);
+
+    /**
+     * Numbers we're tracking. Only the first 'size' are in use.
+     */
+    private final long[] numbers = new long[CAPACITY];
+
+    /**
+     * How many times each number has been called
+     */
+    private final int[] counts = new int[CAPACITY];
+
+    /**
+     * How much each count might be overstated by
+     */
+    private final int[] errors = new int[CAPACITY];
+
+    /**
+     * How many entries are in use
+     */
+    private int size = 0;
+
+    /**
+     * Create an empty summary.
+     */
+    public CalleeSummary() {
+        super();
+    }
+
+    /**
+     * @param bytes a serialized summary, or null
+     * @return the summary, which will be empty if 'bytes' is null
+     */
+    public static CalleeSummary fromBytes(byte[] bytes) {
+
+        CalleeSummary summary = new CalleeSummary();
+
+        if (bytes != null) {
+
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            summary.size = Math.min(buffer.getShort(), CAPACITY);
+
+            for (int i = 0; i < summary.size; i++) {
+                summary.numbers[i] = buffer.getLong();
+                summary.counts[i] = buffer.getInt();
+                summary.errors[i] = buffer.getInt();
+            }
+        }
+
+        return summary;
+    }
+
+    /**
+     * @return this summary as bytes, for storing in a VARBINARY column
+     */
+    public byte[] toBytes() {
+
+        ByteBuffer buffer = ByteBuffer.allocate(2 + (size * ENTRY_BYTES));
+        buffer.putShort((short) size);
+
+        for (int i = 0; i < size; i++) {
+            buffer.putLong(numbers[i]);
+            buffer.putInt(counts[i]);
+            buffer.putInt(errors[i]);
+        }
+
+        return buffer.array();
+    }
+
+    /**
+     * Record a call to 'number'.
+     *
+     * @param number
+     */
+    public void add(long number) {
+        add(number, 1, 0);
+    }
+
+    /**
+     * Add everything in 'other' to this summary.
+     *
+     * @param other
+     */
+    public void merge(CalleeSummary other) {
+
+        for (int i = 0; i < other.size; i++) {
+            add(other.numbers[i], other.counts[i], other.errors[i]);
+        }
+    }
+
+    /**
+     * Add 'count' calls to 'number'. If we're full and don't already track
+     * 'number' it takes over the entry with the lowest count.
+     *
+     * @param number
+     * @param count
+     * @param error  how much 'count' might already be overstated by
+     */
+    private void add(long number, int count, int error) {
+
+        int lowest = 0;
+
+        for (int i = 0; i < size; i++) {
+
+            if (numbers[i] == number) {
+                counts[i] += count;
+                errors[i] += error;
+                return;
+            }
+
+            if (counts[i] < counts[lowest]) {
+                lowest = i;
+            }
+        }
+
+        if (size < CAPACITY) {
+            numbers[size] = number;
+            counts[size] = count;
+            errors[size] = error;
+            size++;
+        } else {
+            errors[lowest] = counts[lowest] + error;
+            counts[lowest] += count;
+            numbers[lowest] = number;
+        }
+    }
+
+    /**
+     * @return how many numbers we're tracking
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return our entries as a table with the columns other_number, how_many
+     *         and max_error, busiest first
+     */
+    public VoltTable toVoltTable() {
+
+        Integer[] order = new Integer[size];
+
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+        }
+
+        // Busiest first, ties broken by number so every replica agrees
+        Arrays.sort(order, (a, b) -> counts[a] != counts[b] ? Integer.compare(counts[b], counts[a])
+                : Long.compare(numbers[a], numbers[b]));
+
+        VoltTable table = new VoltTable(new VoltTable.ColumnInfo("other_number", VoltType.BIGINT),
+                new VoltTable.ColumnInfo("how_many", VoltType.BIGINT),
+                new VoltTable.ColumnInfo("max_error", VoltType.BIGINT));
+
+        for (int i = 0; i < size; i++) {
+            table.addRow(numbers[order[i]], (long) counts[order[i]], (long) errors[order[i]]);
+        }
+
+        return table;
+    }
+
+}
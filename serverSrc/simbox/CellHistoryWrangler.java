@@ -0,0 +1,251 @@
+package simbox;
+
+
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+import org.voltdb.types.TimestampType;
+
+/**
+ * Class containing methods that are turned into VoltDB functions.
+ * <p>
+ * A cell history is a VARBINARY holding up to MAX_LIST_LENGTH fixed width
+ * entries, oldest first. Each entry is a 4 byte cell ID followed by a 1 byte
+ * minute of the hour. By looking at this list we can easily identify phones
+ * that move around as a group.
+ * <p>
+ * Because entries are fixed width, adding a cell is a single array copy, and
+ * equal histories always have equal bytes. A history of 12 entries is 60
+ * bytes, which VoltDB stores inline in the row.
+ * <p>
+ * Cohorts are found by grouping devices on a 64 bit hash of their last 'n'
+ * entries, which is much cheaper to index than the entries themselves.
+ * <p>
+ * Exact hashes miss a simbox whose SIMs move a few seconds apart across a
+ * minute boundary, or which drops a SIM now and again. So we also treat each
+ * history as the set of cell to cell moves it contains, ignoring time, and
+ * describe it with a MinHash signature of LSH_BANDS * LSH_ROWS values. Each
+ * band of LSH_ROWS values is hashed into its own column. Devices whose move
+ * sets are similar are very likely to share at least one band, so grouping
+ * on each band column finds near-identical cohorts without comparing
+ * devices with each other.
+ *
+ */
+public class CellHistoryWrangler {
+
+    /**
+     * Bytes per entry
+     */
+    public static final int ENTRY_BYTES = 5;
+
+    /**
+     * Max number of elements in list
+     */
+    public static final int MAX_LIST_LENGTH = 12;
+
+    /**
+     * FNV-1a 64 bit offset basis
+     */
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+
+    /**
+     * FNV-1a 64 bit prime
+     */
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    /**
+     * How many LSH bands we have. Each has its own column in device_table.
+     */
+    public static final int LSH_BANDS = 4;
+
+    /**
+     * How many MinHash values go into each band
+     */
+    public static final int LSH_ROWS = 4;
+
+    /**
+     * Histories with fewer entries than this don't have LSH bands, as they
+     * don't say enough about the device.
+     */
+    public static final int LSH_MIN_ENTRIES = 4;
+
+    /**
+     * Microseconds in a minute
+     */
+    private static final long MINUTE_MICROS = 60L * 1000 * 1000;
+
+    /**
+     * Hash the last 'n' elements of our list, without copying them.
+     * 
+     * @param currentList
+     * @param cellCount
+     * @return a 64 bit hash of the last 'cellCount' elements
+     */
+    public long getLastNHash(byte[] currentList, int cellCount) {
+
+        long hash = FNV_OFFSET_BASIS;
+
+        if (currentList != null) {
+
+            final int start = Math.max(0, currentList.length - (cellCount * ENTRY_BYTES));
+
+            for (int i = start; i < currentList.length; i++) {
+                hash ^= currentList[i] & 0xFF;
+                hash *= FNV_PRIME;
+            }
+        }
+
+        // FNV's low bits are weak, and VoltDB hashes keys as it sees fit, so
+        // finish with a mix
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+
+        return hash;
+    }
+
+    /**
+     * Get one LSH band of a history's MinHash signature.
+     * 
+     * @param currentList
+     * @param band        1 to LSH_BANDS
+     * @return a hash of band 'band', or 0 if the history is too short.
+     */
+    public long getLshBand(byte[] currentList, int band) {
+
+        if (currentList == null || currentList.length < LSH_MIN_ENTRIES * ENTRY_BYTES || band < 1
+                || band > LSH_BANDS) {
+            return 0;
+        }
+
+        // Different bands never share values, so a value identifies its band
+        long bandHash = mix(band);
+
+        for (int row = 0; row < LSH_ROWS; row++) {
+
+            final long seed = mix(((long) band << 32) | row);
+            long minHash = Long.MAX_VALUE;
+
+            for (int i = ENTRY_BYTES; i + ENTRY_BYTES <= currentList.length; i += ENTRY_BYTES) {
+
+                final long move = (getCellId(currentList, i - ENTRY_BYTES) << 32) | getCellId(currentList, i);
+                minHash = Math.min(minHash, mix(move ^ seed));
+            }
+
+            bandHash = mix(bandHash ^ minHash);
+        }
+
+        // 0 means 'no band'
+        return bandHash == 0 ? 1 : bandHash;
+    }
+
+    /**
+     * Add a new entry to a list, dropping the oldest entry if the list is full.
+     * 
+     * @param currentList
+     * @param cellId
+     * @param eventTime
+     * @return A new list reporting a move to 'cellId' at 'eventTime'.
+     */
+    public byte[] addNewCell(byte[] currentList, long cellId, TimestampType eventTime) {
+
+        final int currentLength = currentList == null ? 0 : currentList.length;
+        final int keptBytes = Math.min(currentLength, (MAX_LIST_LENGTH - 1) * ENTRY_BYTES);
+
+        byte[] newList = new byte[keptBytes + ENTRY_BYTES];
+
+        if (keptBytes > 0) {
+            System.arraycopy(currentList, currentLength - keptBytes, newList, 0, keptBytes);
+        }
+
+        final int minute = (int) Math.floorMod(eventTime.getTime() / MINUTE_MICROS, 60L);
+
+        newList[keptBytes] = (byte) (cellId >>> 24);
+        newList[keptBytes + 1] = (byte) (cellId >>> 16);
+        newList[keptBytes + 2] = (byte) (cellId >>> 8);
+        newList[keptBytes + 3] = (byte) cellId;
+        newList[keptBytes + 4] = (byte) minute;
+
+        return newList;
+    }
+
+    /**
+     * @param currentList
+     * @return 'currentList' as a : delimited list of cells and minutes, for
+     *         people to read.
+     */
+    public String formatHistory(byte[] currentList) {
+
+        if (currentList == null) {
+            return "";
+        }
+
+        StringBuilder b = new StringBuilder();
+
+        for (int i = 0; i + ENTRY_BYTES <= currentList.length; i += ENTRY_BYTES) {
+
+            final long cellId = getCellId(currentList, i);
+            final int minute = currentList[i + 4];
+
+            b.append(cellId);
+            b.append(',');
+
+            if (minute < 10) {
+                b.append('0');
+            }
+
+            b.append(minute);
+            b.append(':');
+        }
+
+        return b.toString();
+    }
+
+    /**
+     * @param currentList
+     * @param offset      where an entry starts
+     * @return the cell ID in the entry at 'offset'
+     */
+    private static long getCellId(byte[] currentList, int offset) {
+        return ((currentList[offset] & 0xFFL) << 24) | ((currentList[offset + 1] & 0xFFL) << 16)
+                | ((currentList[offset + 2] & 0xFFL) << 8) | (currentList[offset + 3] & 0xFFL);
+    }
+
+    /**
+     * @param value
+     * @return 'value' with its bits thoroughly mixed
+     */
+    private static long mix(long value) {
+
+        long mixed = value;
+
+        mixed ^= mixed >>> 33;
+        mixed *= 0xff51afd7ed558ccdL;
+        mixed ^= mixed >>> 33;
+        mixed *= 0xc4ceb9fe1a85ec53L;
+        mixed ^= mixed >>> 33;
+
+        return mixed;
+    }
+
+}
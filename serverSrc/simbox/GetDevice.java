@@ -30,7 +30,9 @@ import org.voltdb.VoltTable;
 import org.voltdb.types.TimestampType;
 
 /**
- * Create a new device in our system.
+ * Get a device and everything we know about it. The last table is the
+ * device's callee summary for the last day, which is what ReportDeviceActivity
+ * uses to calculate its top/bottom N ratio.
  *
  */
 public class GetDevice extends VoltProcedure {
@@ -38,7 +40,8 @@ public class GetDevice extends VoltProcedure {
     // @formatter:off
 
 	public static final SQLStmt getDevice = new SQLStmt(
-			"SELECT * FROM device_table WHERE device_id = ?;");
+			"SELECT d.*, format_cell_history(d.cell_history) cell_history_text "
+			+ "FROM device_table d WHERE d.device_id = ?;");
 
     public static final SQLStmt getDeviceCellHistory = new SQLStmt(
             "SELECT * FROM device_cell_history WHERE device_id = ? ORDER BY from_timestamp;");
@@ -58,6 +61,16 @@ public class GetDevice extends VoltProcedure {
             + "GROUP BY other_number "
             + "ORDER BY count(*) DESC ; ");
 
+    public static final SQLStmt getCalleeSummaries = new SQLStmt(
+            "SELECT callee_summary "
+            + "FROM device_call_buckets "
+            + "WHERE device_id = ? "
+            + "AND   bucket_start >= DATEADD(HOUR, -1 * ?, NOW) "
+            + "AND   callee_summary IS NOT NULL; ");
+
+    public static final SQLStmt getCallGraphCommunities = new SQLStmt(
+            "SELECT * FROM call_graph_community_members WHERE device_id = ? ORDER BY event_date;");
+
 
  	// @formatter:on
 
@@ -74,7 +87,15 @@ public class GetDevice extends VoltProcedure {
         voltQueueSQL(getIncomingCallHistory, deviceId);
         voltQueueSQL(getOutgoingCallHistory, deviceId);
         voltQueueSQL(getDeviceOutgoingHistoryByDevice, deviceId,24);
+        voltQueueSQL(getCallGraphCommunities, deviceId);
+        voltQueueSQL(getCalleeSummaries, deviceId, 24);
+
+        VoltTable[] results = voltExecuteSQL(true);
+
+        // Replace the raw summaries with the merged one
+        results[results.length - 1] = AbstractReportDeviceActivity.mergeCalleeSummaries(results[results.length - 1])
+                .toVoltTable();
 
-        return voltExecuteSQL(true);
+        return results;
     }
 }
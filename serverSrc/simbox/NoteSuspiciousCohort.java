@@ -1,5 +1,6 @@
 package simbox;
 
+
 /* This file is part of VoltDB.
  * Copyright (C) 2008-2021 VoltDB Inc.
  *
@@ -24,70 +25,83 @@ package simbox;
  */
 
 import org.voltdb.SQLStmt;
-import org.voltdb.VoltProcedure;
 import org.voltdb.VoltTable;
+import org.voltdb.types.TimestampType;
 
 /**
- * Procedure to find groups of devices that all move cell at the same time
+ * Procedure to record groups of devices that all move cell at the same time
  * repeatedly, which is suspicious.
- * 
+ * <p>
+ * This is a DIRECTED procedure. The generator runs it in every partition at
+ * once using callAllPartitionProcedure, and each partition records its own
+ * members, so we never hold up the whole database.
+ * <p>
+ * Devices that weren't already members at this detection level are also
+ * reported in suspicion_alerts.
  *
  */
-public class NoteSuspiciousCohort extends VoltProcedure {
-
-    // @formatter:off
-
-
-    public static final SQLStmt getSuspiciousDevices = new SQLStmt(
-            "SELECT device_id, current_cell_id "
-            + "FROM device_table "
-            + "WHERE cell_history_as_string_last6  = ? "
-            + "ORDER BY device_id;");
-
-    public static final SQLStmt createNewCohort = new SQLStmt(
-            "UPSERT INTO cell_suspicious_cohorts "
-            + "VALUES "
-            + "(?,NOW);");
-
-    public static final SQLStmt createNewCohortMember = new SQLStmt(
-            "UPSERT INTO cell_suspicious_cohort_members "
-            + "VALUES "
-            + "(?,NOW,?);");
-    
-  	// @formatter:on
+public class NoteSuspiciousCohort extends AbstractCohortProcedure {
 
     /**
+     * @param detectionLevel     3 if 'cellHistoryBusiest' are last 3 cell
+     *                           signatures, 6 if they're last 6 cell
+     *                           signatures, 12 if they're LSH bands
      * @param cellHistoryBusiest a list of cell movement signatures which lots of
-     *                           devices share
-     * @return
+     *                           devices share, as hashes
+     * @return how many cohort members we recorded in this partition
      * @throws VoltAbortException
      */
-    public VoltTable[] run(String[] cellHistoryBusiest) throws VoltAbortException {
+    public long run(int detectionLevel, long[] cellHistoryBusiest) throws VoltAbortException {
+
+        final SQLStmt[] alertCohort;
+        final SQLStmt[] recordCohort;
+
+        if (detectionLevel == 3) {
+            alertCohort = new SQLStmt[] { alertCohort3 };
+            recordCohort = new SQLStmt[] { recordCohort3 };
+        } else if (detectionLevel == 6) {
+            alertCohort = new SQLStmt[] { alertCohort6 };
+            recordCohort = new SQLStmt[] { recordCohort6 };
+        } else if (detectionLevel == 12) {
+            // We don't know which band a value came from, but only one of them
+            // can match
+            alertCohort = new SQLStmt[] { alertFuzzyCohort1, alertFuzzyCohort2, alertFuzzyCohort3,
+                    alertFuzzyCohort4 };
+            recordCohort = new SQLStmt[] { recordFuzzyCohort1, recordFuzzyCohort2, recordFuzzyCohort3,
+                    recordFuzzyCohort4 };
+        } else {
+            throw new VoltAbortException("Detection level must be 3, 6 or 12, not " + detectionLevel);
+        }
 
-        for (int i = 0; i < cellHistoryBusiest.length; i++) {
-            // Get Devices...
-            voltQueueSQL(getSuspiciousDevices, cellHistoryBusiest[i]);
+        final int signaturesPerBatch = MAX_QUEUED_STATEMENTS / (recordCohort.length * 2);
 
-            VoltTable suspiciousDevices = voltExecuteSQL()[0];
+        // Same as ReportCellChange, so noting a cohort it has already found
+        // changes nothing
+        final TimestampType eventDate = getCohortEventDate();
 
-            // Record existence of cohort and members...
-            long cellId = Long.MIN_VALUE;
-            while (suspiciousDevices.advanceRow()) {
+        long membersRecorded = 0;
 
-                if (cellId == Long.MIN_VALUE) {
-                    cellId = suspiciousDevices.getLong("current_cell_id");
-                    voltQueueSQL(createNewCohort, cellId);
-                }
+        for (int i = 0; i < cellHistoryBusiest.length; i += signaturesPerBatch) {
+
+            final int end = Math.min(cellHistoryBusiest.length, i + signaturesPerBatch);
 
-                long deviceId = suspiciousDevices.getLong("device_id");
-                voltQueueSQL(createNewCohortMember, cellId, deviceId);
+            for (int j = i; j < end; j++) {
+                // Alert first, so we can tell who wasn't a member already
+                for (int k = 0; k < recordCohort.length; k++) {
+                    voltQueueSQL(alertCohort[k], eventDate, cellHistoryBusiest[j]);
+                    voltQueueSQL(recordCohort[k], eventDate, cellHistoryBusiest[j]);
+                }
             }
 
-            voltExecuteSQL();
+            VoltTable[] results = voltExecuteSQL(end == cellHistoryBusiest.length);
 
+            // Every other result is from recordCohort
+            for (int j = 1; j < results.length; j += 2) {
+                membersRecorded += results[j].asScalarLong();
+            }
         }
 
-        return voltExecuteSQL(true);
+        return membersRecorded;
     }
 
 }
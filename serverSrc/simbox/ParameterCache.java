@@ -0,0 +1,128 @@
+package simbox;
+
+
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+import java.util.HashMap;
+
+import org.voltdb.VoltTable;
+
+/**
+ * Keeps a copy of simbox_parameters in a procedure instance, so the procedure
+ * doesn't need to look each parameter up every time it runs. Each partition
+ * has its own procedure instance, and therefore its own cache.
+ * <p>
+ * UpdateParameter increments the version in simbox_parameters_version every
+ * time it changes a parameter. Procedures read the version along with
+ * whatever else they need, and only reload the parameters when it has changed.
+ * <p>
+ * UpdateParameter, or anything else that increments the version in the same
+ * transaction, is the only supported way to change parameters. Reloading is
+ * based only on what's in the database, so a replica that has been running
+ * for days and one that has just rejoined, or a command log replay, always
+ * hold the same parameters. A change that doesn't increment the version is
+ * ignored until one that does.
+ *
+ */
+public class ParameterCache {
+
+    /**
+     * Version we've never seen
+     */
+    private static final long NO_VERSION = Long.MIN_VALUE;
+
+    /**
+     * Parameter values, by name
+     */
+    private final HashMap<String, Long> parameters = new HashMap<String, Long>();
+
+    /**
+     * Version of the parameters we hold
+     */
+    private long version = NO_VERSION;
+
+    /**
+     * Latest version we've been told about. 0 if there isn't one.
+     */
+    private long latestVersion = 0;
+
+    /**
+     * See if we need to reload our parameters.
+     * 
+     * @param versionTable result of a query against simbox_parameters_version
+     * @return true if our parameters are out of date
+     */
+    public boolean needsReload(VoltTable versionTable) {
+
+        latestVersion = 0;
+
+        if (versionTable.advanceRow()) {
+            latestVersion = versionTable.getLong("parameter_version");
+        }
+
+        return version == NO_VERSION || latestVersion != version;
+    }
+
+    /**
+     * Replace our parameters.
+     * 
+     * @param parameterTable result of a query against simbox_parameters
+     */
+    public void load(VoltTable parameterTable) {
+
+        parameters.clear();
+
+        while (parameterTable.advanceRow()) {
+            parameters.put(parameterTable.getString("parameter_name"), parameterTable.getLong("parameter_value"));
+        }
+
+        version = latestVersion;
+    }
+
+    /**
+     * Get a parameter or its default value
+     * 
+     * @param parameterName
+     * @param defaultValue
+     * @return a parameter or its default value
+     */
+    public long get(String parameterName, long defaultValue) {
+
+        Long value = parameters.get(parameterName);
+
+        if (value == null) {
+            return defaultValue;
+        }
+
+        return value.longValue();
+    }
+
+    /**
+     * @return version of the parameters we hold
+     */
+    public long getVersion() {
+        return version;
+    }
+
+}
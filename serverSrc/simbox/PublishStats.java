@@ -0,0 +1,84 @@
+package simbox;
+
+
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+import org.voltdb.SQLStmt;
+import org.voltdb.VoltTable;
+
+/**
+ * Replace all the statistics for one publisher (i.e. one generator) in a
+ * single call. simbox_stats is partitioned by publisher, so this is a single
+ * partition write instead of one replicated write per statistic.
+ * <p>
+ * Statistics we aren't sent this time are set to zero.
+ *
+ */
+public class PublishStats extends AbstractSimboxProcedure {
+
+    // @formatter:off
+
+    public static final SQLStmt zeroStats = new SQLStmt(
+            "UPDATE simbox_stats SET stat_value = 0 WHERE publisher_id = ?;");
+
+    public static final SQLStmt upsertStat = new SQLStmt(
+            "UPSERT INTO simbox_stats "
+            + "(publisher_id, stat_name, stat_value) "
+            + "VALUES "
+            + "(?,?,?);");
+
+    // @formatter:on
+
+    /**
+     * Publish statistics
+     * 
+     * @param publisherId
+     * @param statNames
+     * @param statValues  one for each of statNames
+     * @return
+     * @throws VoltAbortException
+     */
+    public VoltTable[] run(long publisherId, String[] statNames, long[] statValues) throws VoltAbortException {
+
+        if (statNames.length != statValues.length) {
+            throw new VoltAbortException("Parameter arrays have inconsistent lengths");
+        }
+
+        voltQueueSQL(zeroStats, publisherId);
+        int queuedStatements = 1;
+
+        for (int i = 0; i < statNames.length; i++) {
+
+            if (queuedStatements >= MAX_QUEUED_STATEMENTS) {
+                voltExecuteSQL();
+                queuedStatements = 0;
+            }
+
+            voltQueueSQL(upsertStat, publisherId, statNames[i], statValues[i]);
+            queuedStatements++;
+        }
+
+        return voltExecuteSQL(true);
+    }
+}
@@ -0,0 +1,204 @@
+package simbox;
+
+
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+import java.util.Arrays;
+
+import org.voltdb.SQLStmt;
+import org.voltdb.VoltProcedure;
+import org.voltdb.VoltTable;
+import org.voltdb.types.TimestampType;
+
+/**
+ * Delete history that's older than HISTORY_RETENTION_HOURS, a few rows at a
+ * time. This is a DIRECTED procedure, run in every partition by the
+ * purge_history task, so each call is a single partition transaction.
+ * <p>
+ * Each round deletes up to PURGE_BATCH_SIZE rows of each kind. While any kind
+ * still has more to delete we go round again, up to PURGE_MAX_ROUNDS times, so
+ * a backlog is cleared quickly but no call holds up the partition for long.
+ * Rounds are counted rather than timed, so every replica does the same work.
+ * GetPurgeBacklog shows how far behind we are.
+ * <p>
+ * If ARCHIVE_EXPIRED_HISTORY is 1 expired call and cell history is copied to
+ * the call_history_archive and cell_history_archive streams before it's
+ * deleted.
+ * <p>
+ * Open cell history rows (to_timestamp = MAX_VALID_TIMESTAMP()) are never
+ * purged, no matter how old they are.
+ *
+ */
+public class PurgeHistory extends VoltProcedure {
+
+    // @formatter:off
+
+    public static final SQLStmt getParameterVersion = new SQLStmt(
+            "SELECT parameter_version FROM simbox_parameters_version;");
+
+    public static final SQLStmt getParameters = new SQLStmt(
+            "SELECT parameter_name, parameter_value FROM simbox_parameters;");
+
+    public static final SQLStmt archiveIncomingCalls = new SQLStmt(
+            "INSERT INTO call_history_archive "
+            + "(device_id, in_or_out, other_number, cell_id, start_time, end_time, duration, status_code) "
+            + "SELECT device_id, 'I', other_number, cell_id, start_time, end_time, duration, status_code "
+            + "FROM device_incoming_call_history "
+            + "WHERE start_time < ? "
+            + "ORDER BY start_time, device_id LIMIT ?;");
+
+    public static final SQLStmt archiveOutgoingCalls = new SQLStmt(
+            "INSERT INTO call_history_archive "
+            + "(device_id, in_or_out, other_number, cell_id, start_time, end_time, duration, status_code) "
+            + "SELECT device_id, 'O', other_number, cell_id, start_time, end_time, duration, status_code "
+            + "FROM device_outgoing_call_history "
+            + "WHERE start_time < ? "
+            + "ORDER BY start_time, device_id LIMIT ?;");
+
+    public static final SQLStmt archiveCellHistory = new SQLStmt(
+            "INSERT INTO cell_history_archive "
+            + "(device_id, current_cell_id, from_timestamp, to_timestamp"
+            + ", incoming_call_count, outgoing_call_count, incoming_call_duration, outgoing_call_duration"
+            + ", suspicious_because) "
+            + "SELECT device_id, current_cell_id, from_timestamp, to_timestamp"
+            + ", incoming_call_count, outgoing_call_count, incoming_call_duration, outgoing_call_duration"
+            + ", suspicious_because "
+            + "FROM device_cell_history "
+            + "WHERE to_timestamp < ? "
+            + "ORDER BY to_timestamp, device_id, from_timestamp LIMIT ?;");
+
+    public static final SQLStmt purgeIncomingCalls = new SQLStmt(
+            "DELETE FROM device_incoming_call_history "
+            + "WHERE start_time < ? "
+            + "ORDER BY start_time, device_id LIMIT ?;");
+
+    public static final SQLStmt purgeOutgoingCalls = new SQLStmt(
+            "DELETE FROM device_outgoing_call_history "
+            + "WHERE start_time < ? "
+            + "ORDER BY start_time, device_id LIMIT ?;");
+
+    public static final SQLStmt purgeCellHistory = new SQLStmt(
+            "DELETE FROM device_cell_history "
+            + "WHERE to_timestamp < ? "
+            + "ORDER BY to_timestamp, device_id, from_timestamp LIMIT ?;");
+
+    public static final SQLStmt purgeCallBuckets = new SQLStmt(
+            "DELETE FROM device_call_buckets "
+            + "WHERE bucket_start < ? "
+            + "ORDER BY bucket_start, device_id LIMIT ?;");
+
+    // @formatter:on
+
+    /**
+     * What we archive for each kind of history, or null if it isn't archived
+     */
+    private static final SQLStmt[] ARCHIVE_STATEMENTS = { archiveIncomingCalls, archiveOutgoingCalls,
+            archiveCellHistory, null };
+
+    /**
+     * What we delete for each kind of history
+     */
+    private static final SQLStmt[] PURGE_STATEMENTS = { purgeIncomingCalls, purgeOutgoingCalls, purgeCellHistory,
+            purgeCallBuckets };
+
+    /**
+     * Our copy of simbox_parameters
+     */
+    private final ParameterCache parameters = new ParameterCache();
+
+    /**
+     * Purge old history in this partition.
+     * 
+     * @return how many rows we deleted
+     * @throws VoltAbortException
+     */
+    public long run() throws VoltAbortException {
+
+        final long transactionMs = getTransactionTime().getTime();
+
+        voltQueueSQL(getParameterVersion);
+
+        if (parameters.needsReload(voltExecuteSQL()[0])) {
+            voltQueueSQL(getParameters);
+            parameters.load(voltExecuteSQL()[0]);
+        }
+
+        final long retentionHours = parameters.get("HISTORY_RETENTION_HOURS", 25);
+        final long batchSize = parameters.get("PURGE_BATCH_SIZE", 500);
+        final long maxRounds = parameters.get("PURGE_MAX_ROUNDS", 10);
+        final boolean archive = parameters.get("ARCHIVE_EXPIRED_HISTORY", 0) == 1;
+
+        if (retentionHours <= 0 || batchSize <= 0) {
+            return 0;
+        }
+
+        final TimestampType cutoff = new TimestampType((transactionMs - (retentionHours * 60 * 60 * 1000)) * 1000);
+
+        // Kinds of history that may have more to delete
+        boolean[] behind = new boolean[PURGE_STATEMENTS.length];
+        Arrays.fill(behind, true);
+
+        long rowsPurged = 0;
+        boolean anyBehind = true;
+
+        for (int round = 0; round < Math.max(1, maxRounds) && anyBehind; round++) {
+
+            for (int i = 0; i < PURGE_STATEMENTS.length; i++) {
+                if (behind[i]) {
+
+                    // Buckets are only used for scoring, so are never
+                    // archived.
+                    if (archive && ARCHIVE_STATEMENTS[i] != null) {
+                        voltQueueSQL(ARCHIVE_STATEMENTS[i], cutoff, batchSize);
+                    }
+
+                    // This deletes exactly the rows we've just archived, as it
+                    // uses the same WHERE and ORDER BY.
+                    voltQueueSQL(PURGE_STATEMENTS[i], cutoff, batchSize);
+                }
+            }
+
+            VoltTable[] results = voltExecuteSQL();
+            int result = 0;
+            anyBehind = false;
+
+            for (int i = 0; i < PURGE_STATEMENTS.length; i++) {
+                if (behind[i]) {
+
+                    if (archive && ARCHIVE_STATEMENTS[i] != null) {
+                        result++;
+                    }
+
+                    final long deleted = results[result++].asScalarLong();
+                    rowsPurged += deleted;
+
+                    behind[i] = deleted >= batchSize;
+                    anyBehind |= behind[i];
+                }
+            }
+        }
+
+        return rowsPurged;
+    }
+}
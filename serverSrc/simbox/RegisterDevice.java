@@ -45,11 +45,13 @@ public class RegisterDevice extends VoltProcedure {
     public static final SQLStmt createNewDevice = new SQLStmt(
             "INSERT INTO device_table "
             + "(device_id,current_cell_id,first_seen,last_seen"
-            + ",cell_history_as_string,cell_history_as_string_last3,cell_history_as_string_last6"
+            + ",cell_history,cell_history_last3_hash,cell_history_last6_hash"
             + ",suspicious_because,suspicious_value)"
             + "VALUES"
             + "(?,?,?,NOW"
-            + ",add_new_cell(null, ?,NOW),add_new_cell(null, ?,NOW),add_new_cell(null, ?,NOW) "
+            + ",add_new_cell(null, ?,NOW)"
+            + ",get_last_n_cells_hash(add_new_cell(null, ?,NOW),3)"
+            + ",get_last_n_cells_hash(add_new_cell(null, ?,NOW),6) "
             + ",null,null);");
 
     public static final SQLStmt createNewDeviceCellHist = new SQLStmt(
@@ -71,6 +73,9 @@ public class RegisterDevice extends VoltProcedure {
     public static final SQLStmt removeOutgoingCallHistory = new SQLStmt(
             "DELETE FROM device_outgoing_call_history WHERE device_id = ?;");
 
+    public static final SQLStmt removeCallBuckets = new SQLStmt(
+            "DELETE FROM device_call_buckets WHERE device_id = ?;");
+
  	// @formatter:on
 
     /**
@@ -102,6 +107,7 @@ public class RegisterDevice extends VoltProcedure {
             voltQueueSQL(removeDeviceCellHistory, deviceId);
             voltQueueSQL(removeIncomingCallHistory, deviceId);
             voltQueueSQL(removeOutgoingCallHistory, deviceId);
+            voltQueueSQL(removeCallBuckets, deviceId);
         }
 
         voltQueueSQL(createNewDevice, deviceId, cellId, createDate, cellId, cellId, cellId);
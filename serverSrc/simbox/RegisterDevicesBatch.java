@@ -0,0 +1,220 @@
+package simbox;
+
+
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+import java.util.HashSet;
+
+import org.voltdb.SQLStmt;
+import org.voltdb.VoltTable;
+import org.voltdb.types.TimestampType;
+
+/**
+ * Create many devices in one partition, along with their first few cell moves.
+ * The end result is the same as calling RegisterDevice for each device and
+ * then ReportCellChange for each move, but we only need one round trip per
+ * batch instead of one per event.
+ * <p>
+ * All the events happen in the same transaction, so they share a transaction
+ * time. Each successive event for a device is 1 microsecond later than the
+ * previous one, so device_cell_history still has one row per event.
+ * <p>
+ * All the devices must live in the same partition as 'partitionKey'.
+ *
+ */
+public class RegisterDevicesBatch extends AbstractSimboxProcedure {
+
+    // @formatter:off
+
+    public static final SQLStmt getDevices = new SQLStmt(
+            "SELECT device_id FROM device_table WHERE device_id IN ?;");
+
+    public static final SQLStmt getCells = new SQLStmt(
+            "SELECT cell_id FROM cell_table WHERE cell_id IN ?;");
+
+    public static final SQLStmt createNewDevice = new SQLStmt(
+            "INSERT INTO device_table "
+            + "(device_id,current_cell_id,first_seen,last_seen"
+            + ",cell_history,cell_history_last3_hash,cell_history_last6_hash"
+            + ",lsh_band_1,lsh_band_2,lsh_band_3,lsh_band_4"
+            + ",suspicious_because,suspicious_value)"
+            + "VALUES"
+            + "(?,?,?,NOW"
+            + ",?,?,? "
+            + ",?,?,?,? "
+            + ",null,null);");
+
+    public static final SQLStmt createOldDeviceCellHist = new SQLStmt(
+            "INSERT INTO device_cell_history "
+            + "(device_id,current_cell_id,from_timestamp"
+            + ",to_timestamp)"
+            + "VALUES"
+            + "(?,?,?,?);");
+
+    public static final SQLStmt createNewDeviceCellHist = new SQLStmt(
+            "INSERT INTO device_cell_history "
+            + "(device_id,current_cell_id,from_timestamp"
+            + ",to_timestamp)"
+            + "VALUES"
+            + "(?,?,?,MAX_VALID_TIMESTAMP());");
+
+    public static final SQLStmt removeDevice = new SQLStmt(
+            "DELETE FROM device_table WHERE device_id = ?;");
+
+    public static final SQLStmt removeDeviceCellHistory = new SQLStmt(
+            "DELETE FROM device_cell_history WHERE device_id = ?;");
+
+    public static final SQLStmt removeIncomingCallHistory = new SQLStmt(
+            "DELETE FROM device_incoming_call_history WHERE device_id = ?;");
+
+    public static final SQLStmt removeOutgoingCallHistory = new SQLStmt(
+            "DELETE FROM device_outgoing_call_history WHERE device_id = ?;");
+
+    public static final SQLStmt removeCallBuckets = new SQLStmt(
+            "DELETE FROM device_call_buckets WHERE device_id = ?;");
+
+    // @formatter:on
+
+    /**
+     * Does the same work as the add_new_cell, get_last_n_cells_hash and get_lsh_band
+     * functions
+     */
+    private final CellHistoryWrangler wrangler = new CellHistoryWrangler();
+
+    /**
+     * How many statements we've queued but not run
+     */
+    private int queuedStatements = 0;
+
+    /**
+     * Register a batch of devices
+     * 
+     * @param partitionKey   a device ID in the partition we run in
+     * @param deviceIds
+     * @param cellIds        cell each device starts in
+     * @param createTimesMs  when each device was created
+     * @param moveCellIds    'movesPerDevice' cells for each device, in order
+     * @param movesPerDevice
+     * @return
+     * @throws VoltAbortException
+     */
+    public VoltTable[] run(long partitionKey, long[] deviceIds, long[] cellIds, long[] createTimesMs,
+            long[] moveCellIds, int movesPerDevice) throws VoltAbortException {
+
+        queuedStatements = 0;
+
+        if (cellIds.length != deviceIds.length || createTimesMs.length != deviceIds.length
+                || moveCellIds.length != deviceIds.length * movesPerDevice) {
+            throw new VoltAbortException("Parameter arrays have inconsistent lengths");
+        }
+
+        // Sanity Check: Are these real cells?
+        HashSet<Long> distinctCells = new HashSet<Long>();
+
+        for (int i = 0; i < cellIds.length; i++) {
+            distinctCells.add(cellIds[i]);
+        }
+
+        for (int i = 0; i < moveCellIds.length; i++) {
+            distinctCells.add(moveCellIds[i]);
+        }
+
+        long[] distinctCellIds = new long[distinctCells.size()];
+        int cellCount = 0;
+
+        for (Long cellId : distinctCells) {
+            distinctCellIds[cellCount++] = cellId;
+        }
+
+        voltQueueSQL(getCells, (Object) distinctCellIds);
+        voltQueueSQL(getDevices, (Object) deviceIds);
+
+        VoltTable[] cellsAndDevices = voltExecuteSQL();
+
+        if (cellsAndDevices[0].getRowCount() != distinctCellIds.length) {
+            throw new VoltAbortException("One or more of cells " + distinctCells + " does not exist");
+        }
+
+        // Get rid of any devices we already know about...
+        while (cellsAndDevices[1].advanceRow()) {
+
+            long deviceId = cellsAndDevices[1].getLong("device_id");
+
+            queueSQL(removeDevice, deviceId);
+            queueSQL(removeDeviceCellHistory, deviceId);
+            queueSQL(removeIncomingCallHistory, deviceId);
+            queueSQL(removeOutgoingCallHistory, deviceId);
+            queueSQL(removeCallBuckets, deviceId);
+        }
+
+        final long txnTimeMicros = getTransactionTime().getTime() * 1000;
+
+        for (int i = 0; i < deviceIds.length; i++) {
+
+            // What RegisterDevice would do...
+            long currentCellId = cellIds[i];
+            TimestampType eventTime = new TimestampType(txnTimeMicros);
+            byte[] cellHistory = wrangler.addNewCell(null, currentCellId, eventTime);
+
+            // And then ReportCellChange for each move...
+            for (int j = 0; j < movesPerDevice; j++) {
+
+                TimestampType nextEventTime = new TimestampType(txnTimeMicros + j + 1);
+
+                queueSQL(createOldDeviceCellHist, deviceIds[i], currentCellId, eventTime,
+                        new TimestampType(txnTimeMicros + j));
+
+                currentCellId = moveCellIds[(i * movesPerDevice) + j];
+                eventTime = nextEventTime;
+                cellHistory = wrangler.addNewCell(cellHistory, currentCellId, eventTime);
+            }
+
+            queueSQL(createNewDeviceCellHist, deviceIds[i], currentCellId, eventTime);
+            queueSQL(createNewDevice, deviceIds[i], currentCellId, new TimestampType(createTimesMs[i] * 1000),
+                    cellHistory, wrangler.getLastNHash(cellHistory, 3), wrangler.getLastNHash(cellHistory, 6),
+                    wrangler.getLshBand(cellHistory, 1), wrangler.getLshBand(cellHistory, 2),
+                    wrangler.getLshBand(cellHistory, 3), wrangler.getLshBand(cellHistory, 4));
+
+        }
+
+        return voltExecuteSQL(true);
+    }
+
+    /**
+     * Queue a statement, running what we have first if the queue is full.
+     * 
+     * @param stmt
+     * @param args
+     */
+    private void queueSQL(SQLStmt stmt, Object... args) {
+
+        if (queuedStatements >= MAX_QUEUED_STATEMENTS) {
+            voltExecuteSQL();
+            queuedStatements = 0;
+        }
+
+        voltQueueSQL(stmt, args);
+        queuedStatements++;
+    }
+}
@@ -24,50 +24,24 @@ package simbox;
  */
 
 import org.voltdb.SQLStmt;
-import org.voltdb.VoltProcedure;
 import org.voltdb.VoltTable;
+import org.voltdb.types.TimestampType;
 
 /**
  * Report that a device has moved cells. This also updates the columns
- * cell_history_as_string_last3 and cell_history_as_string_last6 that are
+ * cell_history_last3_hash and cell_history_last6_hash that are
  * used to spot cohorts of devices that move at the same time.
  *
  */
-public class ReportCellChange extends VoltProcedure {
+public class ReportCellChange extends AbstractReportCellChange {
 
     // @formatter:off
 
 	public static final SQLStmt getDevice = new SQLStmt(
-			"SELECT cell_history_as_string FROM device_table WHERE device_id = ?;");
+			"SELECT device_id FROM device_table WHERE device_id = ?;");
 
 	public static final SQLStmt getCell = new SQLStmt("SELECT * FROM cell_table WHERE cell_id = ?;");
 
-    public static final SQLStmt updateCurrentCell1 = new SQLStmt(
-            "UPDATE device_table "
-            + "SET current_cell_id = ? "
-            + "  , cell_history_as_string = add_new_cell(cell_history_as_string, ?,?) "
-            + "WHERE device_id = ?;");
-
-    public static final SQLStmt updateCurrentCell2 = new SQLStmt(
-            "UPDATE device_table "
-            + "SET cell_history_as_string_last3 = get_last_n_cells(cell_history_as_string,3) "
-            + "  , cell_history_as_string_last6 = get_last_n_cells(cell_history_as_string,6) "
-            + "  , last_seen = NOW "
-            + "WHERE device_id = ?;");
-    
-    public static final SQLStmt finishCurrentCellHist = new SQLStmt(
-            "UPDATE device_cell_history "
-            + "SET to_timestamp = DATEADD(MICROSECOND, -1, NOW) "
-            + "WHERE device_id = ? "
-            + "AND   to_timestamp = MAX_VALID_TIMESTAMP();");
-
-    public static final SQLStmt createNewDeviceCellHist = new SQLStmt(
-            "INSERT INTO device_cell_history "
-            + "(device_id,current_cell_id,from_timestamp"
-            + ",to_timestamp)"
-            + "VALUES"
-            + "(?,?,NOW,MAX_VALID_TIMESTAMP());");
-
 
 	// @formatter:on
 
@@ -76,6 +50,7 @@ public class ReportCellChange extends VoltProcedure {
         // See if we know about this user and cell...
         voltQueueSQL(getDevice, deviceId);
         voltQueueSQL(getCell, cellId);
+        voltQueueSQL(getParameterVersion);
 
         VoltTable[] deviceAndCell = voltExecuteSQL();
 
@@ -89,10 +64,12 @@ public class ReportCellChange extends VoltProcedure {
             throw new VoltAbortException("Cell " + cellId + " does not exist");
         }
 
-        voltQueueSQL(updateCurrentCell1, cellId, cellId, this.getTransactionTime(), deviceId);
-        voltQueueSQL(updateCurrentCell2, deviceId);
-        voltQueueSQL(finishCurrentCellHist, deviceId);
-        voltQueueSQL(createNewDeviceCellHist, deviceId,cellId);
+        checkParameters(deviceAndCell[2]);
+
+        queueCellChange(deviceId, cellId, new TimestampType(this.getTransactionTime()));
+        voltExecuteSQL();
+
+        recordCohorts(new long[] { deviceId });
 
         return voltExecuteSQL(true);
     }
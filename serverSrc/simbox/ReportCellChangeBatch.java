@@ -0,0 +1,136 @@
+package simbox;
+
+
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+import java.util.HashSet;
+
+import org.voltdb.SQLStmt;
+import org.voltdb.VoltTable;
+import org.voltdb.types.TimestampType;
+
+/**
+ * Report that many devices in one partition have moved cells. The end result
+ * is the same as calling ReportCellChange for each move, in order, but we
+ * only need one transaction for the whole batch.
+ * <p>
+ * All the moves happen in the same transaction, so they share a transaction
+ * time. Each successive move is 1 microsecond later than the previous one, so
+ * device_cell_history still has one row per move even if a device moves more
+ * than once.
+ * <p>
+ * If any device or cell doesn't exist the whole batch is rejected. All the
+ * devices must live in the same partition as 'partitionKey'.
+ *
+ */
+public class ReportCellChangeBatch extends AbstractReportCellChange {
+
+    // @formatter:off
+
+    public static final SQLStmt getDevices = new SQLStmt(
+            "SELECT device_id FROM device_table WHERE device_id IN ?;");
+
+    public static final SQLStmt getCells = new SQLStmt(
+            "SELECT cell_id FROM cell_table WHERE cell_id IN ?;");
+
+    // @formatter:on
+
+    /**
+     * Report a batch of cell moves
+     * 
+     * @param partitionKey a device ID in the partition we run in
+     * @param deviceIds
+     * @param cellIds      cell each device moved to
+     * @return
+     * @throws VoltAbortException
+     */
+    public VoltTable[] run(long partitionKey, long[] deviceIds, long[] cellIds) throws VoltAbortException {
+
+        if (cellIds.length != deviceIds.length) {
+            throw new VoltAbortException("Parameter arrays have inconsistent lengths");
+        }
+
+        // Sanity Check: Are these real devices and cells?
+        final long[] distinctDeviceIds = getDistinct(deviceIds);
+        final long[] distinctCellIds = getDistinct(cellIds);
+
+        voltQueueSQL(getDevices, (Object) distinctDeviceIds);
+        voltQueueSQL(getCells, (Object) distinctCellIds);
+        voltQueueSQL(getParameterVersion);
+
+        VoltTable[] devicesAndCells = voltExecuteSQL();
+
+        if (devicesAndCells[0].getRowCount() != distinctDeviceIds.length) {
+            throw new VoltAbortException("One or more of " + distinctDeviceIds.length + " devices does not exist");
+        }
+
+        if (devicesAndCells[1].getRowCount() != distinctCellIds.length) {
+            throw new VoltAbortException("One or more of " + distinctCellIds.length + " cells does not exist");
+        }
+
+        checkParameters(devicesAndCells[2]);
+
+        final long txnTimeMicros = getTransactionTime().getTime() * 1000;
+        int queuedStatements = 0;
+
+        for (int i = 0; i < deviceIds.length; i++) {
+
+            if (queuedStatements + STATEMENTS_PER_CELL_CHANGE > MAX_QUEUED_STATEMENTS) {
+                voltExecuteSQL();
+                queuedStatements = 0;
+            }
+
+            queueCellChange(deviceIds[i], cellIds[i], new TimestampType(txnTimeMicros + i));
+            queuedStatements += STATEMENTS_PER_CELL_CHANGE;
+        }
+
+        voltExecuteSQL();
+
+        recordCohorts(distinctDeviceIds);
+
+        return voltExecuteSQL(true);
+    }
+
+    /**
+     * @param ids
+     * @return each value in 'ids' once
+     */
+    private static long[] getDistinct(long[] ids) {
+
+        HashSet<Long> distinct = new HashSet<Long>();
+
+        for (int i = 0; i < ids.length; i++) {
+            distinct.add(ids[i]);
+        }
+
+        long[] distinctIds = new long[distinct.size()];
+        int count = 0;
+
+        for (Long id : distinct) {
+            distinctIds[count++] = id;
+        }
+
+        return distinctIds;
+    }
+}
@@ -0,0 +1,82 @@
+package simbox;
+
+
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+import org.voltdb.VoltTable;
+import org.voltdb.types.TimestampType;
+
+/**
+ * Report many calls made or received by devices in one partition. The end
+ * result is the same as calling ReportDeviceActivity for each call, in order,
+ * but we only need one transaction for the whole batch.
+ * <p>
+ * If any device doesn't exist the whole batch is rejected. All the devices
+ * must live in the same partition as 'partitionKey'.
+ *
+ */
+public class ReportDeviceActivityBatch extends AbstractReportDeviceActivity {
+
+    /**
+     * Report a batch of calls
+     * 
+     * @param partitionKey      a device ID in the partition we run in
+     * @param deviceIds
+     * @param startTimesMicros  when each call started
+     * @param durationsSeconds
+     * @param inOrOuts          "I" or "O" for each call
+     * @param otherNumbers
+     * @param statuses
+     * @return
+     * @throws VoltAbortException
+     */
+    public VoltTable[] run(long partitionKey, long[] deviceIds, long[] startTimesMicros, int[] durationsSeconds,
+            String[] inOrOuts, long[] otherNumbers, String[] statuses) throws VoltAbortException {
+
+        if (startTimesMicros.length != deviceIds.length || durationsSeconds.length != deviceIds.length
+                || inOrOuts.length != deviceIds.length || otherNumbers.length != deviceIds.length
+                || statuses.length != deviceIds.length) {
+            throw new VoltAbortException("Parameter arrays have inconsistent lengths");
+        }
+
+        for (int i = 0; i < deviceIds.length; i++) {
+
+            // Run whatever the previous call queued
+            if (i > 0) {
+                voltExecuteSQL();
+            }
+
+            TimestampType startTime = new TimestampType(startTimesMicros[i]);
+
+            updateDatabaseTablesForDevice(deviceIds[i], startTime, durationsSeconds[i], inOrOuts[i],
+                    otherNumbers[i], statuses[i]);
+
+            seeIfDeviceIsSuspect(deviceIds[i], startTime, durationsSeconds[i], inOrOuts[i], otherNumbers[i],
+                    statuses[i], i == 0);
+        }
+
+        return voltExecuteSQL(true);
+    }
+
+}
@@ -0,0 +1,161 @@
+package simbox;
+
+
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.voltdb.VoltTable;
+
+public class CalleeSummaryTest {
+
+    @Test
+    public void testRoundTrip() {
+
+        CalleeSummary summary = new CalleeSummary();
+        summary.add(5);
+        summary.add(7);
+        summary.add(5);
+
+        byte[] bytes = summary.toBytes();
+        CalleeSummary copy = CalleeSummary.fromBytes(bytes);
+
+        assertEquals(2, copy.size());
+        assertArrayEquals(bytes, copy.toBytes());
+
+        VoltTable table = copy.toVoltTable();
+        assertTrue(table.advanceRow());
+        assertEquals(5, table.getLong("other_number"));
+        assertEquals(2, table.getLong("how_many"));
+        assertEquals(0, table.getLong("max_error"));
+        assertTrue(table.advanceRow());
+        assertEquals(7, table.getLong("other_number"));
+        assertEquals(1, table.getLong("how_many"));
+
+        assertEquals(0, CalleeSummary.fromBytes(null).size());
+        assertEquals(0, CalleeSummary.fromBytes(new CalleeSummary().toBytes()).size());
+    }
+
+    @Test
+    public void testFullSummaryKeepsHeavyHitters() {
+
+        CalleeSummary summary = new CalleeSummary();
+
+        // A few numbers called a lot, among lots called once. The busy ones
+        // turn up before we're full, so their counts are exact.
+        for (int i = 0; i < 1000; i++) {
+            summary.add(1000 + i);
+            summary.add(1 + (i % 3));
+        }
+
+        assertEquals(CalleeSummary.CAPACITY, summary.size());
+        assertTrue(summary.toBytes().length <= CalleeSummary.MAX_BYTES);
+
+        VoltTable table = summary.toVoltTable();
+
+        assertTrue(table.advanceRow());
+        assertEquals(1, table.getLong("other_number"));
+        assertEquals(334, table.getLong("how_many"));
+
+        for (int i = 2; i <= 3; i++) {
+            assertTrue(table.advanceRow());
+            assertEquals(i, table.getLong("other_number"));
+            assertEquals(333, table.getLong("how_many"));
+            assertEquals(0, table.getLong("max_error"));
+        }
+
+        // Everything else was called once, so its count is at most its error
+        // plus one
+        while (table.advanceRow()) {
+            assertTrue(table.getLong("how_many") - table.getLong("max_error") <= 1);
+        }
+    }
+
+    @Test
+    public void testMerge() {
+
+        CalleeSummary first = new CalleeSummary();
+        CalleeSummary second = new CalleeSummary();
+
+        for (int i = 0; i < 10; i++) {
+            first.add(42);
+            second.add(42);
+            second.add(43);
+        }
+
+        first.add(44);
+
+        first.merge(second);
+
+        assertEquals(3, first.size());
+
+        VoltTable table = first.toVoltTable();
+        assertTrue(table.advanceRow());
+        assertEquals(42, table.getLong("other_number"));
+        assertEquals(20, table.getLong("how_many"));
+        assertTrue(table.advanceRow());
+        assertEquals(43, table.getLong("other_number"));
+        assertEquals(10, table.getLong("how_many"));
+        assertTrue(table.advanceRow());
+        assertEquals(44, table.getLong("other_number"));
+        assertEquals(1, table.getLong("how_many"));
+    }
+
+    @Test
+    public void testMergeWhenFull() {
+
+        CalleeSummary merged = new CalleeSummary();
+
+        // Several buckets, each with a busy number and lots of noise
+        for (int bucket = 0; bucket < 8; bucket++) {
+
+            CalleeSummary summary = new CalleeSummary();
+
+            for (int i = 0; i < 100; i++) {
+                summary.add(99);
+                summary.add(1000 + (bucket * 1000) + i);
+            }
+
+            merged.merge(CalleeSummary.fromBytes(summary.toBytes()));
+        }
+
+        assertEquals(CalleeSummary.CAPACITY, merged.size());
+
+        // Counts are never lower than the truth
+        VoltTable table = merged.toVoltTable();
+        assertTrue(table.advanceRow());
+        assertEquals(99, table.getLong("other_number"));
+        assertEquals(800, table.getLong("how_many"));
+        assertEquals(0, table.getLong("max_error"));
+
+        while (table.advanceRow()) {
+            assertTrue(table.getLong("how_many") >= 1);
+            assertTrue(table.getLong("how_many") - table.getLong("max_error") <= 1);
+        }
+    }
+
+}
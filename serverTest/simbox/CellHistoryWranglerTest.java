@@ -0,0 +1,145 @@
+package simbox;
+
+
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import org.junit.Test;
+import org.voltdb.types.TimestampType;
+
+public class CellHistoryWranglerTest {
+
+    private static final long MINUTE_MICROS = 60L * 1000 * 1000;
+
+    private final CellHistoryWrangler wrangler = new CellHistoryWrangler();
+
+    /**
+     * @param cellIds
+     * @param firstMinute minute of the first move, one minute per move after
+     * @return a history of moves to 'cellIds'
+     */
+    private byte[] history(long[] cellIds, int firstMinute) {
+
+        byte[] history = null;
+
+        for (int i = 0; i < cellIds.length; i++) {
+            history = wrangler.addNewCell(history, cellIds[i], new TimestampType((firstMinute + i) * MINUTE_MICROS));
+        }
+
+        return history;
+    }
+
+    @Test
+    public void testAddNewCellEncoding() {
+
+        // 2 hours and 7 minutes in, so the minute is 7
+        byte[] history = wrangler.addNewCell(null, 0x01020304L,
+                new TimestampType((127 * MINUTE_MICROS) + 59_000_000L));
+
+        assertArrayEquals(new byte[] { 1, 2, 3, 4, 7 }, history);
+
+        history = wrangler.addNewCell(history, 0xFFFFFFFEL, new TimestampType(128 * MINUTE_MICROS));
+
+        assertArrayEquals(new byte[] { 1, 2, 3, 4, 7, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFE, 8 },
+                history);
+        assertEquals("16909060,07:4294967294,08:", wrangler.formatHistory(history));
+        assertEquals("", wrangler.formatHistory(null));
+    }
+
+    @Test
+    public void testAddNewCellDropsOldest() {
+
+        long[] cellIds = new long[CellHistoryWrangler.MAX_LIST_LENGTH + 3];
+
+        for (int i = 0; i < cellIds.length; i++) {
+            cellIds[i] = 1000 + i;
+        }
+
+        byte[] history = history(cellIds, 0);
+
+        assertEquals(CellHistoryWrangler.MAX_LIST_LENGTH * CellHistoryWrangler.ENTRY_BYTES, history.length);
+        assertEquals("1003,03:", wrangler.formatHistory(history).substring(0, 8));
+    }
+
+    @Test
+    public void testGetLastNHash() {
+
+        byte[] first = history(new long[] { 1, 2, 3, 4, 5 }, 0);
+        byte[] second = history(new long[] { 9, 8, 3, 4, 5 }, 0);
+        byte[] third = history(new long[] { 1, 2, 3, 4, 6 }, 0);
+
+        // Only the last 3 entries matter
+        assertEquals(wrangler.getLastNHash(first, 3), wrangler.getLastNHash(second, 3));
+        assertNotEquals(wrangler.getLastNHash(first, 4), wrangler.getLastNHash(second, 4));
+        assertNotEquals(wrangler.getLastNHash(first, 3), wrangler.getLastNHash(third, 3));
+
+        // Same cells at different times aren't the same
+        assertNotEquals(wrangler.getLastNHash(first, 3),
+                wrangler.getLastNHash(history(new long[] { 1, 2, 3, 4, 5 }, 1), 3));
+
+        // Asking for more entries than we have hashes what we have
+        assertEquals(wrangler.getLastNHash(first, 5), wrangler.getLastNHash(first, 50));
+        assertEquals(wrangler.getLastNHash(null, 3), wrangler.getLastNHash(new byte[0], 3));
+    }
+
+    @Test
+    public void testLshBandsNeedEnoughEntries() {
+
+        byte[] shortHistory = history(new long[] { 1, 2, 3 }, 0);
+        byte[] longHistory = history(new long[] { 1, 2, 3, 4 }, 0);
+
+        for (int band = 1; band <= CellHistoryWrangler.LSH_BANDS; band++) {
+            assertEquals(0, wrangler.getLshBand(null, band));
+            assertEquals(0, wrangler.getLshBand(shortHistory, band));
+            assertNotEquals(0, wrangler.getLshBand(longHistory, band));
+        }
+
+        assertEquals(0, wrangler.getLshBand(longHistory, 0));
+        assertEquals(0, wrangler.getLshBand(longHistory, CellHistoryWrangler.LSH_BANDS + 1));
+    }
+
+    @Test
+    public void testLshBands() {
+
+        // SIMs in the same box make the same moves, at whatever time
+        byte[] first = history(new long[] { 10, 11, 12, 13, 14, 15, 16, 17 }, 0);
+        byte[] sameMoves = history(new long[] { 10, 11, 12, 13, 14, 15, 16, 17 }, 23);
+        byte[] otherMoves = history(new long[] { 20, 21, 22, 23, 24, 25, 26, 27 }, 0);
+
+        for (int band = 1; band <= CellHistoryWrangler.LSH_BANDS; band++) {
+
+            assertEquals(wrangler.getLshBand(first, band), wrangler.getLshBand(sameMoves, band));
+            assertNotEquals(wrangler.getLshBand(first, band), wrangler.getLshBand(otherMoves, band));
+
+            // A value identifies its band
+            for (int otherBand = band + 1; otherBand <= CellHistoryWrangler.LSH_BANDS; otherBand++) {
+                assertNotEquals(wrangler.getLshBand(first, band), wrangler.getLshBand(first, otherBand));
+            }
+        }
+    }
+
+}
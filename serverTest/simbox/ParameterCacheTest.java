@@ -0,0 +1,114 @@
+package simbox;
+
+
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.voltdb.VoltTable;
+import org.voltdb.VoltType;
+
+public class ParameterCacheTest {
+
+    /**
+     * @param version
+     * @return what a query against simbox_parameters_version returns
+     */
+    private static VoltTable versionTable(long version) {
+
+        VoltTable table = new VoltTable(new VoltTable.ColumnInfo("parameter_version", VoltType.BIGINT));
+        table.addRow(version);
+        return table;
+    }
+
+    /**
+     * @param value
+     * @return what a query against simbox_parameters returns
+     */
+    private static VoltTable parameterTable(long value) {
+
+        VoltTable table = new VoltTable(new VoltTable.ColumnInfo("parameter_name", VoltType.STRING),
+                new VoltTable.ColumnInfo("parameter_value", VoltType.BIGINT));
+        table.addRow("COHORT_SIZE", value);
+        return table;
+    }
+
+    @Test
+    public void testReloadOnlyWhenVersionChanges() {
+
+        ParameterCache cache = new ParameterCache();
+
+        // We always load the first time
+        assertTrue(cache.needsReload(versionTable(3)));
+        cache.load(parameterTable(10));
+        assertEquals(3, cache.getVersion());
+        assertEquals(10, cache.get("COHORT_SIZE", 5));
+
+        // Same version, however often we ask
+        for (int i = 0; i < 10; i++) {
+            assertFalse(cache.needsReload(versionTable(3)));
+        }
+
+        assertTrue(cache.needsReload(versionTable(4)));
+        cache.load(parameterTable(20));
+        assertEquals(4, cache.getVersion());
+        assertEquals(20, cache.get("COHORT_SIZE", 5));
+        assertFalse(cache.needsReload(versionTable(4)));
+    }
+
+    @Test
+    public void testNoVersionRow() {
+
+        ParameterCache cache = new ParameterCache();
+
+        VoltTable empty = new VoltTable(new VoltTable.ColumnInfo("parameter_version", VoltType.BIGINT));
+
+        // An empty version table counts as version 0
+        assertTrue(cache.needsReload(empty));
+        cache.load(parameterTable(10));
+        assertEquals(0, cache.getVersion());
+
+        empty.resetRowPosition();
+        assertFalse(cache.needsReload(empty));
+        assertTrue(cache.needsReload(versionTable(1)));
+    }
+
+    @Test
+    public void testDefaults() {
+
+        ParameterCache cache = new ParameterCache();
+
+        assertEquals(5, cache.get("COHORT_SIZE", 5));
+
+        cache.needsReload(versionTable(1));
+        cache.load(parameterTable(10));
+
+        assertEquals(10, cache.get("COHORT_SIZE", 5));
+        assertEquals(7, cache.get("NO_SUCH_PARAMETER", 7));
+    }
+
+}
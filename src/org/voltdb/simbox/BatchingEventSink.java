@@ -0,0 +1,382 @@
+package org.voltdb.simbox;
+
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.voltdb.types.TimestampType;
+
+/**
+ * Groups ReportCellChange and ReportDeviceActivity events by partition and
+ * sends them to another sink as ReportCellChangeBatch and
+ * ReportDeviceActivityBatch calls. A partition's batch is sent when it has
+ * 'batchSize' events in it, or when its oldest event has waited 'lingerMs'.
+ * <p>
+ * Events for a partition are sent in the order we get them. A batch only
+ * holds one kind of event, so an event of a different kind, or one we can't
+ * batch, sends the partition's current batch first.
+ * <p>
+ * A batch is sent as if it was meant to start when its oldest event was, so
+ * time spent waiting in a batch shows up as latency.
+ *
+ */
+public class BatchingEventSink implements EventSink {
+
+    /**
+     * Where our batches go
+     */
+    private final EventSink sink;
+
+    /**
+     * Most events we put in one batch
+     */
+    private final int batchSize;
+
+    /**
+     * Longest an event waits for its batch to fill up
+     */
+    private final long lingerNanos;
+
+    /**
+     * Batches we're building, by partition
+     */
+    private final ConcurrentHashMap<Long, PartitionBatch> batches = new ConcurrentHashMap<Long, PartitionBatch>();
+
+    /**
+     * How many events we've batched
+     */
+    private final LongAdder batchedEventCount = new LongAdder();
+
+    /**
+     * How many batches we've sent
+     */
+    private final LongAdder batchCount = new LongAdder();
+
+    /**
+     * @param sink
+     * @param batchSize
+     * @param lingerMs
+     */
+    public BatchingEventSink(EventSink sink, int batchSize, long lingerMs) {
+        super();
+        this.sink = sink;
+        this.batchSize = Math.max(1, batchSize);
+        this.lingerNanos = Math.max(1, lingerMs) * 1000000;
+
+        Thread lingerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                sendLingeringBatches();
+            }
+        }, "batch-linger");
+
+        lingerThread.setDaemon(true);
+        lingerThread.start();
+    }
+
+    @Override
+    public void send(long intendedStartNanos, String procName, Object... params)
+            throws IOException, InterruptedException {
+
+        if (params.length == 0 || !(params[0] instanceof Long)) {
+            sink.send(intendedStartNanos, procName, params);
+            return;
+        }
+
+        final long partition = sink.getPartition((Long) params[0]);
+
+        if (partition < 0) {
+            sink.send(intendedStartNanos, procName, params);
+            return;
+        }
+
+        PartitionBatch batch = batches.get(partition);
+
+        if (batch == null) {
+            batch = batches.computeIfAbsent(partition, k -> new PartitionBatch());
+        }
+
+        synchronized (batch) {
+
+            if (getBatchProcName(procName) == null) {
+                sendBatch(batch);
+                sink.send(intendedStartNanos, procName, params);
+                return;
+            }
+
+            if (batch.procName != null && !batch.procName.equals(procName)) {
+                sendBatch(batch);
+            }
+
+            batch.add(intendedStartNanos, procName, params);
+
+            if (batch.events.size() >= batchSize) {
+                sendBatch(batch);
+            }
+        }
+    }
+
+    @Override
+    public long getPartition(long deviceId) {
+        return sink.getPartition(deviceId);
+    }
+
+    @Override
+    public void drain() throws IOException, InterruptedException {
+
+        Iterator<PartitionBatch> iterator = batches.values().iterator();
+
+        while (iterator.hasNext()) {
+
+            PartitionBatch batch = iterator.next();
+
+            synchronized (batch) {
+                sendBatch(batch);
+            }
+        }
+
+        sink.drain();
+    }
+
+    /**
+     * Send batches whose oldest event has waited long enough, until we're
+     * interrupted.
+     */
+    private void sendLingeringBatches() {
+
+        final long sleepMs = Math.max(1, lingerNanos / 2000000);
+
+        try {
+            while (true) {
+
+                Thread.sleep(sleepMs);
+
+                final long nowNanos = System.nanoTime();
+                Iterator<PartitionBatch> iterator = batches.values().iterator();
+
+                while (iterator.hasNext()) {
+
+                    PartitionBatch batch = iterator.next();
+
+                    synchronized (batch) {
+                        if (!batch.events.isEmpty() && nowNanos - batch.firstAddedNanos >= lingerNanos) {
+                            try {
+                                sendBatch(batch);
+                            } catch (IOException e) {
+                                SimboxDataGenerator.msg(e);
+                            }
+                        }
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            // We're done
+        }
+    }
+
+    /**
+     * Send whatever is in 'batch'. A batch of one is sent as the original
+     * event. Caller must hold the batch's lock.
+     * 
+     * @param batch
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private void sendBatch(PartitionBatch batch) throws IOException, InterruptedException {
+
+        final int eventCount = batch.events.size();
+
+        if (eventCount == 0) {
+            return;
+        }
+
+        if (eventCount == 1) {
+            sink.send(batch.firstIntendedStartNanos, batch.procName, batch.events.get(0));
+        } else {
+            sink.send(batch.firstIntendedStartNanos, getBatchProcName(batch.procName),
+                    getBatchParams(batch.procName, batch.events));
+        }
+
+        batchedEventCount.add(eventCount);
+        batchCount.increment();
+        batch.clear();
+    }
+
+    /**
+     * @param procName
+     * @return the procedure that handles a batch of 'procName' events, or null
+     *         if we don't batch them
+     */
+    private static String getBatchProcName(String procName) {
+
+        if (procName.equals("ReportCellChange")) {
+            return "ReportCellChangeBatch";
+        }
+
+        if (procName.equals("ReportDeviceActivity")) {
+            return "ReportDeviceActivityBatch";
+        }
+
+        return null;
+    }
+
+    /**
+     * Turn a list of events into parameters for a batch procedure. The first
+     * device in the list is used as the partition key.
+     * 
+     * @param procName
+     * @param events
+     * @return parameters for getBatchProcName(procName)
+     */
+    private static Object[] getBatchParams(String procName, ArrayList<Object[]> events) {
+
+        final int eventCount = events.size();
+        final long[] deviceIds = new long[eventCount];
+
+        for (int i = 0; i < eventCount; i++) {
+            deviceIds[i] = ((Number) events.get(i)[0]).longValue();
+        }
+
+        if (procName.equals("ReportCellChange")) {
+
+            final long[] cellIds = new long[eventCount];
+
+            for (int i = 0; i < eventCount; i++) {
+                cellIds[i] = ((Number) events.get(i)[1]).longValue();
+            }
+
+            return new Object[] { deviceIds[0], deviceIds, cellIds };
+        }
+
+        final long[] startTimesMicros = new long[eventCount];
+        final int[] durationsSeconds = new int[eventCount];
+        final String[] inOrOuts = new String[eventCount];
+        final long[] otherNumbers = new long[eventCount];
+        final String[] statuses = new String[eventCount];
+
+        for (int i = 0; i < eventCount; i++) {
+
+            Object[] params = events.get(i);
+
+            startTimesMicros[i] = getMicros(params[1]);
+            durationsSeconds[i] = ((Number) params[2]).intValue();
+            inOrOuts[i] = (String) params[3];
+            otherNumbers[i] = ((Number) params[4]).longValue();
+            statuses[i] = (String) params[5];
+        }
+
+        return new Object[] { deviceIds[0], deviceIds, startTimesMicros, durationsSeconds, inOrOuts, otherNumbers,
+                statuses };
+    }
+
+    /**
+     * @param timestamp a TimestampType or Date
+     * @return microseconds since the epoch
+     */
+    private static long getMicros(Object timestamp) {
+
+        if (timestamp instanceof TimestampType) {
+            return ((TimestampType) timestamp).getTime();
+        }
+
+        return ((Date) timestamp).getTime() * 1000;
+    }
+
+    /**
+     * @return how many events we've batched
+     */
+    public long getBatchedEventCount() {
+        return batchedEventCount.sum();
+    }
+
+    /**
+     * @return how many batches we've sent
+     */
+    public long getBatchCount() {
+        return batchCount.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "BatchingEventSink [batchSize=" + batchSize + ", batchedEvents=" + batchedEventCount.sum()
+                + ", batches=" + batchCount.sum() + "] " + sink.toString();
+    }
+
+    /**
+     * Events for one partition that haven't been sent yet
+     *
+     */
+    private static class PartitionBatch {
+
+        /**
+         * Procedure all our events are for, or null if we're empty
+         */
+        String procName = null;
+
+        /**
+         * When our oldest event was meant to start
+         */
+        long firstIntendedStartNanos;
+
+        /**
+         * When our oldest event was added
+         */
+        long firstAddedNanos;
+
+        /**
+         * Parameters for each event
+         */
+        final ArrayList<Object[]> events = new ArrayList<Object[]>();
+
+        /**
+         * @param intendedStartNanos
+         * @param eventProcName
+         * @param params
+         */
+        void add(long intendedStartNanos, String eventProcName, Object[] params) {
+
+            if (events.isEmpty()) {
+                procName = eventProcName;
+                firstIntendedStartNanos = intendedStartNanos;
+                firstAddedNanos = System.nanoTime();
+            }
+
+            events.add(params);
+        }
+
+        /**
+         * Forget our events
+         */
+        void clear() {
+            events.clear();
+            procName = null;
+        }
+    }
+
+}
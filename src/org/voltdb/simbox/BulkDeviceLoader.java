@@ -0,0 +1,242 @@
+package org.voltdb.simbox;
+
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Registers devices and their first few cell moves in bulk. Devices are
+ * grouped by the partition they live in and sent to RegisterDevicesBatch
+ * 'batchSize' at a time, so warming up the database takes one round trip per
+ * batch instead of one per event.
+ *
+ */
+public class BulkDeviceLoader {
+
+    /**
+     * Where we send our batches
+     */
+    private final EventSink sink;
+
+    /**
+     * How many devices we send in one call
+     */
+    private final int batchSize;
+
+    /**
+     * How many cell moves each device makes
+     */
+    private final int movesPerDevice;
+
+    /**
+     * Devices waiting to be sent, by partition
+     */
+    private final Map<Long, Batch> batches = new HashMap<Long, Batch>();
+
+    /**
+     * How many devices we've sent
+     */
+    private long deviceCount = 0;
+
+    /**
+     * How many calls we've made
+     */
+    private long callCount = 0;
+
+    /**
+     * @param sink
+     * @param batchSize
+     * @param movesPerDevice
+     */
+    public BulkDeviceLoader(EventSink sink, int batchSize, int movesPerDevice) {
+        super();
+        this.sink = sink;
+        this.batchSize = Math.max(1, batchSize);
+        this.movesPerDevice = movesPerDevice;
+    }
+
+    /**
+     * Add a device that has been created in 'cellId' and then moved to each of
+     * 'moveCellIds' in turn. The device should already be in its final cell.
+     * 
+     * @param ud
+     * @param cellId
+     * @param moveCellIds
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public void addDevice(UserDevice ud, long cellId, long[] moveCellIds) throws IOException, InterruptedException {
+
+        long partitionId = sink.getPartition(ud.getDeviceId());
+
+        if (partitionId < 0) {
+            // We don't know where it lives. Send it on its own, which is always
+            // safe as it's its own partition key...
+            Batch batch = new Batch(1, movesPerDevice);
+            batch.add(ud, cellId, moveCellIds);
+            send(batch);
+            return;
+        }
+
+        Batch batch = batches.get(partitionId);
+
+        if (batch == null) {
+            batch = new Batch(batchSize, movesPerDevice);
+            batches.put(partitionId, batch);
+        }
+
+        batch.add(ud, cellId, moveCellIds);
+
+        if (batch.size == batchSize) {
+            send(batch);
+            batches.remove(partitionId);
+        }
+    }
+
+    /**
+     * Send any devices we have left over.
+     * 
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public void flush() throws IOException, InterruptedException {
+
+        Iterator<Batch> iterator = batches.values().iterator();
+
+        while (iterator.hasNext()) {
+            send(iterator.next());
+        }
+
+        batches.clear();
+    }
+
+    /**
+     * @return how many devices we've sent
+     */
+    public long getDeviceCount() {
+        return deviceCount;
+    }
+
+    /**
+     * @return how many calls we've made
+     */
+    public long getCallCount() {
+        return callCount;
+    }
+
+    /**
+     * Send a batch to VoltDB
+     * 
+     * @param batch
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private void send(Batch batch) throws IOException, InterruptedException {
+
+        if (batch.size == 0) {
+            return;
+        }
+
+        sink.send(System.nanoTime(), "RegisterDevicesBatch", batch.getParams());
+
+        deviceCount += batch.size;
+        callCount++;
+    }
+
+    /**
+     * Devices waiting to be sent to one partition
+     *
+     */
+    private static class Batch {
+
+        /**
+         * Devices, and the cell they start in and when they were created
+         */
+        final long[] deviceIds;
+        final long[] cellIds;
+        final long[] createTimesMs;
+
+        /**
+         * 'movesPerDevice' cells for each device
+         */
+        final long[] moveCellIds;
+
+        /**
+         * How many cell moves each device makes
+         */
+        final int movesPerDevice;
+
+        /**
+         * How many devices we hold
+         */
+        int size = 0;
+
+        /**
+         * @param batchSize
+         * @param movesPerDevice
+         */
+        Batch(int batchSize, int movesPerDevice) {
+            deviceIds = new long[batchSize];
+            cellIds = new long[batchSize];
+            createTimesMs = new long[batchSize];
+            moveCellIds = new long[batchSize * movesPerDevice];
+            this.movesPerDevice = movesPerDevice;
+        }
+
+        /**
+         * @param ud
+         * @param cellId
+         * @param deviceMoveCellIds
+         */
+        void add(UserDevice ud, long cellId, long[] deviceMoveCellIds) {
+            deviceIds[size] = ud.getDeviceId();
+            cellIds[size] = cellId;
+            createTimesMs[size] = ud.getCreateTimeMs();
+            System.arraycopy(deviceMoveCellIds, 0, moveCellIds, size * movesPerDevice, movesPerDevice);
+            size++;
+        }
+
+        /**
+         * @return correct set of parameters for a call to
+         *         'RegisterDevicesBatch'
+         */
+        Object[] getParams() {
+
+            if (size == deviceIds.length) {
+                Object[] params = { deviceIds[0], deviceIds, cellIds, createTimesMs, moveCellIds, movesPerDevice };
+                return params;
+            }
+
+            Object[] params = { deviceIds[0], Arrays.copyOf(deviceIds, size),
+                    Arrays.copyOf(cellIds, size), Arrays.copyOf(createTimesMs, size),
+                    Arrays.copyOf(moveCellIds, size * movesPerDevice), movesPerDevice };
+            return params;
+        }
+    }
+
+}
@@ -0,0 +1,515 @@
+package org.voltdb.simbox;
+
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * An undirected, weighted graph of who calls whom, held in compressed sparse
+ * row (CSR) form. Node 'n' is device 'n'. Its neighbours are
+ * neighbours[offsets[n]] to neighbours[offsets[n + 1] - 1], in ascending
+ * order, and the number of calls between them is in the same place in
+ * 'weights'.
+ * <p>
+ * Everything is a primitive array, so a graph of E calling pairs costs about
+ * 16 * E bytes, plus another 8 * E while finding communities. Hundreds of
+ * millions of pairs fit in a large heap.
+ * <p>
+ * Graphs are created using a Builder, and never change afterwards.
+ *
+ */
+public class CallGraph {
+
+    /**
+     * Nodes per fork/join task
+     */
+    private static final int NODES_PER_TASK = 16384;
+
+    /**
+     * Where each node's neighbours start. One more entry than there are nodes.
+     */
+    private final int[] offsets;
+
+    /**
+     * Neighbours of each node, in node order
+     */
+    private final int[] neighbours;
+
+    /**
+     * How many calls were made between a node and each of its neighbours
+     */
+    private final int[] weights;
+
+    /**
+     * Create a graph from its arrays. Use a Builder.
+     *
+     * @param offsets
+     * @param neighbours
+     * @param weights
+     */
+    private CallGraph(int[] offsets, int[] neighbours, int[] weights) {
+        super();
+        this.offsets = offsets;
+        this.neighbours = neighbours;
+        this.weights = weights;
+    }
+
+    /**
+     * @return how many nodes we have
+     */
+    public int getNodeCount() {
+        return offsets.length - 1;
+    }
+
+    /**
+     * @return how many neighbour entries we have. Each calling pair has two.
+     */
+    public int getEntryCount() {
+        return neighbours.length;
+    }
+
+    /**
+     * @param node
+     * @return the neighbours of 'node', in ascending order
+     */
+    int[] getNeighbours(int node) {
+        return Arrays.copyOfRange(neighbours, offsets[node], offsets[node + 1]);
+    }
+
+    /**
+     * @param node
+     * @return how many calls 'node' made with each of its neighbours
+     */
+    int[] getWeights(int node) {
+        return Arrays.copyOfRange(weights, offsets[node], offsets[node + 1]);
+    }
+
+    /**
+     * Find communities using label propagation. Every node starts with its own
+     * label, and then repeatedly takes the label with the most calls among its
+     * neighbours until few labels change. Nodes are updated in place, in
+     * parallel, so the result isn't always the same but the communities are.
+     * <p>
+     * Calls are weighted by how many neighbours the two devices have in
+     * common. Ordinary people call numbers nobody else they know calls, so
+     * their calls count for nothing and they end up on their own. Without
+     * this one busy number can drag thousands of strangers into its community.
+     * <p>
+     * Counting common neighbours costs O(d^2) for a node with d neighbours,
+     * so nodes with more than 'maxDegree' neighbours are hubs, such as call
+     * centres, and their calls count for nothing too.
+     *
+     * @param pool          where to run
+     * @param maxIterations most passes over the graph we make
+     * @param maxDegree     most neighbours a node can have and still count
+     * @return the community (label) of each node. A label is the ID of one of
+     *         the nodes in the community.
+     */
+    public int[] findCommunities(ForkJoinPool pool, int maxIterations, int maxDegree) {
+
+        final int[] labels = new int[getNodeCount()];
+
+        for (int i = 0; i < labels.length; i++) {
+            labels[i] = i;
+        }
+
+        final int[] support = new int[neighbours.length];
+        pool.invoke(new CountCommonNeighbours(support, maxDegree, 0, labels.length));
+
+        // Stop when fewer than 1 in 1000 nodes change
+        final long enoughChanges = Math.max(1, labels.length / 1000);
+
+        for (int i = 0; i < maxIterations; i++) {
+
+            LongAdder changes = new LongAdder();
+            pool.invoke(new PropagateLabels(labels, support, 0, labels.length, changes));
+
+            if (changes.sum() < enoughChanges) {
+                break;
+            }
+        }
+
+        return labels;
+    }
+
+    /**
+     * Count how many neighbour entries and calls each community has inside
+     * itself.
+     *
+     * @param labels        from findCommunities
+     * @param communitySize how many nodes have each label
+     * @return internal neighbour entries for each label. Each internal pair
+     *         counts twice.
+     */
+    public long[] getInternalEntries(int[] labels, int[] communitySize) {
+
+        long[] internalEntries = new long[labels.length];
+
+        for (int node = 0; node < labels.length; node++) {
+
+            if (communitySize[labels[node]] < 2) {
+                continue;
+            }
+
+            for (int i = offsets[node]; i < offsets[node + 1]; i++) {
+                if (labels[neighbours[i]] == labels[node]) {
+                    internalEntries[labels[node]]++;
+                }
+            }
+        }
+
+        return internalEntries;
+    }
+
+    /**
+     * Count the neighbours each pair of neighbours has in common, for a range
+     * of nodes, splitting it between threads if it's big. Each pair is counted
+     * once, by its lower node, which fills in both its entries. Pairs
+     * involving a hub are left at 0.
+     */
+    private class CountCommonNeighbours extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int[] support;
+        private final int maxDegree;
+        private final int firstNode;
+        private final int endNode;
+
+        /**
+         * @param support   common neighbours, for each entry in 'neighbours'
+         * @param maxDegree most neighbours a node can have and not be a hub
+         * @param firstNode first node we look after
+         * @param endNode   one past the last node we look after
+         */
+        CountCommonNeighbours(int[] support, int maxDegree, int firstNode, int endNode) {
+            this.support = support;
+            this.maxDegree = maxDegree;
+            this.firstNode = firstNode;
+            this.endNode = endNode;
+        }
+
+        @Override
+        protected void compute() {
+
+            if (endNode - firstNode > NODES_PER_TASK) {
+                final int middle = (firstNode + endNode) >>> 1;
+                invokeAll(new CountCommonNeighbours(support, maxDegree, firstNode, middle),
+                        new CountCommonNeighbours(support, maxDegree, middle, endNode));
+                return;
+            }
+
+            for (int node = firstNode; node < endNode; node++) {
+
+                if (offsets[node + 1] - offsets[node] > maxDegree) {
+                    continue;
+                }
+
+                for (int i = offsets[node]; i < offsets[node + 1]; i++) {
+
+                    final int other = neighbours[i];
+
+                    if (other < node || offsets[other + 1] - offsets[other] > maxDegree) {
+                        continue;
+                    }
+
+                    // Both lists are sorted, so walk them together
+                    int common = 0;
+                    int a = offsets[node];
+                    int b = offsets[other];
+
+                    while (a < offsets[node + 1] && b < offsets[other + 1]) {
+                        if (neighbours[a] < neighbours[b]) {
+                            a++;
+                        } else if (neighbours[a] > neighbours[b]) {
+                            b++;
+                        } else {
+                            common++;
+                            a++;
+                            b++;
+                        }
+                    }
+
+                    support[i] = common;
+                    support[Arrays.binarySearch(neighbours, offsets[other], offsets[other + 1], node)] = common;
+                }
+            }
+        }
+    }
+
+    /**
+     * Relabel a range of nodes, splitting it between threads if it's big.
+     */
+    private class PropagateLabels extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int[] labels;
+        private final int[] support;
+        private final int firstNode;
+        private final int endNode;
+        private final LongAdder changes;
+
+        /**
+         * @param labels
+         * @param support   from CountCommonNeighbours
+         * @param firstNode first node we look after
+         * @param endNode   one past the last node we look after
+         * @param changes   how many labels we've changed
+         */
+        PropagateLabels(int[] labels, int[] support, int firstNode, int endNode, LongAdder changes) {
+            this.labels = labels;
+            this.support = support;
+            this.firstNode = firstNode;
+            this.endNode = endNode;
+            this.changes = changes;
+        }
+
+        @Override
+        protected void compute() {
+
+            if (endNode - firstNode > NODES_PER_TASK) {
+                final int middle = (firstNode + endNode) >>> 1;
+                invokeAll(new PropagateLabels(labels, support, firstNode, middle, changes),
+                        new PropagateLabels(labels, support, middle, endNode, changes));
+                return;
+            }
+
+            // Neighbour labels and weights, packed so sorting groups labels
+            long[] scratch = new long[64];
+            long changed = 0;
+
+            for (int node = firstNode; node < endNode; node++) {
+
+                final int start = offsets[node];
+                final int end = offsets[node + 1];
+
+                if (scratch.length < end - start) {
+                    scratch = new long[Integer.highestOneBit(end - start) << 1];
+                }
+
+                // Neighbours we have nobody in common with don't count
+                int degree = 0;
+
+                for (int i = start; i < end; i++) {
+                    if (support[i] > 0) {
+                        final long weight = Math.min(0xFFFFFFFFL, (long) weights[i] * support[i]);
+                        scratch[degree++] = ((long) labels[neighbours[i]] << 32) | weight;
+                    }
+                }
+
+                if (degree == 0) {
+                    continue;
+                }
+
+                Arrays.sort(scratch, 0, degree);
+
+                // Pick the label with most calls. Keep ours if it's one of the
+                // best, otherwise the lowest.
+                final int currentLabel = labels[node];
+                int bestLabel = currentLabel;
+                long bestWeight = -1;
+                int i = 0;
+
+                while (i < degree) {
+
+                    final int label = (int) (scratch[i] >>> 32);
+                    long weight = 0;
+
+                    while (i < degree && (int) (scratch[i] >>> 32) == label) {
+                        weight += scratch[i] & 0xFFFFFFFFL;
+                        i++;
+                    }
+
+                    if (weight > bestWeight || (weight == bestWeight && label == currentLabel)) {
+                        bestWeight = weight;
+                        bestLabel = label;
+                    }
+                }
+
+                if (bestLabel != currentLabel) {
+                    labels[node] = bestLabel;
+                    changed++;
+                }
+            }
+
+            changes.add(changed);
+        }
+    }
+
+    /**
+     * Collects calls and turns them into a CallGraph. Not thread safe.
+     *
+     */
+    public static class Builder {
+
+        /**
+         * Calling device, called device and number of calls, for each pair
+         * we've been given. Only the first 'size' entries are used.
+         */
+        private int[] from = new int[1024];
+        private int[] to = new int[1024];
+        private int[] count = new int[1024];
+
+        /**
+         * How many pairs we have
+         */
+        private int size = 0;
+
+        /**
+         * Highest node ID we've seen
+         */
+        private int maxNode = -1;
+
+        /**
+         * Add 'calls' calls from one device to another. Calls a device makes to
+         * itself are ignored. The same pair may be added more than once.
+         *
+         * @param fromDeviceId
+         * @param toDeviceId
+         * @param calls
+         */
+        public void addCalls(long fromDeviceId, long toDeviceId, long calls) {
+
+            if (fromDeviceId == toDeviceId) {
+                return;
+            }
+
+            if (fromDeviceId < 0 || toDeviceId < 0 || fromDeviceId >= Integer.MAX_VALUE
+                    || toDeviceId >= Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Device IDs must be between 0 and " + Integer.MAX_VALUE);
+            }
+
+            if (size == from.length) {
+                final int newLength = (int) Math.min(Integer.MAX_VALUE - 8, (long) from.length * 2);
+                from = Arrays.copyOf(from, newLength);
+                to = Arrays.copyOf(to, newLength);
+                count = Arrays.copyOf(count, newLength);
+            }
+
+            from[size] = (int) fromDeviceId;
+            to[size] = (int) toDeviceId;
+            count[size] = (int) Math.min(Integer.MAX_VALUE, calls);
+            size++;
+
+            maxNode = Math.max(maxNode, Math.max((int) fromDeviceId, (int) toDeviceId));
+        }
+
+        /**
+         * @return how many pairs we've been given
+         */
+        public int size() {
+            return size;
+        }
+
+        /**
+         * Turn what we've been given into a graph, using a counting sort. Each
+         * node's neighbours are then sorted, and calls in both directions
+         * between two devices are added together. We're empty afterwards.
+         *
+         * @return a new graph
+         */
+        public CallGraph build() {
+
+            final int nodeCount = maxNode + 1;
+
+            if ((long) size * 2 > Integer.MAX_VALUE - 8) {
+                throw new IllegalStateException("Too many calling pairs: " + size);
+            }
+
+            int[] offsets = new int[nodeCount + 1];
+
+            for (int i = 0; i < size; i++) {
+                offsets[from[i] + 1]++;
+                offsets[to[i] + 1]++;
+            }
+
+            for (int i = 0; i < nodeCount; i++) {
+                offsets[i + 1] += offsets[i];
+            }
+
+            int[] neighbours = new int[size * 2];
+            int[] weights = new int[size * 2];
+            int[] next = Arrays.copyOf(offsets, nodeCount);
+
+            for (int i = 0; i < size; i++) {
+
+                neighbours[next[from[i]]] = to[i];
+                weights[next[from[i]]++] = count[i];
+
+                neighbours[next[to[i]]] = from[i];
+                weights[next[to[i]]++] = count[i];
+            }
+
+            // Sort each node's neighbours and merge duplicates, moving
+            // everything down to fill the gaps
+            long[] scratch = new long[64];
+            int used = 0;
+
+            for (int node = 0; node < nodeCount; node++) {
+
+                final int start = offsets[node];
+                final int degree = offsets[node + 1] - start;
+
+                if (scratch.length < degree) {
+                    scratch = new long[Integer.highestOneBit(degree) << 1];
+                }
+
+                for (int i = 0; i < degree; i++) {
+                    scratch[i] = ((long) neighbours[start + i] << 32) | weights[start + i];
+                }
+
+                Arrays.sort(scratch, 0, degree);
+                offsets[node] = used;
+
+                for (int i = 0; i < degree; i++) {
+
+                    final int neighbour = (int) (scratch[i] >>> 32);
+                    final int weight = (int) scratch[i];
+
+                    if (used > offsets[node] && neighbours[used - 1] == neighbour) {
+                        weights[used - 1] = (int) Math.min(Integer.MAX_VALUE, (long) weights[used - 1] + weight);
+                    } else {
+                        neighbours[used] = neighbour;
+                        weights[used++] = weight;
+                    }
+                }
+            }
+
+            offsets[nodeCount] = used;
+
+            from = new int[1024];
+            to = new int[1024];
+            count = new int[1024];
+            size = 0;
+            maxNode = -1;
+
+            return new CallGraph(offsets, Arrays.copyOf(neighbours, used), Arrays.copyOf(weights, used));
+        }
+    }
+
+}
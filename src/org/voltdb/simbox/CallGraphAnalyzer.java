@@ -0,0 +1,267 @@
+package org.voltdb.simbox;
+
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+import java.util.Date;
+import java.util.concurrent.ForkJoinPool;
+
+import org.voltdb.VoltTable;
+import org.voltdb.client.Client;
+import org.voltdb.client.ClientResponse;
+import org.voltdb.client.ClientResponseWithPartitionKey;
+
+/**
+ * Looks for groups of devices that mostly call each other, which is what a
+ * simbox does when SIMBOX_CALLS_ITSELF is on. Per-device rules can't see
+ * this, as each captive SIM looks normal on its own.
+ * <p>
+ * Every so often we read who called whom from device_outgoing_call_history,
+ * using GetPartitionCallEdges, and build a CallGraph. We then find
+ * communities using label propagation on a ForkJoinPool. Communities that are
+ * dense enough are written to call_graph_community_members, one device at a
+ * time, using NoteCallGraphCommunityMember.
+ *
+ */
+public class CallGraphAnalyzer implements Runnable {
+
+    /**
+     * How many device IDs we ask for calls for at once
+     */
+    private static final int DEVICES_PER_FETCH = 10000;
+
+    /**
+     * Most label propagation passes we make
+     */
+    private static final int MAX_ITERATIONS = 20;
+
+    /**
+     * Devices that call or are called by more devices than this are hubs,
+     * like call centres, and are left out of communities
+     */
+    private static final int MAX_DEGREE = 5000;
+
+    /**
+     * Smallest community we care about
+     */
+    private static final int MIN_COMMUNITY_SIZE = 4;
+
+    /**
+     * Largest community we care about. Anything bigger is just 'the network'.
+     */
+    private static final int MAX_COMMUNITY_SIZE = 10000;
+
+    /**
+     * Smallest fraction of possible calling pairs inside a community that must
+     * have called each other
+     */
+    private static final double MIN_DENSITY = 0.1;
+
+    /**
+     * Our handle to VoltDB
+     */
+    private final Client voltClient;
+
+    /**
+     * Device IDs go from 0 to deviceCount - 1
+     */
+    private final int deviceCount;
+
+    /**
+     * How long we wait between analyses
+     */
+    private final long intervalMs;
+
+    /**
+     * Where label propagation runs
+     */
+    private final ForkJoinPool pool = new ForkJoinPool();
+
+    /**
+     * Callback for recording members
+     */
+    private final ComplainOnErrorCallback coec = new ComplainOnErrorCallback();
+
+    /**
+     * UTC time we stop running
+     */
+    private volatile long endMs = Long.MAX_VALUE;
+
+    /**
+     * What we found last time, for stats
+     */
+    private volatile long lastCallingPairs = 0;
+    private volatile long lastCommunities = 0;
+    private volatile long lastCommunityMembers = 0;
+    private volatile long lastAnalysisMs = 0;
+
+    /**
+     * @param voltClient
+     * @param deviceCount
+     * @param intervalMs  how long we wait between analyses
+     */
+    public CallGraphAnalyzer(Client voltClient, int deviceCount, long intervalMs) {
+        super();
+        this.voltClient = voltClient;
+        this.deviceCount = deviceCount;
+        this.intervalMs = intervalMs;
+    }
+
+    /**
+     * Analyse the call graph every intervalMs until endMs.
+     */
+    @Override
+    public void run() {
+
+        try {
+
+            while (System.currentTimeMillis() + intervalMs < endMs) {
+                Thread.sleep(intervalMs);
+                analyze();
+            }
+
+        } catch (InterruptedException e) {
+            // We've been told to stop
+        } catch (Exception e) {
+            SimboxDataGenerator.msg("Call graph analysis failed");
+            e.printStackTrace();
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Build the call graph, find dense communities and record them.
+     *
+     * @throws Exception
+     */
+    public void analyze() throws Exception {
+
+        final long startMs = System.currentTimeMillis();
+
+        CallGraph graph = loadGraph();
+        int[] labels = graph.findCommunities(pool, MAX_ITERATIONS, MAX_DEGREE);
+
+        int[] communitySize = new int[labels.length];
+
+        for (int i = 0; i < labels.length; i++) {
+            communitySize[labels[i]]++;
+        }
+
+        long[] internalEntries = graph.getInternalEntries(labels, communitySize);
+
+        // Work out which communities are dense enough, as % of possible pairs
+        int[] densityPct = new int[labels.length];
+        long communities = 0;
+
+        for (int label = 0; label < labels.length; label++) {
+
+            final long size = communitySize[label];
+
+            if (size >= MIN_COMMUNITY_SIZE && size <= MAX_COMMUNITY_SIZE) {
+
+                final double density = (double) internalEntries[label] / (size * (size - 1));
+
+                if (density >= MIN_DENSITY) {
+                    densityPct[label] = (int) Math.ceil(density * 100);
+                    communities++;
+                }
+            }
+        }
+
+        final Date eventDate = new Date(startMs);
+        long members = 0;
+
+        for (int node = 0; node < labels.length; node++) {
+
+            final int label = labels[node];
+
+            if (densityPct[label] > 0) {
+                voltClient.callProcedure(coec, "NoteCallGraphCommunityMember", label, eventDate, node,
+                        communitySize[label], densityPct[label]);
+                members++;
+            }
+        }
+
+        lastCallingPairs = graph.getEntryCount() / 2;
+        lastCommunities = communities;
+        lastCommunityMembers = members;
+        lastAnalysisMs = System.currentTimeMillis() - startMs;
+
+        SimboxDataGenerator.msg("Call graph: " + lastCallingPairs + " calling pairs, " + communities
+                + " dense communities, " + members + " members, " + lastAnalysisMs + "ms");
+    }
+
+    /**
+     * Read who called whom from every partition.
+     *
+     * @return the call graph
+     * @throws Exception
+     */
+    private CallGraph loadGraph() throws Exception {
+
+        CallGraph.Builder builder = new CallGraph.Builder();
+
+        for (int firstDeviceId = 0; firstDeviceId < deviceCount; firstDeviceId += DEVICES_PER_FETCH) {
+
+            ClientResponseWithPartitionKey[] cr = voltClient.callAllPartitionProcedure("GetPartitionCallEdges",
+                    firstDeviceId, firstDeviceId + DEVICES_PER_FETCH);
+
+            for (int i = 0; i < cr.length; i++) {
+
+                if (cr[i].response.getStatus() != ClientResponse.SUCCESS) {
+                    throw new Exception("GetPartitionCallEdges: " + cr[i].response.getStatusString());
+                }
+
+                VoltTable edges = cr[i].response.getResults()[0];
+
+                while (edges.advanceRow()) {
+                    builder.addCalls(edges.getLong("device_id"), edges.getLong("other_number"),
+                            edges.getLong("how_many"));
+                }
+            }
+        }
+
+        return builder.build();
+    }
+
+    /**
+     * Report what we found last time.
+     *
+     * @param statsPublisher
+     */
+    public void reportStats(StatsPublisher statsPublisher) {
+        statsPublisher.report("call_graph_calling_pairs", lastCallingPairs);
+        statsPublisher.report("call_graph_communities", lastCommunities);
+        statsPublisher.report("call_graph_community_members", lastCommunityMembers);
+        statsPublisher.report("call_graph_analysis_ms", lastAnalysisMs);
+    }
+
+    /**
+     * @param endMs the UTC time we stop running
+     */
+    public void setEndMs(long endMs) {
+        this.endMs = endMs;
+    }
+
+}
@@ -0,0 +1,101 @@
+package org.voltdb.simbox;
+
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Throws events away, but counts them by procedure. Used to measure how fast
+ * the generator can go when nothing downstream slows it down.
+ *
+ */
+public class CountingEventSink implements EventSink {
+
+    /**
+     * How many events we've seen, by procedure
+     */
+    private final Map<String, LongAdder> counts = new ConcurrentHashMap<String, LongAdder>();
+
+    @Override
+    public void send(long intendedStartNanos, String procName, Object... params) {
+
+        LongAdder count = counts.get(procName);
+
+        if (count == null) {
+            count = counts.computeIfAbsent(procName, k -> new LongAdder());
+        }
+
+        count.increment();
+    }
+
+    @Override
+    public long getPartition(long deviceId) {
+        return 0;
+    }
+
+    @Override
+    public void drain() {
+        // Nothing to wait for
+    }
+
+    /**
+     * @param procName
+     * @return how many events we've seen for 'procName'
+     */
+    public long getCount(String procName) {
+
+        LongAdder count = counts.get(procName);
+
+        if (count == null) {
+            return 0;
+        }
+
+        return count.sum();
+    }
+
+    @Override
+    public String toString() {
+
+        StringBuilder builder = new StringBuilder("CountingEventSink [");
+        Iterator<Map.Entry<String, LongAdder>> iterator = counts.entrySet().iterator();
+
+        while (iterator.hasNext()) {
+            Map.Entry<String, LongAdder> entry = iterator.next();
+            builder.append(entry.getKey());
+            builder.append('=');
+            builder.append(entry.getValue().sum());
+
+            if (iterator.hasNext()) {
+                builder.append(", ");
+            }
+        }
+
+        builder.append(']');
+        return builder.toString();
+    }
+
+}
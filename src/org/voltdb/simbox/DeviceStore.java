@@ -0,0 +1,275 @@
+package org.voltdb.simbox;
+
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+/**
+ * State for a contiguous range of devices, held as one primitive array per
+ * field instead of one object per device. This keeps the generator's heap at
+ * around 70 bytes per device and gives the garbage collector almost nothing to
+ * do.
+ * <p>
+ * UserDevice is a view over a single entry. Devices can be called by other
+ * shards, so changes to busy state and popular numbers are made while holding
+ * one of a fixed set of locks. Reads that are only used as a hint (e.g.
+ * 'isBusy') don't bother.
+ *
+ */
+public class DeviceStore {
+
+    /**
+     * We make most of our calls to POPULAR_NUMBER_LIST_SIZE numbers...
+     */
+    public static final int POPULAR_NUMBER_LIST_SIZE = 10;
+
+    /**
+     * How many locks we share between our devices. Must be a power of 2.
+     */
+    private static final int LOCK_STRIPES = 1024;
+
+    /**
+     * First device ID we hold
+     */
+    private final long firstDeviceId;
+
+    /**
+     * How many devices we hold
+     */
+    private final int deviceCount;
+
+    /**
+     * When the current call ends, by device. Will be in past if call is over.
+     */
+    private final long[] callEndTimeMs;
+
+    /**
+     * Current cell, by device.
+     */
+    private final int[] cellId;
+
+    /**
+     * When the cell last moved, by device.
+     */
+    private final long[] lastCellMoveMs;
+
+    /**
+     * When the device was created, by device.
+     */
+    private final long[] createTimeMs;
+
+    /**
+     * POPULAR_NUMBER_LIST_SIZE slots per device.
+     */
+    private final int[] popularNumbers;
+
+    /**
+     * How many popular number slots are in use, by device.
+     */
+    private final byte[] popularNumberCount;
+
+    /**
+     * Locks for changes to busy state and popular numbers
+     */
+    private final Object[] locks = new Object[LOCK_STRIPES];
+
+    /**
+     * Create a store for devices firstDeviceId to firstDeviceId + deviceCount -
+     * 1.
+     *
+     * @param firstDeviceId
+     * @param deviceCount
+     */
+    public DeviceStore(long firstDeviceId, int deviceCount) {
+        super();
+        this.firstDeviceId = firstDeviceId;
+        this.deviceCount = deviceCount;
+
+        callEndTimeMs = new long[deviceCount];
+        cellId = new int[deviceCount];
+        lastCellMoveMs = new long[deviceCount];
+        createTimeMs = new long[deviceCount];
+        popularNumbers = new int[deviceCount * POPULAR_NUMBER_LIST_SIZE];
+        popularNumberCount = new byte[deviceCount];
+
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    /**
+     * Create a device in a cell.
+     *
+     * @param deviceId
+     * @param newCellId
+     * @return a view of the device
+     */
+    public UserDevice createDevice(long deviceId, long newCellId) {
+
+        final int index = getIndex(deviceId);
+        final long now = System.currentTimeMillis();
+
+        callEndTimeMs[index] = now;
+        cellId[index] = (int) newCellId;
+        lastCellMoveMs[index] = now;
+        createTimeMs[index] = now;
+        popularNumberCount[index] = 0;
+
+        return new UserDevice(this, deviceId);
+    }
+
+    /**
+     * @param deviceId
+     * @return a view of the device
+     */
+    public UserDevice getDevice(long deviceId) {
+        return new UserDevice(this, deviceId);
+    }
+
+    /**
+     * @param deviceId
+     * @return where deviceId lives in our arrays
+     */
+    int getIndex(long deviceId) {
+        return (int) (deviceId - firstDeviceId);
+    }
+
+    /**
+     * @param index
+     * @return the lock that guards busy state and popular numbers for 'index'
+     */
+    Object getLock(int index) {
+        return locks[index & (LOCK_STRIPES - 1)];
+    }
+
+    /**
+     * @param index
+     * @return when the current call ends
+     */
+    long getCallEndTimeMs(int index) {
+        return callEndTimeMs[index];
+    }
+
+    /**
+     * Caller must hold getLock(index)
+     *
+     * @param index
+     * @param newCallEndTimeMs
+     */
+    void setCallEndTimeMs(int index, long newCallEndTimeMs) {
+        callEndTimeMs[index] = newCallEndTimeMs;
+    }
+
+    /**
+     * @param index
+     * @return the current cell
+     */
+    int getCellId(int index) {
+        return cellId[index];
+    }
+
+    /**
+     * @param index
+     * @param newCellId
+     * @param moveTimeMs when the move happened
+     */
+    void setCellId(int index, long newCellId, long moveTimeMs) {
+        cellId[index] = (int) newCellId;
+        lastCellMoveMs[index] = moveTimeMs;
+    }
+
+    /**
+     * @param index
+     * @return when the cell last moved
+     */
+    long getLastCellMoveMs(int index) {
+        return lastCellMoveMs[index];
+    }
+
+    /**
+     * @param index
+     * @return when the device was created
+     */
+    long getCreateTimeMs(int index) {
+        return createTimeMs[index];
+    }
+
+    /**
+     * @param index
+     * @param newCreateTimeMs
+     */
+    void setCreateTimeMs(int index, long newCreateTimeMs) {
+        createTimeMs[index] = newCreateTimeMs;
+    }
+
+    /**
+     * Caller must hold getLock(index)
+     *
+     * @param index
+     * @return how many popular numbers we have
+     */
+    int getPopularNumberCount(int index) {
+        return popularNumberCount[index];
+    }
+
+    /**
+     * Caller must hold getLock(index)
+     *
+     * @param index
+     * @param slot
+     * @return a popular number
+     */
+    long getPopularNumber(int index, int slot) {
+        return popularNumbers[(index * POPULAR_NUMBER_LIST_SIZE) + slot];
+    }
+
+    /**
+     * Add a popular number, if there's room. Caller must hold getLock(index)
+     *
+     * @param index
+     * @param number
+     */
+    void addPopularNumber(int index, long number) {
+
+        final int count = popularNumberCount[index];
+
+        if (count < POPULAR_NUMBER_LIST_SIZE) {
+            popularNumbers[(index * POPULAR_NUMBER_LIST_SIZE) + count] = (int) number;
+            popularNumberCount[index] = (byte) (count + 1);
+        }
+    }
+
+    /**
+     * @return the firstDeviceId
+     */
+    public long getFirstDeviceId() {
+        return firstDeviceId;
+    }
+
+    /**
+     * @return how many devices we hold
+     */
+    public int getDeviceCount() {
+        return deviceCount;
+    }
+
+}
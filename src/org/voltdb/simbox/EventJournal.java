@@ -0,0 +1,423 @@
+package org.voltdb.simbox;
+
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.HashMap;
+
+import org.voltdb.types.TimestampType;
+
+/**
+ * An append only, memory mapped log of every procedure call the generator
+ * makes, so the exact same workload can be replayed later by
+ * EventJournalReplayer.
+ * <p>
+ * The file starts with a fixed size header containing the seed the generator
+ * used and when we started. Each record after that is one of:
+ * <ul>
+ * <li>TYPE_PROC: a procedure id byte and the procedure's name. Written the
+ * first time we see a procedure.
+ * <li>TYPE_CALL: how many nanoseconds after the previous call this one was
+ * meant to be sent, a procedure id byte, a parameter count byte and the
+ * parameters.
+ * </ul>
+ * Numbers are stored as zig-zag variable length longs, so most take 1 or 2
+ * bytes. Timestamps and Dates are stored as offsets from the start time in the
+ * header, so a replay can move them to when it runs. The file is mapped a
+ * region at a time, and is zero filled beyond the last record, which reads as
+ * TYPE_END.
+ * <p>
+ * Any thread can append; appends are synchronized.
+ *
+ */
+public class EventJournal {
+
+    /**
+     * "SBJ1"
+     */
+    static final int MAGIC = 0x53424A31;
+
+    /**
+     * File format version
+     */
+    static final int VERSION = 2;
+
+    /**
+     * Size of the header
+     */
+    static final int HEADER_SIZE = 32;
+
+    /**
+     * Marks the end of the journal
+     */
+    static final byte TYPE_END = 0;
+
+    /**
+     * Defines a procedure id
+     */
+    static final byte TYPE_PROC = 1;
+
+    /**
+     * A procedure call
+     */
+    static final byte TYPE_CALL = 2;
+
+    /**
+     * Parameter types
+     */
+    static final byte PARAM_NULL = 0;
+    static final byte PARAM_LONG = 1;
+    static final byte PARAM_INT = 2;
+    static final byte PARAM_STRING = 3;
+    static final byte PARAM_TIMESTAMP = 4;
+    static final byte PARAM_DATE = 5;
+    static final byte PARAM_LONG_ARRAY = 6;
+    static final byte PARAM_STRING_ARRAY = 7;
+
+    /**
+     * How much of the file we map at once
+     */
+    private static final int REGION_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * Where we live
+     */
+    private final File file;
+
+    /**
+     * Our file
+     */
+    private final RandomAccessFile raf;
+
+    /**
+     * Our file's channel
+     */
+    private final FileChannel channel;
+
+    /**
+     * The part of the file we're currently writing to
+     */
+    private MappedByteBuffer region;
+
+    /**
+     * Where 'region' starts in the file
+     */
+    private long regionStart;
+
+    /**
+     * Where we build each record before copying it into 'region'
+     */
+    private ByteBuffer record = ByteBuffer.allocate(64 * 1024);
+
+    /**
+     * Procedure ids, by name
+     */
+    private final HashMap<String, Integer> procIds = new HashMap<String, Integer>();
+
+    /**
+     * System.nanoTime() when we started
+     */
+    private final long startNanos;
+
+    /**
+     * System.currentTimeMillis() when we started. Timestamps are stored
+     * relative to this.
+     */
+    private final long startMs;
+
+    /**
+     * Time of the previous call, relative to startNanos
+     */
+    private long lastRelativeNanos = 0;
+
+    /**
+     * How many calls we've recorded
+     */
+    private long callCount = 0;
+
+    /**
+     * Create a new journal, replacing any that's already there.
+     * 
+     * @param file
+     * @param seed the seed the generator's Random is using
+     * @throws IOException
+     */
+    public EventJournal(File file, long seed) throws IOException {
+        super();
+        this.file = file;
+
+        if (file.getParentFile() != null) {
+            file.getParentFile().mkdirs();
+        }
+
+        raf = new RandomAccessFile(file, "rw");
+        raf.setLength(0);
+        channel = raf.getChannel();
+
+        startNanos = System.nanoTime();
+        startMs = System.currentTimeMillis();
+
+        mapRegion(0);
+
+        region.putInt(MAGIC);
+        region.putInt(VERSION);
+        region.putLong(seed);
+        region.putLong(startMs);
+        region.putLong(0);
+    }
+
+    /**
+     * Record a procedure call
+     * 
+     * @param intendedStartNanos System.nanoTime() at which it was meant to be
+     *                           sent
+     * @param procName
+     * @param params
+     * @throws IOException
+     */
+    public synchronized void record(long intendedStartNanos, String procName, Object... params) throws IOException {
+
+        if (channel == null || !channel.isOpen()) {
+            throw new IOException("Journal " + file + " is closed");
+        }
+
+        if (params.length > 255) {
+            throw new IOException("Too many parameters for journal " + file + ": " + procName);
+        }
+
+        Integer procId = procIds.get(procName);
+
+        if (procId == null) {
+
+            if (procIds.size() > 255) {
+                throw new IOException("Too many procedures for journal " + file);
+            }
+
+            procId = procIds.size();
+            procIds.put(procName, procId);
+
+            byte[] name = procName.getBytes(StandardCharsets.UTF_8);
+
+            record.clear();
+            record.put(TYPE_PROC);
+            record.put(procId.byteValue());
+            putVarLong(name.length);
+            ensureRoom(name.length);
+            record.put(name);
+            append();
+        }
+
+        final long relativeNanos = intendedStartNanos - startNanos;
+
+        record.clear();
+        record.put(TYPE_CALL);
+        putZigZag(relativeNanos - lastRelativeNanos);
+        ensureRoom(2);
+        record.put(procId.byteValue());
+        record.put((byte) params.length);
+
+        for (int i = 0; i < params.length; i++) {
+            putParam(params[i]);
+        }
+
+        append();
+
+        lastRelativeNanos = relativeNanos;
+        callCount++;
+    }
+
+    /**
+     * @return how many calls we've recorded
+     */
+    public synchronized long getCallCount() {
+        return callCount;
+    }
+
+    /**
+     * Finish writing. The file is trimmed to the records we wrote, plus an end
+     * marker.
+     * 
+     * @throws IOException
+     */
+    public synchronized void close() throws IOException {
+
+        if (!channel.isOpen()) {
+            return;
+        }
+
+        record.clear();
+        record.put(TYPE_END);
+        append();
+
+        final long length = regionStart + region.position();
+
+        region.force();
+        region = null;
+
+        channel.truncate(length);
+        channel.close();
+        raf.close();
+
+        SimboxDataGenerator.msg("Journal " + file + " closed with " + callCount + " calls, " + length + " bytes");
+    }
+
+    /**
+     * Copy 'record' into the file, mapping the next region if need be
+     * 
+     * @throws IOException
+     */
+    private void append() throws IOException {
+
+        record.flip();
+
+        if (region.remaining() < record.remaining()) {
+            mapRegion(regionStart + region.position());
+        }
+
+        region.put(record);
+    }
+
+    /**
+     * Map the part of the file starting at 'position'
+     * 
+     * @param position
+     * @throws IOException
+     */
+    private void mapRegion(long position) throws IOException {
+
+        if (region != null) {
+            region.force();
+        }
+
+        regionStart = position;
+        region = channel.map(FileChannel.MapMode.READ_WRITE, position, Math.max(REGION_SIZE, record.capacity()));
+    }
+
+    /**
+     * Add a parameter to 'record'
+     * 
+     * @param param
+     */
+    private void putParam(Object param) {
+
+        ensureRoom(1);
+
+        if (param == null) {
+            record.put(PARAM_NULL);
+        } else if (param instanceof Long) {
+            record.put(PARAM_LONG);
+            putZigZag((Long) param);
+        } else if (param instanceof Integer) {
+            record.put(PARAM_INT);
+            putZigZag((Integer) param);
+        } else if (param instanceof String) {
+            record.put(PARAM_STRING);
+            putString((String) param);
+        } else if (param instanceof TimestampType) {
+            record.put(PARAM_TIMESTAMP);
+            putZigZag(((TimestampType) param).getTime() - (startMs * 1000));
+        } else if (param instanceof Date) {
+            record.put(PARAM_DATE);
+            putZigZag(((Date) param).getTime() - startMs);
+        } else if (param instanceof long[]) {
+            long[] values = (long[]) param;
+            record.put(PARAM_LONG_ARRAY);
+            putVarLong(values.length);
+            for (int i = 0; i < values.length; i++) {
+                putZigZag(values[i]);
+            }
+        } else if (param instanceof String[]) {
+            String[] values = (String[]) param;
+            record.put(PARAM_STRING_ARRAY);
+            putVarLong(values.length);
+            for (int i = 0; i < values.length; i++) {
+                putString(values[i]);
+            }
+        } else {
+            throw new IllegalArgumentException("Can't journal a " + param.getClass().getName());
+        }
+    }
+
+    /**
+     * Add a String to 'record'
+     * 
+     * @param value
+     */
+    private void putString(String value) {
+
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        putVarLong(bytes.length);
+        ensureRoom(bytes.length);
+        record.put(bytes);
+    }
+
+    /**
+     * Add a signed number to 'record'
+     * 
+     * @param value
+     */
+    private void putZigZag(long value) {
+        putVarLong((value << 1) ^ (value >> 63));
+    }
+
+    /**
+     * Add an unsigned number to 'record', 7 bits at a time
+     * 
+     * @param value
+     */
+    private void putVarLong(long value) {
+
+        ensureRoom(10);
+
+        while ((value & ~0x7FL) != 0) {
+            record.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+
+        record.put((byte) value);
+    }
+
+    /**
+     * Make sure 'record' has room for 'bytes' more bytes
+     * 
+     * @param bytes
+     */
+    private void ensureRoom(int bytes) {
+
+        if (record.remaining() < bytes) {
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(record.capacity() * 2, record.position() + bytes));
+            record.flip();
+            bigger.put(record);
+            record = bigger;
+        }
+    }
+
+}
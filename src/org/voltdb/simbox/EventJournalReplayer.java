@@ -0,0 +1,310 @@
+package org.voltdb.simbox;
+
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.concurrent.locks.LockSupport;
+
+import org.voltdb.types.TimestampType;
+
+/**
+ * Plays back a journal written by EventJournal, so we can send exactly the
+ * same workload to different versions of the schema or procedures.
+ * <p>
+ * Calls are sent at the same relative times they were recorded, divided by
+ * 'speed'. A speed of 0 or less sends them as fast as we can. Latency is
+ * measured from when each call was scheduled, so falling behind shows up as
+ * latency.
+ * <p>
+ * By default timestamps are rebased: a timestamp recorded N ms after the
+ * journal started is replayed as N ms after the replay started, so events
+ * land in the same scoring windows they did when they were recorded.
+ *
+ */
+public class EventJournalReplayer {
+
+    /**
+     * Where the journal lives
+     */
+    private final File file;
+
+    /**
+     * Where we send calls
+     */
+    private final EventSink sink;
+
+    /**
+     * Where we report stats
+     */
+    private final StatsPublisher stats;
+
+    /**
+     * How much faster than real time we go, or 0 or less for flat out
+     */
+    private final double speed;
+
+    /**
+     * Whether timestamps are moved to the replay's start time, or replayed as
+     * recorded
+     */
+    private final boolean rebaseTimestamps;
+
+    /**
+     * Where we record latency
+     */
+    private final LatencyTracker latencyTracker;
+
+    /**
+     * Procedure names, by id
+     */
+    private final ArrayList<String> procNames = new ArrayList<String>();
+
+    /**
+     * How many calls we've sent
+     */
+    private long callCount = 0;
+
+    /**
+     * @param file
+     * @param sink
+     * @param stats
+     * @param speed
+     * @param rebaseTimestamps
+     * @param latencyTracker
+     */
+    public EventJournalReplayer(File file, EventSink sink, StatsPublisher stats, double speed,
+            boolean rebaseTimestamps, LatencyTracker latencyTracker) {
+        super();
+        this.file = file;
+        this.sink = sink;
+        this.stats = stats;
+        this.speed = speed;
+        this.rebaseTimestamps = rebaseTimestamps;
+        this.latencyTracker = latencyTracker;
+    }
+
+    /**
+     * Send every call in the journal, reporting latency every 60 seconds.
+     * 
+     * @throws Exception
+     */
+    public void run() throws Exception {
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1024 * 1024))) {
+
+            if (in.readInt() != EventJournal.MAGIC || in.readInt() != EventJournal.VERSION) {
+                throw new IOException(file + " is not a journal we understand");
+            }
+
+            final long seed = in.readLong();
+            final long recordedStartMs = in.readLong();
+            in.skipBytes(EventJournal.HEADER_SIZE - 24);
+
+            SimboxDataGenerator.msg("Replaying " + file + ", recorded at " + new Date(recordedStartMs) + " with seed "
+                    + seed + ", speed=" + (speed > 0 ? speed + "x" : "flat out") + ", rebaseTimestamps="
+                    + rebaseTimestamps);
+
+            // What timestamps in the journal are relative to
+            final long baseMs = rebaseTimestamps ? System.currentTimeMillis() : recordedStartMs;
+            final long startNanos = System.nanoTime();
+            long lastStatsNanos = startNanos;
+            long relativeNanos = 0;
+
+            while (true) {
+
+                byte type;
+
+                try {
+                    type = in.readByte();
+                } catch (EOFException e) {
+                    break;
+                }
+
+                if (type == EventJournal.TYPE_END) {
+                    break;
+                }
+
+                if (type == EventJournal.TYPE_PROC) {
+
+                    int procId = in.readUnsignedByte();
+                    byte[] name = new byte[(int) readVarLong(in)];
+                    in.readFully(name);
+
+                    while (procNames.size() <= procId) {
+                        procNames.add(null);
+                    }
+
+                    procNames.set(procId, new String(name, StandardCharsets.UTF_8));
+                    continue;
+
+                }
+
+                if (type != EventJournal.TYPE_CALL) {
+                    throw new IOException("Unknown record type " + type + " after " + callCount + " calls");
+                }
+
+                relativeNanos += readZigZag(in);
+
+                final String procName = procNames.get(in.readUnsignedByte());
+                final Object[] params = new Object[in.readUnsignedByte()];
+
+                for (int i = 0; i < params.length; i++) {
+                    params[i] = readParam(in, baseMs);
+                }
+
+                long intendedStartNanos = System.nanoTime();
+
+                if (speed > 0) {
+
+                    intendedStartNanos = startNanos + (long) (Math.max(0, relativeNanos) / speed);
+
+                    long nowNanos = System.nanoTime();
+
+                    while (nowNanos < intendedStartNanos) {
+                        LockSupport.parkNanos(intendedStartNanos - nowNanos);
+                        nowNanos = System.nanoTime();
+                    }
+                }
+
+                sink.send(intendedStartNanos, procName, params);
+                callCount++;
+
+                if (System.nanoTime() - lastStatsNanos > 60000000000L) {
+                    SimboxDataGenerator.msg("Replayed " + callCount + " calls");
+                    latencyTracker.reportAndReset(stats);
+                    stats.publish();
+                    lastStatsNanos = System.nanoTime();
+                }
+            }
+
+            sink.drain();
+
+            SimboxDataGenerator.msg("Replayed " + callCount + " calls in "
+                    + ((System.nanoTime() - startNanos) / 1000000) + "ms");
+            latencyTracker.reportAndReset(stats);
+            stats.publish();
+
+        }
+
+    }
+
+    /**
+     * @return how many calls we've sent
+     */
+    public long getCallCount() {
+        return callCount;
+    }
+
+    /**
+     * @param in
+     * @param baseMs what timestamps are relative to
+     * @return the next parameter in 'in'
+     * @throws IOException
+     */
+    private static Object readParam(DataInputStream in, long baseMs) throws IOException {
+
+        final byte paramType = in.readByte();
+
+        switch (paramType) {
+        case EventJournal.PARAM_NULL:
+            return null;
+        case EventJournal.PARAM_LONG:
+            return readZigZag(in);
+        case EventJournal.PARAM_INT:
+            return (int) readZigZag(in);
+        case EventJournal.PARAM_STRING:
+            return readString(in);
+        case EventJournal.PARAM_TIMESTAMP:
+            return new TimestampType(readZigZag(in) + (baseMs * 1000));
+        case EventJournal.PARAM_DATE:
+            return new Date(readZigZag(in) + baseMs);
+        case EventJournal.PARAM_LONG_ARRAY:
+            long[] longs = new long[(int) readVarLong(in)];
+            for (int i = 0; i < longs.length; i++) {
+                longs[i] = readZigZag(in);
+            }
+            return longs;
+        case EventJournal.PARAM_STRING_ARRAY:
+            String[] strings = new String[(int) readVarLong(in)];
+            for (int i = 0; i < strings.length; i++) {
+                strings[i] = readString(in);
+            }
+            return strings;
+        default:
+            throw new IOException("Unknown parameter type " + paramType);
+        }
+    }
+
+    /**
+     * @param in
+     * @return the next String in 'in'
+     * @throws IOException
+     */
+    private static String readString(DataInputStream in) throws IOException {
+
+        byte[] bytes = new byte[(int) readVarLong(in)];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param in
+     * @return the next signed number in 'in'
+     * @throws IOException
+     */
+    private static long readZigZag(DataInputStream in) throws IOException {
+
+        final long value = readVarLong(in);
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * @param in
+     * @return the next unsigned number in 'in'
+     * @throws IOException
+     */
+    private static long readVarLong(DataInputStream in) throws IOException {
+
+        long value = 0;
+        int shift = 0;
+        byte b;
+
+        do {
+            b = in.readByte();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+
+        return value;
+    }
+
+}
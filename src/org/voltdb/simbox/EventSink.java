@@ -0,0 +1,66 @@
+package org.voltdb.simbox;
+
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+import java.io.IOException;
+
+/**
+ * Somewhere the generator sends its events. Normally this is VoltDB, but
+ * being able to swap it out lets us measure what the generator itself costs,
+ * or run it with no cluster at all.
+ * <p>
+ * Events are asynchronous: send() returns once the event has been accepted,
+ * not once it's been processed. Sinks must be safe to use from many threads.
+ *
+ */
+public interface EventSink {
+
+    /**
+     * Send an event
+     * 
+     * @param intendedStartNanos System.nanoTime() at which the event was meant
+     *                           to be sent
+     * @param procName           the procedure that handles the event
+     * @param params
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    void send(long intendedStartNanos, String procName, Object... params) throws IOException, InterruptedException;
+
+    /**
+     * @param deviceId
+     * @return the partition events for 'deviceId' go to, or -1 if we don't
+     *         know
+     */
+    long getPartition(long deviceId);
+
+    /**
+     * Wait until every event we've been sent has been processed.
+     * 
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    void drain() throws IOException, InterruptedException;
+
+}
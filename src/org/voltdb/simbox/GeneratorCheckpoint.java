@@ -0,0 +1,340 @@
+package org.voltdb.simbox;
+
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Date;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.voltdb.VoltTable;
+import org.voltdb.client.Client;
+import org.voltdb.client.ClientResponse;
+
+/**
+ * Saves the generator's state to a compact binary file, alongside a VoltDB
+ * snapshot of the database taken at the same moment, so a later run can
+ * restore both and skip straight to the measured phase.
+ * <p>
+ * The file holds the simbox, the generator's running totals, and for each
+ * device its cell, when it last moved, when it was created and its popular
+ * numbers. Calls in progress aren't saved, as the generator only takes a
+ * checkpoint once everything has finished. Times are absolute, so they agree
+ * with the timestamps in the snapshot.
+ * <p>
+ * The file is called NONCE.simbox and lives in 'directory'. The snapshot is
+ * written to the same 'directory' on the database servers, using NONCE as its
+ * name.
+ *
+ */
+public class GeneratorCheckpoint {
+
+    /**
+     * "SIMB"
+     */
+    private static final int MAGIC = 0x53494D42;
+
+    /**
+     * File format version
+     */
+    private static final int VERSION = 1;
+
+    /**
+     * Where the checkpoint and snapshot live
+     */
+    private final String directory;
+
+    /**
+     * Name of the checkpoint and snapshot
+     */
+    private final String nonce;
+
+    /**
+     * @param directory
+     * @param nonce
+     */
+    public GeneratorCheckpoint(String directory, String nonce) {
+        super();
+        this.directory = directory;
+        this.nonce = nonce;
+    }
+
+    /**
+     * Take a snapshot of the database and write our generator's state next to
+     * it. Nothing should be running when we're called.
+     * 
+     * @param generator
+     * @param c
+     * @throws Exception
+     */
+    public void save(SimboxDataGenerator generator, Client c) throws Exception {
+
+        SimboxDataGenerator.msg("Saving snapshot " + nonce + " to " + directory);
+
+        ClientResponse cr = c.callProcedure("@SnapshotSave", directory, nonce, 1);
+        checkSnapshotResults("@SnapshotSave", cr);
+
+        File checkpointFile = getFile();
+        File tempFile = new File(checkpointFile.getPath() + ".tmp");
+
+        checkpointFile.getParentFile().mkdirs();
+
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(tempFile))))) {
+            write(generator, out);
+        }
+
+        if (!tempFile.renameTo(checkpointFile)) {
+            throw new IOException("Unable to rename " + tempFile + " to " + checkpointFile);
+        }
+
+        SimboxDataGenerator.msg("Saved checkpoint " + checkpointFile);
+    }
+
+    /**
+     * Empty our tables, restore the database snapshot and then read our
+     * generator's state. The generator must have created its shards but not
+     * any devices.
+     * 
+     * @param generator
+     * @param c
+     * @throws Exception
+     */
+    public void restore(SimboxDataGenerator generator, Client c) throws Exception {
+
+        File checkpointFile = getFile();
+
+        if (!checkpointFile.canRead()) {
+            throw new IOException("Can't read checkpoint " + checkpointFile);
+        }
+
+        // Snapshots can only be restored into empty tables...
+        ClientResponse cr = c.callProcedure("@SystemCatalog", "TABLES");
+        VoltTable tables = cr.getResults()[0];
+
+        while (tables.advanceRow()) {
+            if (tables.getString("TABLE_TYPE").equals("TABLE")) {
+                c.callProcedure("@AdHoc", "TRUNCATE TABLE " + tables.getString("TABLE_NAME") + ";");
+            }
+        }
+
+        SimboxDataGenerator.msg("Restoring snapshot " + nonce + " from " + directory);
+
+        cr = c.callProcedure("@SnapshotRestore", directory, nonce);
+        checkSnapshotResults("@SnapshotRestore", cr);
+
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new GZIPInputStream(new FileInputStream(checkpointFile))))) {
+            read(generator, in);
+        }
+
+        SimboxDataGenerator.msg("Restored checkpoint " + checkpointFile);
+    }
+
+    /**
+     * @return the file our generator state lives in
+     */
+    public File getFile() {
+        return new File(directory, nonce + ".simbox");
+    }
+
+    /**
+     * Write our generator's state
+     * 
+     * @param generator
+     * @param out
+     * @throws IOException
+     */
+    private void write(SimboxDataGenerator generator, DataOutputStream out) throws IOException {
+
+        final int userCount = generator.getUserCount();
+        final Simbox simbox = generator.getSimbox();
+
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(System.currentTimeMillis());
+        out.writeInt(userCount);
+        out.writeInt(generator.getCellCount());
+
+        // The simbox...
+        out.writeInt(simbox.getCellId());
+        out.writeLong(simbox.getLastCellMoveMs());
+        out.writeInt(simbox.getEvilCallCount());
+        out.writeInt(simbox.getFakeCallCount());
+        out.writeInt(simbox.getBusyCount());
+        out.writeLong(simbox.getTotalSimcallSeconds());
+
+        long[] simList = simbox.getSimList();
+        out.writeInt(simList.length);
+
+        for (int i = 0; i < simList.length; i++) {
+            out.writeInt((int) simList[i]);
+        }
+
+        // Running totals...
+        long[] totals = generator.getShardTotals();
+        out.writeInt(totals.length);
+
+        for (int i = 0; i < totals.length; i++) {
+            out.writeLong(totals[i]);
+        }
+
+        // And the devices
+        for (int deviceId = 0; deviceId < userCount; deviceId++) {
+
+            DeviceStore store = generator.getDeviceStore(deviceId);
+            int index = store.getIndex(deviceId);
+
+            out.writeInt(store.getCellId(index));
+            out.writeLong(store.getLastCellMoveMs(index));
+            out.writeLong(store.getCreateTimeMs(index));
+
+            synchronized (store.getLock(index)) {
+
+                int popularNumberCount = store.getPopularNumberCount(index);
+                out.writeByte(popularNumberCount);
+
+                for (int i = 0; i < popularNumberCount; i++) {
+                    out.writeInt((int) store.getPopularNumber(index, i));
+                }
+            }
+        }
+
+    }
+
+    /**
+     * Read our generator's state
+     * 
+     * @param generator
+     * @param in
+     * @throws IOException
+     */
+    private void read(SimboxDataGenerator generator, DataInputStream in) throws IOException {
+
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+            throw new IOException(getFile() + " is not a simbox checkpoint we understand");
+        }
+
+        final long checkpointTimeMs = in.readLong();
+        final int userCount = in.readInt();
+        final int cellCount = in.readInt();
+
+        if (userCount != generator.getUserCount() || cellCount != generator.getCellCount()) {
+            throw new IOException("Checkpoint has " + userCount + " users and " + cellCount
+                    + " cells; we have " + generator.getUserCount() + " and " + generator.getCellCount());
+        }
+
+        SimboxDataGenerator.msg("Checkpoint was taken at " + new Date(checkpointTimeMs));
+
+        // The simbox...
+        final Simbox simbox = generator.getSimbox();
+        final int simboxCellId = in.readInt();
+        final long simboxLastCellMoveMs = in.readLong();
+        final int evilCallCount = in.readInt();
+        final int fakeCallCount = in.readInt();
+        final int busyCount = in.readInt();
+        final long totalSimcallSeconds = in.readLong();
+
+        simbox.restore(simboxCellId, simboxLastCellMoveMs, evilCallCount, fakeCallCount, busyCount,
+                totalSimcallSeconds);
+
+        long[] simList = new long[in.readInt()];
+
+        for (int i = 0; i < simList.length; i++) {
+            simList[i] = in.readInt();
+        }
+
+        // Running totals...
+        long[] totals = new long[in.readInt()];
+
+        for (int i = 0; i < totals.length; i++) {
+            totals[i] = in.readLong();
+        }
+
+        // And the devices
+        for (int deviceId = 0; deviceId < userCount; deviceId++) {
+
+            final int cellId = in.readInt();
+            final long lastCellMoveMs = in.readLong();
+            final long createTimeMs = in.readLong();
+
+            generator.createDevice(deviceId, cellId);
+
+            DeviceStore store = generator.getDeviceStore(deviceId);
+            int index = store.getIndex(deviceId);
+
+            store.setCellId(index, cellId, lastCellMoveMs);
+            store.setCreateTimeMs(index, createTimeMs);
+
+            synchronized (store.getLock(index)) {
+
+                int popularNumberCount = in.readUnsignedByte();
+
+                for (int i = 0; i < popularNumberCount; i++) {
+                    store.addPopularNumber(index, in.readInt());
+                }
+            }
+        }
+
+        // Adding a sim moves it to the simbox's cell, which is where it was
+        // anyway, but also resets when it moved...
+        for (int i = 0; i < simList.length; i++) {
+            DeviceStore store = generator.getDeviceStore(simList[i]);
+            int index = store.getIndex(simList[i]);
+            long lastCellMoveMs = store.getLastCellMoveMs(index);
+
+            simbox.addSim(store.getDevice(simList[i]));
+            store.setCellId(index, simboxCellId, lastCellMoveMs);
+        }
+
+        generator.restoreShardTotals(totals);
+
+    }
+
+    /**
+     * Make sure a snapshot request worked on every host
+     * 
+     * @param procName
+     * @param cr
+     * @throws IOException
+     */
+    private static void checkSnapshotResults(String procName, ClientResponse cr) throws IOException {
+
+        VoltTable results = cr.getResults()[0];
+
+        while (results.advanceRow()) {
+            if (!results.getString("RESULT").equals("SUCCESS")) {
+                throw new IOException(procName + " failed: " + results.getString("ERR_MSG"));
+            }
+        }
+    }
+
+}
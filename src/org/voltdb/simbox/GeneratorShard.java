@@ -0,0 +1,400 @@
+package org.voltdb.simbox;
+
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * One worker thread of the data generator. A shard owns a contiguous range of
+ * device IDs, its own Random and (optionally) its own event sink. Calls
+ * always originate from a device the shard owns, but may be made to a device
+ * owned by any shard.
+ * <p>
+ * Only shard 0 drives the simbox. The simbox is saturated long before any
+ * realistic event rate is reached, so this doesn't change its behaviour.
+ *
+ */
+public class GeneratorShard implements Runnable {
+
+    /**
+     * Index into our counters: times we couldn't find a free pair of numbers
+     */
+    public static final int BUSY_COUNT = 0;
+
+    /**
+     * Index into our counters: simbox calls
+     */
+    public static final int EVIL_COUNT = 1;
+
+    /**
+     * Index into our counters: normal calls
+     */
+    public static final int GOOD_CALL_COUNT = 2;
+
+    /**
+     * Index into our counters: normal cell moves
+     */
+    public static final int GOOD_CELL_MOVES = 3;
+
+    /**
+     * Index into our counters: simbox cell moves
+     */
+    public static final int EVIL_CELL_MOVES = 4;
+
+    /**
+     * How many counters we have
+     */
+    public static final int COUNTER_COUNT = 5;
+
+    /**
+     * How many times we ask a calling device for a number to call before giving
+     * up because they're all busy.
+     *
+     * Making this number bigger will slow the generator down as the system gets
+     * busy.
+     */
+    private static final int RANDOM_SEARCH_ATTEMPTS = 30;
+
+    /**
+     * Which shard we are
+     */
+    private final int shardId;
+
+    /**
+     * First device ID we own
+     */
+    private final long firstDeviceId;
+
+    /**
+     * How many devices we own
+     */
+    private final int deviceCount;
+
+    /**
+     * The generator we belong to. Used to find devices owned by other shards.
+     */
+    private final SimboxDataGenerator generator;
+
+    /**
+     * Where we send our events. May or may not be shared with other shards.
+     */
+    private final EventSink sink;
+
+    /**
+     * Our own Random, split from the generator's.
+     */
+    private final SplittableRandom r;
+
+    /**
+     * Decides when we can send each transaction
+     */
+    private final RateController rateController;
+
+    /**
+     * Our simbox, or null if we're not shard 0
+     */
+    private final Simbox evilSimBox;
+
+    /**
+     * The devices we own.
+     */
+    private final DeviceStore devices;
+
+    /**
+     * The devices we own that aren't in a call, and aren't in the simbox.
+     */
+    private final IdleDevicePool idlePool;
+
+    /**
+     * Running totals, indexed by BUSY_COUNT etc. Only ever written by our own
+     * thread; read by the generator when it reports stats.
+     */
+    private final AtomicLongArray counters = new AtomicLongArray(COUNTER_COUNT);
+
+    /**
+     * UTC time we stop running
+     */
+    private volatile long endMs;
+
+    /**
+     * Create a shard owning devices firstDeviceId to firstDeviceId +
+     * deviceCount - 1.
+     *
+     * @param shardId
+     * @param firstDeviceId
+     * @param deviceCount
+     * @param generator
+     * @param sink
+     * @param r
+     * @param rateController
+     * @param evilSimBox     simbox we drive, or null
+     */
+    public GeneratorShard(int shardId, long firstDeviceId, int deviceCount, SimboxDataGenerator generator,
+            EventSink sink, SplittableRandom r, RateController rateController, Simbox evilSimBox) {
+        super();
+        this.shardId = shardId;
+        this.firstDeviceId = firstDeviceId;
+        this.deviceCount = deviceCount;
+        this.generator = generator;
+        this.sink = sink;
+        this.r = r;
+        this.rateController = rateController;
+        this.evilSimBox = evilSimBox;
+
+        devices = new DeviceStore(firstDeviceId, deviceCount);
+        idlePool = new IdleDevicePool(devices);
+    }
+
+    /**
+     * Generate activity for the devices we own until endMs.
+     */
+    @Override
+    public void run() {
+
+        try {
+
+            // Sims in the simbox don't make calls of their own accord
+            for (int i = 0; i < deviceCount; i++) {
+                if (!generator.getSimbox().isEvil(firstDeviceId + i)) {
+                    idlePool.add(i);
+                }
+            }
+
+            while (System.currentTimeMillis() < endMs) {
+
+                UserDevice callingNumber = getNonbusyLegalNumber(null);
+                UserDevice calledNumber = getNonbusyLegalNumber(callingNumber);
+
+                if (callingNumber == null || calledNumber == null) {
+                    // Can't find a free number
+                    counters.incrementAndGet(BUSY_COUNT);
+                    continue;
+                }
+
+                int callLength = r.nextInt(generator.getMaxRandomCallLengthSeconds());
+
+                // Try making a simbox call
+                boolean simboxCallMade = evilSimBox != null
+                        && evilSimBox.routeInternationalCall(calledNumber, sink, rateController, callLength);
+
+                if (simboxCallMade) {
+                    counters.incrementAndGet(EVIL_COUNT);
+                } else {
+
+                    // Do 'normal' activity.
+
+                    // Change cell one time in 20.
+                    if (callingNumber.deviceInCellForNMinutes(2) && r.nextInt(20) == 0) {
+
+                        // Change cell id
+
+                        long cellId = callingNumber.getCellId();
+
+                        // Move to an adjacent cell...
+                        getNextCellId(cellId);
+
+                        sink.send(rateController.acquire(1), "ReportCellChange",
+                                callingNumber.changeCellid(r.nextInt(generator.getCellCount())));
+
+                        counters.incrementAndGet(GOOD_CELL_MOVES);
+
+                    } else if (callingNumber.makeCall(r, calledNumber, callLength, sink, rateController)) {
+
+                        // made a normal call
+                        idlePool.park(devices.getIndex(callingNumber.getDeviceId()));
+                        counters.incrementAndGet(GOOD_CALL_COUNT);
+
+                    } else {
+
+                        // Another shard grabbed one of our numbers first
+                        counters.incrementAndGet(BUSY_COUNT);
+                    }
+                }
+
+                // Our evil simbox is in the back of a truck and moves around...
+                if (evilSimBox != null && evilSimBox.haventMovedInXMinutes(2)) {
+
+                    int nextEvilCellId = (evilSimBox.getCellId() + 1) % generator.getCellCount();
+
+                    evilSimBox.moveCell(nextEvilCellId, sink, rateController);
+                    counters.addAndGet(EVIL_CELL_MOVES, evilSimBox.getSimCount());
+
+                }
+
+            }
+
+        } catch (Exception e) {
+            SimboxDataGenerator.msg("Shard " + shardId + " failed");
+            e.printStackTrace();
+        }
+
+    }
+
+    /**
+     * Get a number which isn't currently involved in making a call. Calling
+     * numbers are always ones we own and come from our idle pool. Called numbers
+     * can belong to anyone, and depend on who the caller likes to call.
+     *
+     * @param callingNumber the number we're calling from, or null if we want a
+     *                      calling number
+     * @return A number we can call...
+     */
+    private UserDevice getNonbusyLegalNumber(UserDevice callingNumber) {
+
+        if (callingNumber == null) {
+
+            final int index = idlePool.pickIdle(r, System.currentTimeMillis());
+
+            if (index < 0) {
+                return null;
+            }
+
+            return devices.getDevice(firstDeviceId + index);
+
+        }
+
+        for (int i = 0; i < RANDOM_SEARCH_ATTEMPTS; i++) {
+
+            long nextNumberToCall = callingNumber.getNextNumberToCall(generator.getSimbox(), r,
+                    generator.getUserCount());
+
+            UserDevice ourSession = generator.getDevice(nextNumberToCall);
+
+            if (!ourSession.isBusy()) {
+                return ourSession;
+            }
+
+        }
+
+        return null;
+    }
+
+    /**
+     * Move to next cell
+     *
+     * @param oldCellId
+     * @return
+     */
+    private long getNextCellId(long oldCellId) {
+
+        final int cellCount = generator.getCellCount();
+        long newCellId = oldCellId;
+
+        if (r.nextInt(2) == 0) {
+            newCellId = (oldCellId + 1) % cellCount;
+        } else {
+
+            if (oldCellId == 0) {
+                newCellId = cellCount - 1;
+            } else {
+                newCellId = oldCellId - 1;
+            }
+
+        }
+
+        return newCellId;
+    }
+
+    /**
+     * Create a device we own.
+     *
+     * @param deviceId
+     * @param cellId
+     * @return the new device
+     */
+    public UserDevice createDevice(long deviceId, long cellId) {
+        return devices.createDevice(deviceId, cellId);
+    }
+
+    /**
+     * @return where our devices live
+     */
+    DeviceStore getDeviceStore() {
+        return devices;
+    }
+
+    /**
+     * Add to one of our running totals. Used when restoring a checkpoint.
+     * 
+     * @param counter BUSY_COUNT etc
+     * @param delta
+     */
+    void addToCounter(int counter, long delta) {
+        counters.addAndGet(counter, delta);
+    }
+
+    /**
+     * @param deviceId
+     * @return the device, which must be one we own
+     */
+    public UserDevice getDevice(long deviceId) {
+        return devices.getDevice(deviceId);
+    }
+
+    /**
+     * @return how many devices we own
+     */
+    public int getDeviceCount() {
+        return devices.getDeviceCount();
+    }
+
+    /**
+     * @param counter BUSY_COUNT etc
+     * @return running total for 'counter'
+     */
+    public long getCounter(int counter) {
+        return counters.get(counter);
+    }
+
+    /**
+     * @param endMs the UTC time we stop running
+     */
+    public void setEndMs(long endMs) {
+        this.endMs = endMs;
+    }
+
+    /**
+     * @return our rate controller
+     */
+    public RateController getRateController() {
+        return rateController;
+    }
+
+    /**
+     * @return where we send our events
+     */
+    public EventSink getEventSink() {
+        return sink;
+    }
+
+    /**
+     * @return the shardId
+     */
+    public int getShardId() {
+        return shardId;
+    }
+
+}
@@ -0,0 +1,272 @@
+package org.voltdb.simbox;
+
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+import java.util.SplittableRandom;
+
+/**
+ * The idle devices in a DeviceStore, so we can pick a random one in constant
+ * time no matter how busy the network is.
+ * <p>
+ * Idle devices live in an array we can pick from at random. When a device
+ * makes a call it is 'parked' in a hashed timing wheel, in the slot for when
+ * the call ends. As time passes we sweep the wheel and put devices whose calls
+ * have finished back in the array.
+ * <p>
+ * Devices can also be called by other shards without us knowing. We find out
+ * when we pick one and it turns out to be busy, at which point we park it.
+ * Each device is only parked once per call, so this costs nothing extra in the
+ * long run.
+ * <p>
+ * Not thread safe. Only used by the shard that owns the store.
+ *
+ */
+public class IdleDevicePool {
+
+    /**
+     * How long each slot in our timing wheel lasts
+     */
+    private static final long TICK_MS = 100;
+
+    /**
+     * How many slots our wheel has. Must be a power of 2. Calls that end more
+     * than WHEEL_SIZE * TICK_MS in the future go round more than once.
+     */
+    private static final int WHEEL_SIZE = 1024;
+
+    /**
+     * Marks the end of a list, or a device that isn't idle
+     */
+    private static final int NONE = -1;
+
+    /**
+     * Where our devices live
+     */
+    private final DeviceStore store;
+
+    /**
+     * Store indexes of idle devices. Only the first 'idleCount' are in use.
+     */
+    private final int[] idle;
+
+    /**
+     * For each store index, where it is in 'idle' or NONE.
+     */
+    private final int[] position;
+
+    /**
+     * How many devices are idle.
+     */
+    private int idleCount = 0;
+
+    /**
+     * For each wheel slot, the first store index parked in it or NONE.
+     */
+    private final int[] wheelHead = new int[WHEEL_SIZE];
+
+    /**
+     * For each store index, the next store index in the same wheel slot or NONE.
+     */
+    private final int[] wheelNext;
+
+    /**
+     * Last tick we swept
+     */
+    private long currentTick;
+
+    /**
+     * Create an empty pool for 'store'.
+     *
+     * @param store
+     */
+    public IdleDevicePool(DeviceStore store) {
+        super();
+        this.store = store;
+
+        idle = new int[store.getDeviceCount()];
+        position = new int[store.getDeviceCount()];
+        wheelNext = new int[store.getDeviceCount()];
+
+        for (int i = 0; i < position.length; i++) {
+            position[i] = NONE;
+            wheelNext[i] = NONE;
+        }
+
+        for (int i = 0; i < wheelHead.length; i++) {
+            wheelHead[i] = NONE;
+        }
+
+        currentTick = System.currentTimeMillis() / TICK_MS;
+    }
+
+    /**
+     * Add a device that may be used for calls.
+     *
+     * @param index store index
+     */
+    public void add(int index) {
+
+        if (position[index] == NONE) {
+            position[index] = idleCount;
+            idle[idleCount++] = index;
+        }
+    }
+
+    /**
+     * Pick a random idle device. The device stays in the pool until it's
+     * parked.
+     *
+     * @param r
+     * @param nowMs
+     * @return store index of an idle device, or NONE if they're all busy
+     */
+    public int pickIdle(SplittableRandom r, long nowMs) {
+
+        sweep(nowMs);
+
+        while (idleCount > 0) {
+
+            final int index = idle[r.nextInt(idleCount)];
+
+            if (store.getCallEndTimeMs(index) < nowMs) {
+                return index;
+            }
+
+            // Someone called it behind our back...
+            park(index);
+        }
+
+        return NONE;
+    }
+
+    /**
+     * Take a device out of the pool until its current call ends.
+     *
+     * @param index store index
+     */
+    public void park(int index) {
+
+        remove(index);
+        addToWheel(index, getTick(store.getCallEndTimeMs(index)));
+
+    }
+
+    /**
+     * @return how many devices are idle
+     */
+    public int getIdleCount() {
+        return idleCount;
+    }
+
+    /**
+     * Put devices whose calls have finished back in the pool.
+     *
+     * @param nowMs
+     */
+    private void sweep(long nowMs) {
+
+        final long nowTick = getTick(nowMs);
+
+        if (nowTick <= currentTick) {
+            return;
+        }
+
+        final long firstTick = currentTick + 1;
+
+        // If we've fallen more than a revolution behind we only need to look at
+        // each slot once.
+        final long ticksToSweep = Math.min(nowTick - currentTick, WHEEL_SIZE);
+
+        currentTick = nowTick;
+
+        for (long i = 0; i < ticksToSweep; i++) {
+
+            final int slot = (int) ((firstTick + i) & (WHEEL_SIZE - 1));
+
+            int index = wheelHead[slot];
+            wheelHead[slot] = NONE;
+
+            while (index != NONE) {
+
+                final int nextIndex = wheelNext[index];
+                final long callEndTick = getTick(store.getCallEndTimeMs(index));
+
+                if (callEndTick < nowTick) {
+                    wheelNext[index] = NONE;
+                    add(index);
+                } else {
+                    // Not finished yet, either because it's going round more
+                    // than once or because it was called again.
+                    addToWheel(index, callEndTick);
+                }
+
+                index = nextIndex;
+            }
+        }
+
+    }
+
+    /**
+     * Put a device in the wheel slot for 'tick'. Slots we've already swept are
+     * treated as the next one we haven't.
+     *
+     * @param index store index
+     * @param tick
+     */
+    private void addToWheel(int index, long tick) {
+
+        final int slot = (int) (Math.max(tick, currentTick + 1) & (WHEEL_SIZE - 1));
+        wheelNext[index] = wheelHead[slot];
+        wheelHead[slot] = index;
+
+    }
+
+    /**
+     * Remove a device from the idle array, if it's there.
+     *
+     * @param index store index
+     */
+    private void remove(int index) {
+
+        final int pos = position[index];
+
+        if (pos != NONE) {
+
+            // Move the last idle device into the gap
+            final int lastIndex = idle[--idleCount];
+            idle[pos] = lastIndex;
+            position[lastIndex] = pos;
+            position[index] = NONE;
+        }
+    }
+
+    /**
+     * @param timeMs
+     * @return the wheel tick 'timeMs' falls in
+     */
+    private static long getTick(long timeMs) {
+        return timeMs / TICK_MS;
+    }
+
+}
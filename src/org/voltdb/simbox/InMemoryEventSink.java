@@ -0,0 +1,211 @@
+package org.voltdb.simbox;
+
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A stand-in for VoltDB that lives in memory. Each partition processes one
+ * event at a time, taking a random (exponentially distributed) service time,
+ * so events queue up behind each other the way they would in a real
+ * partition. Events whose first parameter is a Long go to a single partition;
+ * anything else ties up every partition, like a multi-partition transaction.
+ * <p>
+ * Like the VoltDB client, we only allow so many events to be outstanding at
+ * once. When that limit is reached send() blocks until one finishes, which
+ * applies backpressure to the generator.
+ * <p>
+ * Each event gets a LatencyCallback from the LatencyTracker when it's sent. A
+ * timer thread completes it when the event finishes, so latency and calls in
+ * flight show up in the generator's usual stats as they happen.
+ * <p>
+ * Each partition's state is updated on its own, so threads sending to
+ * different partitions don't wait for each other. Only multi-partition events
+ * need every partition at once.
+ *
+ */
+public class InMemoryEventSink implements EventSink {
+
+    /**
+     * When each partition will be free
+     */
+    private final AtomicLongArray partitionFreeNanos;
+
+    /**
+     * Single partition events share this; multi-partition events have it to
+     * themselves
+     */
+    private final ReadWriteLock partitionLock = new ReentrantReadWriteLock();
+
+    /**
+     * Average time to process an event
+     */
+    private final long meanServiceNanos;
+
+    /**
+     * How many events can be outstanding before we block
+     */
+    private final int maxOutstanding;
+
+    /**
+     * One permit for each event that can still be sent without blocking
+     */
+    private final Semaphore outstanding;
+
+    /**
+     * Where we record latency
+     */
+    private final LatencyTracker latencyTracker;
+
+    /**
+     * Completes events when they finish
+     */
+    private final ScheduledThreadPoolExecutor completer;
+
+    /**
+     * How many times send() had to wait
+     */
+    private final LongAdder backpressureCount = new LongAdder();
+
+    /**
+     * @param partitionCount
+     * @param meanServiceMicros
+     * @param maxOutstanding
+     * @param latencyTracker
+     */
+    public InMemoryEventSink(int partitionCount, long meanServiceMicros, int maxOutstanding,
+            LatencyTracker latencyTracker) {
+        super();
+        this.partitionFreeNanos = new AtomicLongArray(Math.max(1, partitionCount));
+        this.meanServiceNanos = meanServiceMicros * 1000;
+        this.maxOutstanding = Math.max(1, maxOutstanding);
+        this.outstanding = new Semaphore(this.maxOutstanding);
+        this.latencyTracker = latencyTracker;
+
+        this.completer = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread t = new Thread(r, "InMemoryEventSink");
+            t.setDaemon(true);
+            return t;
+        });
+
+        final long nowNanos = System.nanoTime();
+
+        for (int i = 0; i < partitionFreeNanos.length(); i++) {
+            partitionFreeNanos.set(i, nowNanos);
+        }
+    }
+
+    @Override
+    public void send(long intendedStartNanos, String procName, Object... params) throws InterruptedException {
+
+        // Too many outstanding events, so wait for one to finish...
+        if (!outstanding.tryAcquire()) {
+            backpressureCount.increment();
+            outstanding.acquire();
+        }
+
+        final LatencyCallback callback = latencyTracker.getCallback(procName, intendedStartNanos);
+        final long serviceNanos = (long) (meanServiceNanos * -Math.log(1 - ThreadLocalRandom.current().nextDouble()));
+        final long nowNanos = System.nanoTime();
+        final long finishNanos;
+
+        if (params.length > 0 && params[0] instanceof Long) {
+
+            final int partition = (int) getPartition((Long) params[0]);
+
+            partitionLock.readLock().lock();
+
+            try {
+                finishNanos = partitionFreeNanos.updateAndGet(partition,
+                        freeNanos -> Math.max(nowNanos, freeNanos) + serviceNanos);
+            } finally {
+                partitionLock.readLock().unlock();
+            }
+
+        } else {
+
+            partitionLock.writeLock().lock();
+
+            try {
+
+                // Wait for every partition to be free, then tie them all up
+                long startNanos = nowNanos;
+
+                for (int i = 0; i < partitionFreeNanos.length(); i++) {
+                    startNanos = Math.max(startNanos, partitionFreeNanos.get(i));
+                }
+
+                finishNanos = startNanos + serviceNanos;
+
+                for (int i = 0; i < partitionFreeNanos.length(); i++) {
+                    partitionFreeNanos.set(i, finishNanos);
+                }
+
+            } finally {
+                partitionLock.writeLock().unlock();
+            }
+        }
+
+        completer.schedule(() -> {
+            callback.complete(finishNanos);
+            outstanding.release();
+        }, finishNanos - nowNanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public long getPartition(long deviceId) {
+        return Math.floorMod(deviceId, partitionFreeNanos.length());
+    }
+
+    @Override
+    public void drain() throws InterruptedException {
+
+        // Once we have every permit nothing is outstanding
+        outstanding.acquire(maxOutstanding);
+        outstanding.release(maxOutstanding);
+    }
+
+    /**
+     * @return how many times send() had to wait because too many events were
+     *         outstanding
+     */
+    public long getBackpressureCount() {
+        return backpressureCount.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "InMemoryEventSink [partitions=" + partitionFreeNanos.length() + ", outstanding="
+                + (maxOutstanding - outstanding.availablePermits()) + ", backpressureCount=" + backpressureCount.sum()
+                + "]";
+    }
+
+}
@@ -0,0 +1,77 @@
+package org.voltdb.simbox;
+
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+import java.io.IOException;
+
+/**
+ * Records every event in an EventJournal on its way to another sink.
+ *
+ */
+public class JournallingEventSink implements EventSink {
+
+    /**
+     * Where events really go
+     */
+    private final EventSink sink;
+
+    /**
+     * Where we record them
+     */
+    private final EventJournal journal;
+
+    /**
+     * @param sink
+     * @param journal
+     */
+    public JournallingEventSink(EventSink sink, EventJournal journal) {
+        super();
+        this.sink = sink;
+        this.journal = journal;
+    }
+
+    @Override
+    public void send(long intendedStartNanos, String procName, Object... params)
+            throws IOException, InterruptedException {
+
+        sink.send(intendedStartNanos, procName, params);
+        journal.record(intendedStartNanos, procName, params);
+    }
+
+    @Override
+    public long getPartition(long deviceId) {
+        return sink.getPartition(deviceId);
+    }
+
+    @Override
+    public void drain() throws IOException, InterruptedException {
+        sink.drain();
+    }
+
+    @Override
+    public String toString() {
+        return sink.toString();
+    }
+
+}
@@ -0,0 +1,99 @@
+package org.voltdb.simbox;
+
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.voltdb.client.ClientResponse;
+
+/**
+ * Callback that records how long a procedure call took, measured from when it
+ * was meant to be sent rather than when it was. If the generator fell behind
+ * schedule because the database was slow, the time spent waiting to send
+ * shows up as latency, instead of being silently left out ('coordinated
+ * omission').
+ * <p>
+ * Also complains if something went badly wrong.
+ *
+ */
+public class LatencyCallback extends ComplainOnErrorCallback {
+
+    /**
+     * Where we record our latency
+     */
+    private final LatencyHistogram histogram;
+
+    /**
+     * Calls to the same procedure that haven't finished yet, including us
+     */
+    private final AtomicLong inFlight;
+
+    /**
+     * System.nanoTime() at which the call should have been sent
+     */
+    private final long intendedStartNanos;
+
+    /**
+     * @param histogram
+     * @param inFlight           calls that haven't finished yet. We take
+     *                           ourselves off when we finish.
+     * @param intendedStartNanos System.nanoTime() at which the call should have
+     *                           been sent
+     */
+    public LatencyCallback(LatencyHistogram histogram, AtomicLong inFlight, long intendedStartNanos) {
+        super();
+        this.histogram = histogram;
+        this.inFlight = inFlight;
+        this.intendedStartNanos = intendedStartNanos;
+    }
+
+    @Override
+    public void clientCallback(ClientResponse arg0) throws Exception {
+
+        complete(System.nanoTime());
+        super.clientCallback(arg0);
+
+    }
+
+    /**
+     * The call finished at 'finishNanos'. Record our latency and take
+     * ourselves off the calls in flight. Used by sinks that don't have a
+     * ClientResponse.
+     *
+     * @param finishNanos System.nanoTime() at which the call finished
+     */
+    public void complete(long finishNanos) {
+        histogram.recordNanos(finishNanos - intendedStartNanos);
+        inFlight.decrementAndGet();
+    }
+
+    /**
+     * The call was never sent, so we'll never be called. Take ourselves off
+     * the calls in flight.
+     */
+    public void cancel() {
+        inFlight.decrementAndGet();
+    }
+
+}
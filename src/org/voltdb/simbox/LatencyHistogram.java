@@ -0,0 +1,247 @@
+package org.voltdb.simbox;
+
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock free latency histogram in the style of HdrHistogram. Values are
+ * recorded in microseconds into log-linear buckets: each power of 2 is split
+ * into 64 equal sub-buckets, so any value we report is within 1.6% of the real
+ * one. Values up to about 12 days fit; anything bigger is counted as the
+ * largest value we can hold.
+ * <p>
+ * Many threads can record at once. Reads are only approximate while recording
+ * is going on, which is fine for stats we print once a minute.
+ *
+ */
+public class LatencyHistogram {
+
+    /**
+     * Values below this have a bucket each
+     */
+    private static final int LINEAR_BUCKETS = 128;
+
+    /**
+     * How many sub-buckets each power of 2 above LINEAR_BUCKETS is split into
+     */
+    private static final int SUB_BUCKETS = LINEAR_BUCKETS / 2;
+
+    /**
+     * log2(SUB_BUCKETS)
+     */
+    private static final int SUB_BUCKET_BITS = 6;
+
+    /**
+     * Largest value we can record, in microseconds
+     */
+    public static final long MAX_VALUE_MICROS = (1L << 40) - 1;
+
+    /**
+     * How many buckets we need to hold MAX_VALUE_MICROS
+     */
+    private static final int BUCKET_COUNT = getBucket(MAX_VALUE_MICROS) + 1;
+
+    /**
+     * How many values have landed in each bucket
+     */
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+
+    /**
+     * Largest value we've seen, in microseconds
+     */
+    private final AtomicLong maxMicros = new AtomicLong(0);
+
+    /**
+     * Total of the values we've recorded, in microseconds
+     */
+    private final AtomicLong sumMicros = new AtomicLong(0);
+
+    /**
+     * Record a latency.
+     *
+     * @param latencyNanos
+     */
+    public void recordNanos(long latencyNanos) {
+        recordMicros(latencyNanos / 1000);
+    }
+
+    /**
+     * Record a latency.
+     *
+     * @param latencyMicros
+     */
+    public void recordMicros(long latencyMicros) {
+
+        final long value = Math.min(Math.max(0, latencyMicros), MAX_VALUE_MICROS);
+
+        counts.incrementAndGet(getBucket(value));
+        sumMicros.addAndGet(value);
+
+        long oldMax = maxMicros.get();
+
+        while (value > oldMax && !maxMicros.compareAndSet(oldMax, value)) {
+            oldMax = maxMicros.get();
+        }
+
+    }
+
+    /**
+     * Add everything recorded in 'other' to this histogram.
+     *
+     * @param other
+     */
+    public void add(LatencyHistogram other) {
+
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            final long count = other.counts.get(i);
+            if (count > 0) {
+                counts.addAndGet(i, count);
+            }
+        }
+
+        sumMicros.addAndGet(other.sumMicros.get());
+
+        final long value = other.maxMicros.get();
+        long oldMax = maxMicros.get();
+
+        while (value > oldMax && !maxMicros.compareAndSet(oldMax, value)) {
+            oldMax = maxMicros.get();
+        }
+    }
+
+    /**
+     * Take a copy of this histogram and empty it, so we can report what
+     * happened since the last time we asked.
+     *
+     * @return a histogram with everything we've recorded since our last reset
+     */
+    public LatencyHistogram copyAndReset() {
+
+        LatencyHistogram copy = new LatencyHistogram();
+
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            final long count = counts.getAndSet(i, 0);
+            if (count > 0) {
+                copy.counts.set(i, count);
+            }
+        }
+
+        copy.maxMicros.set(maxMicros.getAndSet(0));
+        copy.sumMicros.set(sumMicros.getAndSet(0));
+
+        return copy;
+    }
+
+    /**
+     * @return how many values we've recorded
+     */
+    public long getTotalCount() {
+
+        long total = 0;
+
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            total += counts.get(i);
+        }
+
+        return total;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the value, in microseconds, that 'percentile' percent of our
+     *         values are less than or equal to. 0 if we're empty.
+     */
+    public long getValueAtPercentile(double percentile) {
+
+        final long total = getTotalCount();
+
+        if (total == 0) {
+            return 0;
+        }
+
+        final long target = Math.max(1, (long) Math.ceil((percentile / 100) * total));
+        long seen = 0;
+
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+
+            seen += counts.get(i);
+
+            if (seen >= target) {
+                // Buckets can overstate the largest value...
+                return Math.min(getHighestValueInBucket(i), maxMicros.get());
+            }
+        }
+
+        return maxMicros.get();
+    }
+
+    /**
+     * @return total of the values we've recorded, in microseconds
+     */
+    public long getSumMicros() {
+        return sumMicros.get();
+    }
+
+    /**
+     * @return largest value we've seen, in microseconds
+     */
+    public long getMaxMicros() {
+        return maxMicros.get();
+    }
+
+    /**
+     * @param value microseconds, between 0 and MAX_VALUE_MICROS
+     * @return the bucket 'value' goes in
+     */
+    private static int getBucket(long value) {
+
+        if (value < LINEAR_BUCKETS) {
+            return (int) value;
+        }
+
+        // How far we need to shift 'value' to fit in SUB_BUCKETS...SUB_BUCKETS*2-1
+        final int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+
+        return LINEAR_BUCKETS + ((shift - 1) * SUB_BUCKETS) + (int) ((value >>> shift) - SUB_BUCKETS);
+    }
+
+    /**
+     * @param bucket
+     * @return the biggest value that goes in 'bucket'
+     */
+    private static long getHighestValueInBucket(int bucket) {
+
+        if (bucket < LINEAR_BUCKETS) {
+            return bucket;
+        }
+
+        final int shift = ((bucket - LINEAR_BUCKETS) / SUB_BUCKETS) + 1;
+        final long subBucket = ((bucket - LINEAR_BUCKETS) % SUB_BUCKETS) + SUB_BUCKETS;
+
+        return ((subBucket + 1) << shift) - 1;
+    }
+
+}
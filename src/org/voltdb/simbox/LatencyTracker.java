@@ -0,0 +1,244 @@
+package org.voltdb.simbox;
+
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps a LatencyHistogram for each procedure the generator calls, and
+ * reports them once a minute.
+ * <p>
+ * Callers record into a 'live' histogram. collect() moves what's in it to a
+ * histogram for the current minute, and keeps a copy as 'the last interval'
+ * for MetricsServer. MetricsServer calls collect() every second; if it isn't
+ * running reportAndReset() does it once a minute.
+ *
+ */
+public class LatencyTracker {
+
+    /**
+     * Percentiles we report, and the names we report them as
+     */
+    private static final double[] PERCENTILES = { 50, 99, 99.9 };
+
+    /**
+     * Names we report PERCENTILES as
+     */
+    private static final String[] PERCENTILE_NAMES = { "p50", "p99", "p999" };
+
+    /**
+     * Histograms callers record into, by procedure name
+     */
+    private final Map<String, LatencyHistogram> histograms = new ConcurrentHashMap<String, LatencyHistogram>();
+
+    /**
+     * What's been collected since reportAndReset() was last called, by
+     * procedure name
+     */
+    private final Map<String, LatencyHistogram> minuteHistograms = new HashMap<String, LatencyHistogram>();
+
+    /**
+     * What collect() found last time, by procedure name. Replaced, never
+     * changed.
+     */
+    private volatile Map<String, LatencyHistogram> lastIntervalHistograms = Collections.emptyMap();
+
+    /**
+     * Calls that have finished since we started, by procedure name
+     */
+    private final Map<String, AtomicLong> callCounts = new ConcurrentHashMap<String, AtomicLong>();
+
+    /**
+     * Total latency of calls that have finished since we started, in
+     * microseconds, by procedure name
+     */
+    private final Map<String, AtomicLong> latencySums = new ConcurrentHashMap<String, AtomicLong>();
+
+    /**
+     * Calls that haven't finished yet, by procedure name
+     */
+    private final Map<String, AtomicLong> inFlight = new ConcurrentHashMap<String, AtomicLong>();
+
+    /**
+     * Get a callback that records latency for a call to 'procName'.
+     *
+     * @param procName
+     * @param intendedStartNanos System.nanoTime() at which the call should have
+     *                           been sent
+     * @return a callback
+     */
+    public LatencyCallback getCallback(String procName, long intendedStartNanos) {
+
+        AtomicLong procInFlight = getInFlight(procName);
+        procInFlight.incrementAndGet();
+
+        return new LatencyCallback(getHistogram(procName), procInFlight, intendedStartNanos);
+    }
+
+    /**
+     * @param procName
+     * @return the histogram for procName
+     */
+    public LatencyHistogram getHistogram(String procName) {
+
+        LatencyHistogram histogram = histograms.get(procName);
+
+        if (histogram == null) {
+            histogram = histograms.computeIfAbsent(procName, k -> new LatencyHistogram());
+        }
+
+        return histogram;
+    }
+
+    /**
+     * @param procName
+     * @return how many calls to procName haven't finished yet
+     */
+    private AtomicLong getInFlight(String procName) {
+
+        AtomicLong procInFlight = inFlight.get(procName);
+
+        if (procInFlight == null) {
+            procInFlight = inFlight.computeIfAbsent(procName, k -> new AtomicLong());
+        }
+
+        return procInFlight;
+    }
+
+    /**
+     * Move everything recorded since we were last called into the current
+     * minute, and make it the last interval.
+     */
+    public synchronized void collect() {
+
+        Map<String, LatencyHistogram> lastInterval = new HashMap<String, LatencyHistogram>();
+
+        for (Map.Entry<String, LatencyHistogram> entry : histograms.entrySet()) {
+
+            LatencyHistogram interval = entry.getValue().copyAndReset();
+
+            LatencyHistogram minute = minuteHistograms.get(entry.getKey());
+
+            if (minute == null) {
+                minute = new LatencyHistogram();
+                minuteHistograms.put(entry.getKey(), minute);
+            }
+
+            minute.add(interval);
+            callCounts.computeIfAbsent(entry.getKey(), k -> new AtomicLong()).addAndGet(interval.getTotalCount());
+            latencySums.computeIfAbsent(entry.getKey(), k -> new AtomicLong()).addAndGet(interval.getSumMicros());
+            lastInterval.put(entry.getKey(), interval);
+        }
+
+        lastIntervalHistograms = lastInterval;
+    }
+
+    /**
+     * @return what collect() found last time, by procedure name. Don't change
+     *         it.
+     */
+    public Map<String, LatencyHistogram> getLastIntervalHistograms() {
+        return lastIntervalHistograms;
+    }
+
+    /**
+     * @return calls that have finished since we started, by procedure name
+     */
+    public Map<String, AtomicLong> getCallCounts() {
+        return callCounts;
+    }
+
+    /**
+     * @return total latency of calls that have finished since we started, in
+     *         microseconds, by procedure name
+     */
+    public Map<String, AtomicLong> getLatencySums() {
+        return latencySums;
+    }
+
+    /**
+     * @return calls that haven't finished yet, by procedure name
+     */
+    public Map<String, AtomicLong> getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * Print and report latency for each procedure since we were last called,
+     * and start again.
+     *
+     * @param stats where we report stats
+     */
+    public synchronized void reportAndReset(StatsPublisher stats) {
+
+        collect();
+
+        Iterator<Map.Entry<String, LatencyHistogram>> iterator = minuteHistograms.entrySet().iterator();
+
+        while (iterator.hasNext()) {
+
+            Map.Entry<String, LatencyHistogram> entry = iterator.next();
+            LatencyHistogram interval = entry.getValue().copyAndReset();
+
+            StringBuilder b = new StringBuilder(entry.getKey());
+            b.append(" latency (us): count=");
+            b.append(interval.getTotalCount());
+
+            for (int i = 0; i < PERCENTILES.length; i++) {
+
+                long value = interval.getValueAtPercentile(PERCENTILES[i]);
+
+                b.append(", ");
+                b.append(PERCENTILE_NAMES[i]);
+                b.append('=');
+                b.append(value);
+
+                stats.report(getStatName(entry.getKey(), PERCENTILE_NAMES[i]), value);
+            }
+
+            b.append(", max=");
+            b.append(interval.getMaxMicros());
+
+            stats.report(getStatName(entry.getKey(), "max"), interval.getMaxMicros());
+            SimboxDataGenerator.msg(b.toString());
+
+        }
+
+    }
+
+    /**
+     * @param procName
+     * @param measure
+     * @return the name we report 'measure' for 'procName' as in simbox_stats
+     */
+    private static String getStatName(String procName, String measure) {
+        return "latency_" + procName.replace('.', '_') + "_" + measure + "_us";
+    }
+
+}
@@ -0,0 +1,302 @@
+package org.voltdb.simbox;
+
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves the generator's own metrics at http://host:port/metrics, in
+ * Prometheus text format. Unlike StatsPublisher nothing goes near the
+ * database, so Prometheus can scrape us as often as it likes.
+ * <p>
+ * Counters are read straight from the shards, which keep them in
+ * AtomicLongArrays. Once a second we collect latency from the LatencyTracker
+ * and work out transaction rates, so percentiles and rates describe the last
+ * second.
+ *
+ */
+public class MetricsServer implements HttpHandler {
+
+    /**
+     * Latency quantiles we serve
+     */
+    private static final double[] QUANTILES = { 0.5, 0.99, 0.999 };
+
+    /**
+     * How often we collect latency and work out rates
+     */
+    private static final long INTERVAL_MS = 1000;
+
+    /**
+     * Names we serve GeneratorShard counters as, indexed by
+     * GeneratorShard.BUSY_COUNT etc
+     */
+    private static final String[] COUNTER_NAMES = { "simbox_busy_total", "simbox_evil_calls_total",
+            "simbox_good_calls_total", "simbox_good_cell_moves_total", "simbox_evil_cell_moves_total" };
+
+    /**
+     * The generator we report on
+     */
+    private final SimboxDataGenerator generator;
+
+    /**
+     * Where latency is recorded
+     */
+    private final LatencyTracker latencyTracker;
+
+    /**
+     * Port we listen on
+     */
+    private final int port;
+
+    /**
+     * Our HTTP server, once we've started
+     */
+    private HttpServer server;
+
+    /**
+     * Collects latency and works out rates once a second
+     */
+    private ScheduledExecutorService ticker;
+
+    /**
+     * Totals when we last worked out rates
+     */
+    private long lastAchievedTransactions = 0;
+    private long lastGoodCalls = 0;
+    private long lastTickNanos = System.nanoTime();
+
+    /**
+     * Rates over the last second, per second
+     */
+    private volatile double achievedTransactionRate = 0;
+    private volatile double goodCallRate = 0;
+
+    /**
+     * @param generator
+     * @param latencyTracker
+     * @param port           port to listen on
+     */
+    public MetricsServer(SimboxDataGenerator generator, LatencyTracker latencyTracker, int port) {
+        super();
+        this.generator = generator;
+        this.latencyTracker = latencyTracker;
+        this.port = port;
+    }
+
+    /**
+     * Start serving metrics. Our threads are daemons, so they won't keep the
+     * generator running.
+     *
+     * @throws IOException
+     */
+    public void start() throws IOException {
+
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext("/metrics", this);
+        server.setExecutor(Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "metrics-http");
+            t.setDaemon(true);
+            return t;
+        }));
+        server.start();
+
+        ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "metrics-ticker");
+            t.setDaemon(true);
+            return t;
+        });
+        ticker.scheduleAtFixedRate(this::tick, INTERVAL_MS, INTERVAL_MS, TimeUnit.MILLISECONDS);
+
+        SimboxDataGenerator.msg("Serving metrics on http://localhost:" + port + "/metrics");
+    }
+
+    /**
+     * Stop serving metrics.
+     */
+    public void stop() {
+
+        if (ticker != null) {
+            ticker.shutdown();
+        }
+
+        if (server != null) {
+            server.stop(0);
+        }
+    }
+
+    /**
+     * Collect latency and work out rates for the second that just ended.
+     */
+    private void tick() {
+
+        try {
+            latencyTracker.collect();
+
+            final long nowNanos = System.nanoTime();
+            final double seconds = (nowNanos - lastTickNanos) / 1000000000.0;
+            final long achievedTransactions = getAchievedTransactions();
+            final long goodCalls = generator.getShardTotals()[GeneratorShard.GOOD_CALL_COUNT];
+
+            achievedTransactionRate = (achievedTransactions - lastAchievedTransactions) / seconds;
+            goodCallRate = (goodCalls - lastGoodCalls) / seconds;
+
+            lastAchievedTransactions = achievedTransactions;
+            lastGoodCalls = goodCalls;
+            lastTickNanos = nowNanos;
+
+        } catch (Exception e) {
+            // Don't let one bad tick stop the rest
+            SimboxDataGenerator.msg("Metrics tick failed: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+
+        byte[] body = getMetrics().getBytes(StandardCharsets.UTF_8);
+
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        exchange.sendResponseHeaders(200, body.length);
+
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(body);
+        }
+    }
+
+    /**
+     * @return all our metrics, in Prometheus text format
+     */
+    String getMetrics() {
+
+        StringBuilder b = new StringBuilder();
+
+        final long[] totals = generator.getShardTotals();
+
+        for (int i = 0; i < COUNTER_NAMES.length; i++) {
+            addMetric(b, COUNTER_NAMES[i], "counter", totals[i]);
+        }
+
+        long offeredTransactions = 0;
+        long lagNanos = 0;
+        final GeneratorShard[] shards = generator.getShards();
+
+        for (int i = 0; shards != null && i < shards.length; i++) {
+            RateController rc = shards[i].getRateController();
+            offeredTransactions += rc.getOfferedPermits();
+            lagNanos = Math.max(lagNanos, rc.getLagNanos());
+        }
+
+        addMetric(b, "simbox_offered_transactions_total", "counter", offeredTransactions);
+        addMetric(b, "simbox_achieved_transactions_total", "counter", getAchievedTransactions());
+        addMetric(b, "simbox_achieved_transactions_per_second", "gauge", achievedTransactionRate);
+        addMetric(b, "simbox_good_calls_per_second", "gauge", goodCallRate);
+        addMetric(b, "simbox_schedule_lag_seconds", "gauge", lagNanos / 1000000000.0);
+
+        Simbox evilSimBox = generator.getSimbox();
+        addMetric(b, "simbox_fake_calls_total", "counter", evilSimBox.getFakeCallCount());
+        addMetric(b, "simbox_evil_revenue_cents", "gauge", (long) (evilSimBox.getProjectedProfit() * 100));
+
+        // Latency quantiles over the last second, with totals since we started,
+        // as a summary
+        b.append("# TYPE simbox_procedure_latency_microseconds summary\n");
+
+        final Map<String, AtomicLong> callCounts = latencyTracker.getCallCounts();
+        final Map<String, AtomicLong> latencySums = latencyTracker.getLatencySums();
+
+        for (Map.Entry<String, LatencyHistogram> entry : latencyTracker.getLastIntervalHistograms().entrySet()) {
+
+            final String procLabel = "procedure=\"" + entry.getKey() + "\"";
+
+            // Prometheus expects NaN if nothing happened
+            final boolean noCalls = entry.getValue().getTotalCount() == 0;
+
+            for (int i = 0; i < QUANTILES.length; i++) {
+                b.append("simbox_procedure_latency_microseconds{").append(procLabel).append(",quantile=\"")
+                        .append(QUANTILES[i]).append("\"} ")
+                        .append(noCalls ? "NaN" : entry.getValue().getValueAtPercentile(QUANTILES[i] * 100))
+                        .append('\n');
+            }
+
+            AtomicLong latencySum = latencySums.get(entry.getKey());
+            AtomicLong callCount = callCounts.get(entry.getKey());
+
+            b.append("simbox_procedure_latency_microseconds_sum{").append(procLabel).append("} ")
+                    .append(latencySum == null ? 0 : latencySum.get()).append('\n');
+
+            b.append("simbox_procedure_latency_microseconds_count{").append(procLabel).append("} ")
+                    .append(callCount == null ? 0 : callCount.get()).append('\n');
+        }
+
+        b.append("# TYPE simbox_procedure_in_flight gauge\n");
+
+        for (Map.Entry<String, AtomicLong> entry : latencyTracker.getInFlight().entrySet()) {
+            b.append("simbox_procedure_in_flight{procedure=\"").append(entry.getKey()).append("\"} ")
+                    .append(entry.getValue().get()).append('\n');
+        }
+
+        return b.toString();
+    }
+
+    /**
+     * @return transactions sent by all shards since we started
+     */
+    private long getAchievedTransactions() {
+
+        long achievedTransactions = 0;
+        final GeneratorShard[] shards = generator.getShards();
+
+        for (int i = 0; shards != null && i < shards.length; i++) {
+            achievedTransactions += shards[i].getRateController().getAchievedPermits();
+        }
+
+        return achievedTransactions;
+    }
+
+    /**
+     * Add a metric without labels.
+     *
+     * @param b
+     * @param name
+     * @param type  "counter" or "gauge"
+     * @param value
+     */
+    private static void addMetric(StringBuilder b, String name, String type, Object value) {
+        b.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        b.append(name).append(' ').append(value).append('\n');
+    }
+
+}
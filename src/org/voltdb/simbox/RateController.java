@@ -0,0 +1,63 @@
+package org.voltdb.simbox;
+
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+/**
+ * Decides when the generator is allowed to send its next transaction.
+ * <p>
+ * Each transaction has an intended send time, which is when it would have been
+ * sent if everything downstream kept up. Comparing this to when it was actually
+ * sent tells us the difference between the load we offered and the load we
+ * achieved, and lets us measure latency from when the transaction should have
+ * started rather than when it did.
+ *
+ */
+public interface RateController {
+
+    /**
+     * Wait until we're allowed to send 'permits' transactions.
+     *
+     * @param permits
+     * @return the System.nanoTime() at which they were meant to be sent
+     * @throws InterruptedException
+     */
+    long acquire(int permits) throws InterruptedException;
+
+    /**
+     * @return how many transactions we should have sent by now
+     */
+    long getOfferedPermits();
+
+    /**
+     * @return how many transactions we have actually sent
+     */
+    long getAchievedPermits();
+
+    /**
+     * @return how far behind schedule we were at our last acquire, or 0 if we
+     *         were on or ahead of it
+     */
+    long getLagNanos();
+
+}
@@ -24,19 +24,17 @@ package org.voltdb.simbox;
  */
 
 import java.io.IOException;
-
-import org.voltdb.client.Client;
-import org.voltdb.client.NoConnectionsException;
-
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
-import java.util.Random;
+import java.util.SplittableRandom;
 
 /**
  * 
- * Class to emulate a simbox
+ * Class to emulate a simbox. A simbox is driven by a single generator shard,
+ * but its counters and settings are read and changed by the generator's
+ * reporting thread.
  *
  */
 public class Simbox {
@@ -59,12 +57,12 @@ public class Simbox {
     /**
      * How many fraudulent calls we've made
      */
-    private int evilCallCount = 0;
+    private volatile int evilCallCount = 0;
     
     /**
      * How many calls we made to ourselves so our sims look 'legit'
      */
-    private int fakeCallCount = 0;
+    private volatile int fakeCallCount = 0;
     
     /**
      * How many times we tried to make a call but couldn't because all our sims were
@@ -80,22 +78,17 @@ public class Simbox {
     /**
      * Allow calls made to other sims in this box
      */
-    private boolean selfCalls = false;
+    private volatile boolean selfCalls = false;
 
     /**
      * How many seconds have been spent on fraudulent calls
      */
-    private long totalSimcallSeconds = 0;
-
-    /**
-     * Shared Random instance
-     */
-    private Random r = new Random();
+    private volatile long totalSimcallSeconds = 0;
 
     /**
-     * Callback to make DB interaction run faster
+     * Random instance. Only used by the shard that drives us.
      */
-    private ComplainOnErrorCallback coec = new ComplainOnErrorCallback();
+    private SplittableRandom r = new SplittableRandom();
 
     /**
      * Last time we moved cells.
@@ -141,23 +134,22 @@ public class Simbox {
     /**
      * Move all sims in this simbox to a new cell. This simulates the simbox being physically moved.
      * @param newCell
-     * @param c
-     * @throws NoConnectionsException
+     * @param sink where we report each sim's move
+     * @param rc decides when we can report each sim's move
      * @throws IOException
+     * @throws InterruptedException
      */
-    public void moveCell(int newCell, Client c) throws NoConnectionsException, IOException {
+    public void moveCell(int newCell, EventSink sink, RateController rc) throws IOException, InterruptedException {
 
         SimboxDataGenerator.msg("Moving " + sims.size() + " sims from cell " + cellId + " to " + newCell);
 
         cellId = newCell;
 
-        ComplainOnErrorCallback coec = new ComplainOnErrorCallback();
-
         Iterator<Map.Entry<Long, UserDevice>> iterator = sims.entrySet().iterator();
 
         while (iterator.hasNext()) {
             Map.Entry<Long, UserDevice> entry = iterator.next();
-            c.callProcedure(coec, "ReportCellChange", entry.getValue().changeCellid(newCell));
+            sink.send(rc.acquire(1), "ReportCellChange", entry.getValue().changeCellid(newCell));
         }
 
         lastCellMove = new Date();
@@ -168,20 +160,22 @@ public class Simbox {
      * Make a call from a captive sim to a local number, while in fact connecting an 
      * incoming international connection.
      * @param calledNumber
-     * @param client
+     * @param sink where we send each leg of the call
+     * @param rc decides when we can send each leg of the call
+     * @param durationSeconds
      * @return 'true' if we made a call
-     * @throws NoConnectionsException
      * @throws IOException
+     * @throws InterruptedException
      */
-    public boolean routeInternationalCall(UserDevice calledNumber, Client client, int durationSeconds)
-            throws NoConnectionsException, IOException {
+    public boolean routeInternationalCall(UserDevice calledNumber, EventSink sink, RateController rc,
+            int durationSeconds) throws IOException, InterruptedException {
 
         if (selfCalls) {
 
             int fakeCallProbability = r.nextInt(100);
 
             if (fakeCallProbability <= fakeCallPct) {
-                return makeFakeCall(client);
+                return makeFakeCall(sink, rc);
             }
         }
 
@@ -192,23 +186,28 @@ public class Simbox {
             return false;
         }
 
+        if (!ud.makeCall(r, calledNumber, durationSeconds, sink, rc)) {
+            // Called number was grabbed by another shard
+            busyCount++;
+            return false;
+        }
+
         evilCallCount++;
         totalSimcallSeconds += durationSeconds;
 
-        ud.makeCall(r, calledNumber, durationSeconds, client);
-
         return true;
 
     }
 
     /**
      * Setup a fake call between two of our sims, so the sims don't look quite so suspicious.
-     * @param client
+     * @param sink
+     * @param rc
      * @return true if we able to make a call
-     * @throws NoConnectionsException
      * @throws IOException
+     * @throws InterruptedException
      */
-    private boolean makeFakeCall(Client client) throws NoConnectionsException, IOException {
+    private boolean makeFakeCall(EventSink sink, RateController rc) throws IOException, InterruptedException {
 
         
         UserDevice ud = getUnusedDevice();
@@ -219,10 +218,13 @@ public class Simbox {
             return false;
         }
 
-        fakeCallCount++;
-
         // make a 10 second fake call
-        fakeCaller.makeCall(r, ud, 10, client);
+        if (!fakeCaller.makeCall(r, ud, 10, sink, rc)) {
+            busyCount++;
+            return false;
+        }
+
+        fakeCallCount++;
 
         return true;
 
@@ -281,6 +283,13 @@ public class Simbox {
         return cellId;
     }
 
+    /**
+     * @param r the Random we use from now on
+     */
+    public void setRandom(SplittableRandom r) {
+        this.r = r;
+    }
+
     /**
      * @return the selfCalls
      */
@@ -356,4 +365,46 @@ public class Simbox {
         return fakeCallCount;
     }
 
+    /**
+     * @return the busyCount
+     */
+    public int getBusyCount() {
+        return busyCount;
+    }
+
+    /**
+     * @return the totalSimcallSeconds
+     */
+    public long getTotalSimcallSeconds() {
+        return totalSimcallSeconds;
+    }
+
+    /**
+     * @return when we last moved cells
+     */
+    public long getLastCellMoveMs() {
+        return lastCellMove.getTime();
+    }
+
+    /**
+     * Put our location and counters back the way they were when a checkpoint
+     * was taken. Sims are added separately.
+     * 
+     * @param cellId
+     * @param lastCellMoveMs
+     * @param evilCallCount
+     * @param fakeCallCount
+     * @param busyCount
+     * @param totalSimcallSeconds
+     */
+    public void restore(int cellId, long lastCellMoveMs, int evilCallCount, int fakeCallCount, int busyCount,
+            long totalSimcallSeconds) {
+        this.cellId = cellId;
+        this.lastCellMove = new Date(lastCellMoveMs);
+        this.evilCallCount = evilCallCount;
+        this.fakeCallCount = fakeCallCount;
+        this.busyCount = busyCount;
+        this.totalSimcallSeconds = totalSimcallSeconds;
+    }
+
 }
@@ -23,6 +23,7 @@ package org.voltdb.simbox;
  * OTHER DEALINGS IN THE SOFTWARE.
  */
 
+import java.io.File;
 import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
@@ -30,9 +31,8 @@ import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
-import java.util.Map;
 import java.util.Map.Entry;
-import java.util.Random;
+import java.util.SplittableRandom;
 
 import org.voltdb.VoltTable;
 import org.voltdb.client.Client;
@@ -42,6 +42,7 @@ import org.voltdb.client.ClientResponse;
 import org.voltdb.client.ClientResponseWithPartitionKey;
 import org.voltdb.client.NoConnectionsException;
 import org.voltdb.client.ProcCallException;
+import org.voltdb.types.TimestampType;
 
 /**
  * 
@@ -49,16 +50,6 @@ import org.voltdb.client.ProcCallException;
  */
 public class SimboxDataGenerator {
 
-    /**
-     * How many times we check a random device in our hashmap to see if it is busy.
-     * If the map is 95% busy 30 attempts will have a 79% chance of finding a
-     * non-busy device.
-     * 
-     * Making this number bigger will slow the generator down as the system gets
-     * busy.
-     */
-    private static final int RANDOM_SEARCH_ATTEMPTS = 30;
-
     /**
      * One day in milliseconds
      */
@@ -75,10 +66,52 @@ public class SimboxDataGenerator {
     static SimpleDateFormat sdfDate = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
 
     /**
-     * Our handle to VoltDB
+     * Our handle to VoltDB, or null if we're not using it
      */
     Client voltClient = null;
 
+    /**
+     * What we send events to: "voltdb", "counting" or "memory"
+     */
+    String sinkType = "voltdb";
+
+    /**
+     * Where we send events. Wrapped in a BatchingEventSink if we batch events,
+     * and then in a JournallingEventSink if we have a journal.
+     */
+    EventSink eventSink = null;
+
+    /**
+     * Most ReportCellChange or ReportDeviceActivity events we send in one
+     * batch. 0 or less means we don't batch them.
+     */
+    int eventBatchSize = 0;
+
+    /**
+     * Longest an event waits for its batch to fill up
+     */
+    long eventBatchLingerMs = 5;
+
+    /**
+     * How often we look for dense calling communities. 0 means we don't.
+     */
+    int callGraphIntervalSeconds = 0;
+
+    /**
+     * Looks for dense calling communities, or null
+     */
+    CallGraphAnalyzer callGraphAnalyzer = null;
+
+    /**
+     * Port we serve metrics on. 0 means we don't.
+     */
+    int metricsPort = 0;
+
+    /**
+     * Serves our metrics, or null
+     */
+    MetricsServer metricsServer = null;
+
     /**
      * Comma delimited list of hosts *without* port numbers.
      */
@@ -91,10 +124,15 @@ public class SimboxDataGenerator {
     int userCount;
 
     /**
-     * Target transactions per millisecond
+     * Target transactions per millisecond. 0 or less means as fast as we can.
      */
     int tpMs;
 
+    /**
+     * How many transactions each shard can send ahead of its schedule.
+     */
+    int burst;
+
     /**
      * How many seconds to run for.
      */
@@ -106,9 +144,25 @@ public class SimboxDataGenerator {
     int cellCount;
 
     /**
-     * HashMap containing our sessions. It will get to be big...
+     * How many devices we register in one call while warming up. 0 or less
+     * means we register and move them one call at a time.
      */
-    HashMap<Long, UserDevice> sessionMap;
+    int bulkLoadBatchSize = 500;
+
+    /**
+     * How many worker threads to use. Each one owns a slice of the devices.
+     */
+    int threadCount = 1;
+
+    /**
+     * Whether each worker thread gets its own VoltDB client
+     */
+    boolean clientPerShard = false;
+
+    /**
+     * Our worker threads, each of which owns a range of device IDs.
+     */
+    GeneratorShard[] shards;
 
     /**
      * A representation of a simbox
@@ -116,9 +170,45 @@ public class SimboxDataGenerator {
     Simbox evilSimBox;
 
     /**
-     * Shared Random instance.
+     * Seed for our Random
+     */
+    long seed = System.nanoTime();
+
+    /**
+     * Random instance used during setup. Each shard gets its own, split from
+     * this one.
+     */
+    SplittableRandom r = new SplittableRandom(seed);
+
+    /**
+     * Where we journal every call we make, or null
+     */
+    File journalFile = null;
+
+    /**
+     * Our journal, while we're running
+     */
+    EventJournal journal = null;
+
+    /**
+     * Where we save our state when the run finishes, or null
+     */
+    GeneratorCheckpoint saveCheckpoint = null;
+
+    /**
+     * Where we restore our state from instead of creating it, or null
+     */
+    GeneratorCheckpoint restoreCheckpoint = null;
+
+    /**
+     * Latency for each procedure we call
      */
-    Random r = new Random();
+    LatencyTracker latencyTracker = new LatencyTracker();
+
+    /**
+     * Where we send our stats every 60 seconds
+     */
+    StatsPublisher statsPublisher;
 
     /**
      * UTC time we started running
@@ -136,6 +226,19 @@ public class SimboxDataGenerator {
      */
     public static final int COHORT_DETECTION_SIZE = 60;
 
+    /**
+     * Detection level for cohorts whose last 12 moves are similar, found
+     * using the LSH bands in device_table
+     */
+    public static final int FUZZY_DETECTION_LEVEL = 12;
+
+    /**
+     * When ReportCellChange is looking for cohorts we still poll for them
+     * every this many stats intervals, as it only counts devices in its own
+     * partition and can miss a simbox whose sims are spread across several
+     */
+    public static final int COHORT_FALLBACK_POLL_INTERVALS = 5;
+
     /**
      * Run a simuation of a phone system where we aim to detect a simbox.
      * 
@@ -145,10 +248,16 @@ public class SimboxDataGenerator {
      * @param durationSeconds
      * @param cellCount
      * @param maxRandomCallLengthSeconds
+     * @param threadCount
+     * @param clientPerShard
+     * @param burst
+     * @param bulkLoadBatchSize
+     * @param sinkType                   "voltdb", "counting" or "memory"
      * @throws Exception
      */
     public SimboxDataGenerator(String hostnames, int userCount, int tpMs, int durationSeconds, int cellCount,
-            int maxRandomCallLengthSeconds) throws Exception {
+            int maxRandomCallLengthSeconds, int threadCount, boolean clientPerShard, int burst,
+            int bulkLoadBatchSize, String sinkType) throws Exception {
 
         this.hostnames = hostnames;
         this.userCount = userCount;
@@ -156,15 +265,21 @@ public class SimboxDataGenerator {
         this.durationSeconds = durationSeconds;
         this.cellCount = cellCount;
         this.maxRandomCallLengthSeconds = maxRandomCallLengthSeconds;
+        this.threadCount = Math.max(1, Math.min(threadCount, userCount));
+        this.clientPerShard = clientPerShard;
+        this.burst = burst;
+        this.bulkLoadBatchSize = bulkLoadBatchSize;
+        this.sinkType = sinkType;
 
         evilSimBox = new Simbox(0);
-        sessionMap = new HashMap<Long, UserDevice>(userCount);
 
         SimboxDataGenerator.msg("hostnames=" + hostnames + ", users=" + userCount + ", tpMs=" + tpMs
-                + ",durationSeconds=" + durationSeconds + ", cellCount=" + cellCount);
+                + ",durationSeconds=" + durationSeconds + ", cellCount=" + cellCount + ", threadCount="
+                + this.threadCount + ", clientPerShard=" + clientPerShard + ", bulkLoadBatchSize="
+                + bulkLoadBatchSize + ", sink=" + sinkType);
 
-        SimboxDataGenerator.msg("Log into VoltDB");
-        voltClient = connectVoltDB(hostnames);
+        eventSink = createEventSink();
+        statsPublisher = new StatsPublisher(voltClient, Long.getLong("simbox.statsPublisherId", 0));
 
     }
 
@@ -175,270 +290,524 @@ public class SimboxDataGenerator {
 
         try {
             long laststatstime = System.currentTimeMillis();
+            long statsIntervals = 0;
 
-            long currentMs = System.currentTimeMillis();
-            int tpThisMs = 0;
+            if (journalFile != null) {
+                SimboxDataGenerator.msg("Journalling to " + journalFile + ", seed=" + seed);
+                journal = new EventJournal(journalFile, seed);
+                eventSink = new JournallingEventSink(eventSink, journal);
+            }
 
-            int skipCount = 0;
-            int busyCount = 0;
-            int evilCount = 0;
-            int goodCallCount = 0;
-            int goodCellMoves = 0;
-            int evilCellMoves = 0;
+            long[] lastTotals = new long[GeneratorShard.COUNTER_COUNT];
+            long lastOfferedTransactions = 0;
+            long lastAchievedTransactions = 0;
 
-            long knownGoodDeviceId = -1;
-            long knownBadDeviceId = -1;
+            createShards();
 
-            SimboxDataGenerator.msg("Creating cells");
+            if (restoreCheckpoint != null) {
 
-            ComplainOnErrorCallback coec = new ComplainOnErrorCallback();
+                if (voltClient == null) {
+                    throw new IllegalStateException("Can't restore a checkpoint without VoltDB");
+                }
 
-            voltClient.callProcedure("@AdHoc", "DELETE FROM cell_suspicious_cohort_members;");
-            voltClient.callProcedure("@AdHoc", "DELETE FROM cell_suspicious_cohorts;");
+                restoreCheckpoint.restore(this, voltClient);
+                lastTotals = getShardTotals();
 
-            // Create cells
-            for (int i = 0; i < cellCount; i++) {
-                voltClient.callProcedure(coec, "cell_table.UPSERT", i);
-            }
+            } else {
 
-            voltClient.drain();
+                // Setup moves show up in the first set of stats...
+                lastTotals[GeneratorShard.GOOD_CELL_MOVES] -= warmUp();
+            }
 
-            // Create devices...
-            SimboxDataGenerator.msg("Creating " + userCount + " devices");
+            final long[] simBoxIds = evilSimBox.getSimList();
+            long knownGoodDeviceId = -1;
+            long knownBadDeviceId = -1;
 
             for (int i = 0; i < userCount; i++) {
-
-                UserDevice ud = new UserDevice(i, i % cellCount);
-
-                int createDateInPastMs = r.nextInt(ONE_YEAR_IN_MS);
-
-                // Add 1 in 100 newly created sims to the simbox until it's full
-                if (evilSimBox.getSimCount() < Simbox.SIMBOX_SIZE && r.nextInt(100) == 0) {
-                    createDateInPastMs = r.nextInt(ONE_DAY_IN_MS);
-                    evilSimBox.addSim(ud);
-                    knownBadDeviceId = ud.getDeviceId();
+                if (evilSimBox.isEvil(i)) {
+                    knownBadDeviceId = i;
                 } else {
-                    knownGoodDeviceId = ud.getDeviceId();
+                    knownGoodDeviceId = i;
                 }
+            }
 
-                Date createDate = new Date(System.currentTimeMillis() - createDateInPastMs);
-                ud.setCreateDate(createDate);
+            SimboxDataGenerator.msg("Run started");
+            startMs = System.currentTimeMillis();
+            laststatstime = System.currentTimeMillis();
 
-                voltClient.callProcedure(coec, "RegisterDevice", ud.getParamsForRegisterProcedure());
-                sessionMap.put(ud.getDeviceId(), ud);
+            final long endMs = startMs + (1000 * durationSeconds);
+            Thread[] shardThreads = new Thread[shards.length];
 
+            if (metricsPort > 0) {
+                metricsServer = new MetricsServer(this, latencyTracker, metricsPort);
+                metricsServer.start();
             }
 
-            final long[] simBoxIds = evilSimBox.getSimList();
-
-            // Move devices around a bit...
-            int moveCount = 6;
-            SimboxDataGenerator.msg("Moving " + userCount + " devices " + moveCount + " times...");
+            for (int i = 0; i < shards.length; i++) {
+                shards[i].setEndMs(endMs);
+                shardThreads[i] = new Thread(shards[i], "shard-" + i);
+                shardThreads[i].start();
+            }
 
-            for (int j = 0; j < moveCount; j++) {
+            if (callGraphIntervalSeconds > 0 && voltClient != null) {
+                callGraphAnalyzer = new CallGraphAnalyzer(voltClient, userCount, callGraphIntervalSeconds * 1000L);
+                callGraphAnalyzer.setEndMs(endMs);
+                Thread callGraphThread = new Thread(callGraphAnalyzer, "call-graph");
+                callGraphThread.setDaemon(true);
+                callGraphThread.start();
+            }
 
-                SimboxDataGenerator.msg("Move " + (j + 1));
+            while (System.currentTimeMillis() < endMs) {
 
-                for (int i = 0; i < userCount; i++) {
+                long sleepMs = Math.min(laststatstime + 60000, endMs) - System.currentTimeMillis();
 
-                    UserDevice ourSession = sessionMap.get((long) i);
-                    voltClient.callProcedure(coec, "ReportCellChange", ourSession.changeCellid(r.nextInt(cellCount)));
-                    goodCellMoves++;
+                if (sleepMs > 0) {
+                    Thread.sleep(sleepMs);
                 }
 
-            }
+                // Every 60 seconds dump stats to console and
+                // check for suspicious cohorts
+                if (laststatstime + 60000 <= System.currentTimeMillis()) {
+
+                    long[] totals = getShardTotals();
+                    long busyCount = totals[GeneratorShard.BUSY_COUNT] - lastTotals[GeneratorShard.BUSY_COUNT];
+                    long evilCount = totals[GeneratorShard.EVIL_COUNT] - lastTotals[GeneratorShard.EVIL_COUNT];
+                    long goodCallCount = totals[GeneratorShard.GOOD_CALL_COUNT]
+                            - lastTotals[GeneratorShard.GOOD_CALL_COUNT];
+                    long goodCellMoves = totals[GeneratorShard.GOOD_CELL_MOVES]
+                            - lastTotals[GeneratorShard.GOOD_CELL_MOVES];
+                    long evilCellMoves = totals[GeneratorShard.EVIL_CELL_MOVES]
+                            - lastTotals[GeneratorShard.EVIL_CELL_MOVES];
+                    lastTotals = totals;
+
+                    long offeredTransactions = 0;
+                    long achievedTransactions = 0;
+                    long scheduleLagNanos = 0;
+
+                    for (int i = 0; i < shards.length; i++) {
+                        RateController rc = shards[i].getRateController();
+                        offeredTransactions += rc.getOfferedPermits();
+                        achievedTransactions += rc.getAchievedPermits();
+                        scheduleLagNanos = Math.max(scheduleLagNanos, rc.getLagNanos());
+                    }
 
-            voltClient.drain();
+                    long offeredThisTime = offeredTransactions - lastOfferedTransactions;
+                    long achievedThisTime = achievedTransactions - lastAchievedTransactions;
+                    lastOfferedTransactions = offeredTransactions;
+                    lastAchievedTransactions = achievedTransactions;
+
+                    SimboxDataGenerator.msg("Active Sessions: " + getSessionCount());
+                    SimboxDataGenerator.msg("busyCount = " + busyCount);
+                    SimboxDataGenerator.msg("evilCount = " + evilCount);
+                    SimboxDataGenerator.msg("goodCallCount = " + goodCallCount);
+                    SimboxDataGenerator.msg("goodCellMoves = " + goodCellMoves);
+                    SimboxDataGenerator.msg("evilCellMoves = " + evilCellMoves);
+                    SimboxDataGenerator.msg("offeredTransactions = " + offeredThisTime);
+                    SimboxDataGenerator.msg("achievedTransactions = " + achievedThisTime);
+                    SimboxDataGenerator.msg("scheduleLagMs = " + (scheduleLagNanos / 1000000));
+                    SimboxDataGenerator.msg(evilSimBox.toString());
+                    latencyTracker.reportAndReset(statsPublisher);
+
+                    laststatstime = System.currentTimeMillis();
+                    statsIntervals++;
+
+                    if (voltClient == null) {
+                        SimboxDataGenerator.msg(eventSink.toString());
+                        continue;
+                    }
 
-            SimboxDataGenerator
-                    .msg("Created " + userCount + " devices, " + evilSimBox.getSimCount() + " are in a sim box");
+                    // Once ReportCellChange is looking for cohorts we only poll now and
+                    // then, to catch cohorts split across partitions
+                    if (getParam("ENABLE_SUSPICOUS_COHORT_DETECTION", 0, voltClient) == 1
+                            && (getParam("PARTITION_COHORT_DETECTION_SIZE", 0, voltClient) == 0
+                                    || statsIntervals % COHORT_FALLBACK_POLL_INTERVALS == 0)) {
 
-            SimboxDataGenerator.msg("Run started");
-            startMs = System.currentTimeMillis();
-            laststatstime = System.currentTimeMillis();
+                        // Last 3 cells is a cheap early warning. Only look at the last
+                        // 6 if it finds something.
+                        long membersNoted = noteSuspiciousCohorts(3);
 
-            while (System.currentTimeMillis() < (startMs + (1000 * durationSeconds))) {
+                        if (membersNoted > 0) {
+                            membersNoted += noteSuspiciousCohorts(6);
+                        }
 
-                // See if the simbox has capacity to make a call...
-                UserDevice callingNumber = getNonbusyLegalNumber(null);
-                UserDevice calledNumber = getNonbusyLegalNumber(callingNumber);
+                        statsPublisher.report("cohort_members_noted", membersNoted);
+                    }
 
-                if (callingNumber == null || calledNumber == null) {
-                    // Can't find a free number
-                    busyCount++;
-                } else {
+                    // Inline detection only finds exact matches, so we always poll for
+                    // fuzzy ones
+                    if (getParam("ENABLE_SUSPICOUS_COHORT_DETECTION", 0, voltClient) == 1
+                            && getParam("ENABLE_FUZZY_COHORT_DETECTION", 0, voltClient) == 1) {
+                        statsPublisher.report("fuzzy_cohort_members_noted",
+                                noteSuspiciousCohorts(FUZZY_DETECTION_LEVEL));
+                    }
 
-                    int callLength = r.nextInt(maxRandomCallLengthSeconds);
+                    if (getParam("SIMBOX_CALLS_ITSELF", 0, voltClient) == 1) {
+                        evilSimBox.setSelfCalls(true);
+                    } else {
+                        evilSimBox.setSelfCalls(false);
+                    }
 
-                    // Try making a simbox call
-                    boolean simboxCallMade = evilSimBox.routeInternationalCall(calledNumber, voltClient, callLength);
+                    if (callGraphAnalyzer != null) {
+                        callGraphAnalyzer.reportStats(statsPublisher);
+                    }
 
-                    if (simboxCallMade) {
-                        evilCount++;
-                    } else {
+                    statsPublisher.report("purge_backlog", getPurgeBacklog());
 
-                        // Do 'normal' activity.
+                    printDeviceStats("Good Device", knownGoodDeviceId, voltClient);
+                    printDeviceStats("Bad Device", knownBadDeviceId, voltClient);
 
-                        // Change cell one time in 20.
-                        if (callingNumber.deviceInCellForNMinutes(2) && r.nextInt(20) == 0) {
+                    statsPublisher.report("sessions", getSessionCount());
+                    statsPublisher.report("goodCallCount", goodCallCount);
+                    statsPublisher.report("fakeCallCount", evilSimBox.getFakeCallCount());
+                    statsPublisher.report("evilCount", evilSimBox.getEvilCallCount());
+                    statsPublisher.report("busyCount", busyCount);
+                    statsPublisher.report("goodCellMoves", goodCellMoves);
+                    statsPublisher.report("evilCellMoves", evilCellMoves);
+                    statsPublisher.report("evilRevenueCents", (long) (evilSimBox.getProjectedProfit() * 100));
+                    statsPublisher.report("offeredTransactions", offeredThisTime);
+                    statsPublisher.report("achievedTransactions", achievedThisTime);
+                    statsPublisher.report("scheduleLagMs", scheduleLagNanos / 1000000);
 
-                            // Change cell id
+                    // See whether suspicious activity has been detected
+                    ClientResponse cr = voltClient.callProcedure("getSuspectedDeviceSummary");
+                    if (cr.getStatus() == ClientResponse.SUCCESS) {
+                        VoltTable resultsTable = cr.getResults()[0];
 
-                            long cellId = callingNumber.getCellId();
+                        while (resultsTable.advanceRow()) {
+                            String suspiciousBecause = resultsTable.getString("suspicious_because");
+                            long suspiciousCount = resultsTable.getLong("how_many");
 
-                            // Move to an adjacent cell...
-                            getNextCellId(cellId);
+                            statsPublisher.report("suspicious_because_" + suspiciousBecause, suspiciousCount);
 
-                            voltClient.callProcedure(coec, "ReportCellChange",
-                                    callingNumber.changeCellid(r.nextInt(cellCount)));
-                            goodCellMoves++;
-                            tpThisMs++;
+                        }
+                    }
 
-                        } else {
+                    // See if our sims have been noticed
+                    cr = voltClient.callProcedure("getSimboxDeviceStatus", simBoxIds);
+                    if (cr.getStatus() == ClientResponse.SUCCESS) {
+                        VoltTable resultsTable = cr.getResults()[0];
 
-                            // make a normal call
+                        while (resultsTable.advanceRow()) {
+                            String suspiciousBecause = resultsTable.getString("suspicious_because");
+                            if (suspiciousBecause == null) {
+                                suspiciousBecause = "not_suspected";
+                            }
 
-                            callingNumber.makeCall(r, calledNumber, callLength, voltClient);
+                            long suspiciousCount = resultsTable.getLong("how_many");
 
-                            tpThisMs += 2;
-                            goodCallCount++;
+                            statsPublisher.report("simboxstatus_" + suspiciousBecause, suspiciousCount);
 
                         }
                     }
 
-                    // Our evil simbox is in the back of a truck and moves around...
-                    if (evilSimBox.haventMovedInXMinutes(2)) {
+                    statsPublisher.publish();
+                    printApplicationStats(voltClient);
 
-                        int nextEvilCellId = (evilSimBox.getCellId() + 1) % cellCount;
+                }
 
-                        evilSimBox.moveCell(nextEvilCellId, voltClient);
-                        tpThisMs += evilSimBox.getSimCount();
-                        evilCellMoves += evilSimBox.getSimCount();
+            }
 
-                    }
+            for (int i = 0; i < shardThreads.length; i++) {
+                shardThreads[i].join();
+            }
 
-                    // control number of calls per millisecond
-                    if (tpThisMs > tpMs) {
+            SimboxDataGenerator.msg("Run finished; ending sessions");
 
-                        // but sleep if we're moving too fast...
-                        while (currentMs == System.currentTimeMillis()) {
-                            try {
-                                Thread.sleep(0, 50000);
-                            } catch (InterruptedException e) {
-                                e.printStackTrace();
-                            }
-                        }
+            laststatstime = System.currentTimeMillis();
+
+            try {
+                eventSink.drain();
 
-                        currentMs = System.currentTimeMillis();
-                        tpThisMs = 0;
+                for (int i = 0; i < shards.length; i++) {
+                    if (shards[i].getEventSink() != eventSink) {
+                        shards[i].getEventSink().drain();
                     }
+                }
+            } catch (Exception e) {
+                SimboxDataGenerator.msg(e);
+            }
 
-                    // Every 60 seconds dump stats to console and
-                    // check for suspicious cohorts
-                    if (laststatstime + 60000 < System.currentTimeMillis()) {
+            if (voltClient == null) {
+                SimboxDataGenerator.msg(eventSink.toString());
+            }
 
-                        zeroStats(voltClient);
+            if (journal != null) {
+                journal.close();
+            }
 
-                        if (getParam("ENABLE_SUSPICOUS_COHORT_DETECTION", 0, voltClient) == 1) {
+            if (saveCheckpoint != null && voltClient != null) {
+                saveCheckpoint.save(this, voltClient);
+            }
 
-                            String[] cohort = getSuspiciousCohort();
-                            Object[] cohortWrapper = { cohort };
-                            if (cohort.length > 0) {
-                                voltClient.callProcedure("NoteSuspiciousCohort", cohortWrapper);
-                            }
-                        }
+            SimboxDataGenerator.msg("done...");
 
-                        if (getParam("SIMBOX_CALLS_ITSELF", 0, voltClient) == 1) {
-                            evilSimBox.setSelfCalls(true);
-                        } else {
-                            evilSimBox.setSelfCalls(false);
-                        }
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            if (metricsServer != null) {
+                metricsServer.stop();
+            }
+        }
 
-                        printDeviceStats("Good Device", knownGoodDeviceId, voltClient);
-                        printDeviceStats("Bad Device", knownBadDeviceId, voltClient);
-
-                        SimboxDataGenerator.msg("Active Sessions: " + sessionMap.size());
-                        SimboxDataGenerator.msg("skipCount = " + skipCount);
-                        SimboxDataGenerator.msg("busyCount = " + busyCount);
-                        SimboxDataGenerator.msg("evilCount = " + evilCount);
-                        SimboxDataGenerator.msg("goodCallCount = " + goodCallCount);
-                        SimboxDataGenerator.msg("goodCellMoves = " + goodCellMoves);
-                        SimboxDataGenerator.msg("evilCellMoves = " + evilCellMoves);
-                        SimboxDataGenerator.msg(evilSimBox.toString());
-
-                        reportStat("sessions", sessionMap.size(), voltClient);
-                        reportStat("goodCallCount", goodCallCount, voltClient);
-                        reportStat("fakeCallCount", evilSimBox.getFakeCallCount(), voltClient);
-                        reportStat("evilCount", evilSimBox.getEvilCallCount(), voltClient);
-                        reportStat("busyCount", busyCount, voltClient);
-                        reportStat("goodCellMoves", goodCellMoves, voltClient);
-                        reportStat("evilCellMoves", evilCellMoves, voltClient);
-                        reportStat("evilRevenueCents", (long) (evilSimBox.getProjectedProfit() * 100), voltClient);
-
-                        // See whether suspicious activity has been detected
-                        ClientResponse cr = voltClient.callProcedure("getSuspectedDeviceSummary");
-                        if (cr.getStatus() == ClientResponse.SUCCESS) {
-                            VoltTable resultsTable = cr.getResults()[0];
-
-                            while (resultsTable.advanceRow()) {
-                                String suspiciousBecause = resultsTable.getString("suspicious_because");
-                                long suspiciousCount = resultsTable.getLong("how_many");
-
-                                reportStat("suspicious_because_" + suspiciousBecause, suspiciousCount, voltClient);
+    }
 
-                            }
-                        }
+    /**
+     * Create our cells and devices from scratch, and move the devices around a
+     * bit so they have a cell history.
+     * 
+     * @return how many cell moves we made
+     * @throws Exception
+     */
+    private long warmUp() throws Exception {
+
+        SimboxDataGenerator.msg("Creating cells");
 
-                        // See if our sims have been noticed
-                        cr = voltClient.callProcedure("getSimboxDeviceStatus", simBoxIds);
-                        if (cr.getStatus() == ClientResponse.SUCCESS) {
-                            VoltTable resultsTable = cr.getResults()[0];
+        if (voltClient != null) {
+            voltClient.callProcedure("@AdHoc", "DELETE FROM cell_suspicious_cohort_members;");
+        }
 
-                            while (resultsTable.advanceRow()) {
-                                String suspiciousBecause = resultsTable.getString("suspicious_because");
-                                if (suspiciousBecause == null) {
-                                    suspiciousBecause = "not_suspected";
-                                }
+        // Create cells
+        for (int i = 0; i < cellCount; i++) {
+            callWarmUpProcedure("cell_table.UPSERT", i);
+        }
 
-                                long suspiciousCount = resultsTable.getLong("how_many");
+        eventSink.drain();
 
-                                reportStat("simboxstatus_" + suspiciousBecause, suspiciousCount, voltClient);
+        // Create devices...
+        SimboxDataGenerator.msg("Creating " + userCount + " devices");
 
-                            }
-                        }
+        for (int i = 0; i < userCount; i++) {
 
-                        laststatstime = System.currentTimeMillis();
-                        skipCount = 0;
-                        busyCount = 0;
-                        evilCount = 0;
-                        goodCallCount = 0;
-                        goodCellMoves = 0;
-                        evilCellMoves = 0;
+            UserDevice ud = createDevice(i, i % cellCount);
 
-                        printApplicationStats(voltClient);
+            int createDateInPastMs = r.nextInt(ONE_YEAR_IN_MS);
 
-                    }
+            // Add 1 in 100 newly created sims to the simbox until it's full
+            if (evilSimBox.getSimCount() < Simbox.SIMBOX_SIZE && r.nextInt(100) == 0) {
+                createDateInPastMs = r.nextInt(ONE_DAY_IN_MS);
+                evilSimBox.addSim(ud);
+            }
 
+            Date createDate = new Date(System.currentTimeMillis() - createDateInPastMs);
+            ud.setCreateDate(createDate);
+
+            if (bulkLoadBatchSize <= 0) {
+                callWarmUpProcedure("RegisterDevice", ud.getParamsForRegisterProcedure());
+            }
+
+        }
+
+        // Move devices around a bit...
+        int moveCount = 6;
+        SimboxDataGenerator.msg("Moving " + userCount + " devices " + moveCount + " times...");
+
+        if (bulkLoadBatchSize > 0) {
+
+            // Register and move devices in batches, one partition at a time
+            BulkDeviceLoader loader = new BulkDeviceLoader(eventSink, bulkLoadBatchSize, moveCount);
+
+            for (int i = 0; i < userCount; i++) {
+
+                UserDevice ourSession = getDevice(i);
+                long firstCellId = ourSession.getCellId();
+                long[] moveCellIds = new long[moveCount];
+
+                for (int j = 0; j < moveCount; j++) {
+                    moveCellIds[j] = r.nextInt(cellCount);
+                    ourSession.changeCellid(moveCellIds[j]);
                 }
 
+                loader.addDevice(ourSession, firstCellId, moveCellIds);
             }
 
-            SimboxDataGenerator.msg("Run finished; ending sessions");
+            loader.flush();
 
-            laststatstime = System.currentTimeMillis();
+            SimboxDataGenerator.msg("Registered " + loader.getDeviceCount() + " devices in "
+                    + loader.getCallCount() + " batches");
+
+        } else {
+
+            for (int j = 0; j < moveCount; j++) {
+
+                SimboxDataGenerator.msg("Move " + (j + 1));
+
+                for (int i = 0; i < userCount; i++) {
+
+                    UserDevice ourSession = getDevice(i);
+                    callWarmUpProcedure("ReportCellChange", ourSession.changeCellid(r.nextInt(cellCount)));
+                }
 
-            try {
-                voltClient.drain();
-            } catch (Exception e) {
-                SimboxDataGenerator.msg(e);
             }
+        }
 
-            SimboxDataGenerator.msg("done...");
+        eventSink.drain();
+
+        SimboxDataGenerator
+                .msg("Created " + userCount + " devices, " + evilSimBox.getSimCount() + " are in a sim box");
 
+        return (long) userCount * moveCount;
+    }
+
+    /**
+     * Send a call made while warming up. Warm up isn't rate limited, so it's
+     * scheduled for whenever we send it.
+     * 
+     * @param procName
+     * @param params
+     * @throws Exception
+     */
+    private void callWarmUpProcedure(String procName, Object... params) throws Exception {
+        eventSink.send(System.nanoTime(), procName, params);
+    }
+
+    /**
+     * Replay a journal written by an earlier run, instead of generating a
+     * workload.
+     * 
+     * @param replayFile
+     * @param speed            how much faster than real time to go, or 0 for as
+     *                         fast as we can
+     * @param rebaseTimestamps if true, move timestamps so the journal's start
+     *                         time is now
+     */
+    public void replay(File replayFile, double speed, boolean rebaseTimestamps) {
+
+        try {
+            new EventJournalReplayer(replayFile, eventSink, statsPublisher, speed, rebaseTimestamps, latencyTracker)
+                    .run();
+            SimboxDataGenerator.msg("done...");
         } catch (Exception e) {
             e.printStackTrace();
         }
+    }
+
+    /**
+     * Split our devices, target transaction rate and Random into 'threadCount'
+     * shards. Shard 0 gets the simbox.
+     * 
+     * @throws Exception
+     */
+    private void createShards() throws Exception {
+
+        shards = new GeneratorShard[threadCount];
 
+        for (int i = 0; i < threadCount; i++) {
+
+            long firstDeviceId = getFirstDeviceIdForShard(i);
+            int deviceCount = (int) (getFirstDeviceIdForShard(i + 1) - firstDeviceId);
+
+            RateController shardRateController = new UnthrottledRateController();
+
+            if (tpMs > 0) {
+
+                int shardTpMs = tpMs / threadCount;
+                if (i < tpMs % threadCount) {
+                    shardTpMs++;
+                }
+
+                shardTpMs = Math.max(1, shardTpMs);
+
+                // By default we can get 1ms ahead of schedule
+                shardRateController = new TokenBucketRateController(shardTpMs * 1000d,
+                        burst > 0 ? burst : shardTpMs);
+            }
+
+            EventSink shardSink = eventSink;
+
+            if (clientPerShard) {
+                shardSink = new VoltDBEventSink(connectVoltDB(hostnames), latencyTracker);
+
+                if (eventBatchSize > 0) {
+                    shardSink = new BatchingEventSink(shardSink, eventBatchSize, eventBatchLingerMs);
+                }
+
+                if (journal != null) {
+                    shardSink = new JournallingEventSink(shardSink, journal);
+                }
+            }
+
+            shards[i] = new GeneratorShard(i, firstDeviceId, deviceCount, this, shardSink, r.split(),
+                    shardRateController, i == 0 ? evilSimBox : null);
+        }
+
+    }
+
+    /**
+     * @param shardId
+     * @return first device ID owned by 'shardId'
+     */
+    private long getFirstDeviceIdForShard(int shardId) {
+        return ((long) shardId * userCount) / threadCount;
+    }
+
+    /**
+     * @param deviceId
+     * @return the shard that owns 'deviceId'
+     */
+    private int getShardIdForDevice(long deviceId) {
+        return (int) ((((deviceId + 1) * threadCount) - 1) / userCount);
+    }
+
+    /**
+     * @return running totals for all our shards, indexed by
+     *         GeneratorShard.BUSY_COUNT etc
+     */
+    long[] getShardTotals() {
+
+        long[] totals = new long[GeneratorShard.COUNTER_COUNT];
+
+        for (int i = 0; i < shards.length; i++) {
+            for (int j = 0; j < totals.length; j++) {
+                totals[j] += shards[i].getCounter(j);
+            }
+        }
+
+        return totals;
+    }
+
+    /**
+     * Add running totals from a checkpoint to shard 0.
+     * 
+     * @param totals indexed by GeneratorShard.BUSY_COUNT etc
+     */
+    void restoreShardTotals(long[] totals) {
+
+        for (int i = 0; i < totals.length && i < GeneratorShard.COUNTER_COUNT; i++) {
+            shards[0].addToCounter(i, totals[i]);
+        }
+    }
+
+    /**
+     * Create a device in whichever shard owns it.
+     * 
+     * @param deviceId
+     * @param cellId
+     * @return the new device
+     */
+    UserDevice createDevice(long deviceId, long cellId) {
+        return shards[getShardIdForDevice(deviceId)].createDevice(deviceId, cellId);
+    }
+
+    /**
+     * @param deviceId
+     * @return the store 'deviceId' lives in
+     */
+    DeviceStore getDeviceStore(long deviceId) {
+        return shards[getShardIdForDevice(deviceId)].getDeviceStore();
+    }
+
+    /**
+     * @return how many devices we are simulating
+     */
+    private long getSessionCount() {
+
+        long sessionCount = 0;
+
+        for (int i = 0; i < shards.length; i++) {
+            sessionCount += shards[i].getDeviceCount();
+        }
+
+        return sessionCount;
     }
 
     private void printDeviceStats(String message, long deviceId, Client voltClient)
@@ -460,77 +829,89 @@ public class SimboxDataGenerator {
     }
 
     /**
-     * Move to next cell
+     * Find and record the busiest cohorts at one level of detail.
      * 
-     * @param oldCellId
-     * @return
+     * @param detectionLevel how many cell moves to look at. 3, 6 or
+     *                       FUZZY_DETECTION_LEVEL.
+     * @return how many cohort members were recorded
+     * @throws ProcCallException
+     * @throws IOException
+     * @throws NoConnectionsException
      */
-    private long getNextCellId(long oldCellId) {
+    private long noteSuspiciousCohorts(int detectionLevel)
+            throws NoConnectionsException, IOException, ProcCallException {
 
-        long newCellId = oldCellId;
+        long[] cohort = getSuspiciousCohort(detectionLevel);
 
-        if (r.nextInt(2) == 0) {
-            newCellId = (oldCellId + 1) % cellCount;
-        } else {
+        if (cohort.length == 0) {
+            return 0;
+        }
 
-            if (oldCellId == 0) {
-                newCellId = cellCount - 1;
-            } else {
-                newCellId = oldCellId - 1;
-            }
+        Object[] cohortWrapper = { detectionLevel, cohort };
 
+        if (journal != null) {
+            journal.record(System.nanoTime(), "NoteSuspiciousCohort", cohortWrapper);
         }
 
-        return newCellId;
+        return noteSuspiciousCohort(cohortWrapper);
     }
 
     /**
      * find busiest cohorts using a directed procedure...
      * 
-     * @return array of suspicious cohort cell changes
+     * @param detectionLevel how many cell moves to look at. 3, 6 or
+     *                       FUZZY_DETECTION_LEVEL.
+     * @return array of hashes of suspicious cohort cell changes
      * @throws ProcCallException
      * @throws IOException
      * @throws NoConnectionsException
      */
-    private String[] getSuspiciousCohort() throws NoConnectionsException, IOException, ProcCallException {
+    private long[] getSuspiciousCohort(int detectionLevel)
+            throws NoConnectionsException, IOException, ProcCallException {
+
+        HashMap<Long, Long> cellRuns = new HashMap<Long, Long>();
 
-        HashMap<String, Long> cellRuns = new HashMap<String, Long>();
+        final String procName = detectionLevel == FUZZY_DETECTION_LEVEL ? "GetPartitionLshBuckets"
+                : "GetPartition" + detectionLevel + "CellRuns";
 
-        ClientResponseWithPartitionKey[] cr = voltClient.callAllPartitionProcedure("GetPartition6CellRuns");
+        ClientResponseWithPartitionKey[] cr = voltClient.callAllPartitionProcedure(procName);
         for (int i = 0; i < cr.length; i++) {
             if (cr[i].response.getStatus() == ClientResponse.SUCCESS) {
-                VoltTable resultsTable = cr[i].response.getResults()[0];
 
-                while (resultsTable.advanceRow()) {
+                // GetPartitionLshBuckets returns one table per band
+                for (VoltTable resultsTable : cr[i].response.getResults()) {
 
-                    String last6 = resultsTable.getString("CELL_HISTORY_AS_STRING_LAST6");
-                    long suspiciousCount = resultsTable.getLong("how_many");
+                    while (resultsTable.advanceRow()) {
 
-                    Long testValue = cellRuns.get(last6);
+                        long signature = resultsTable.getLong(0);
+                        long suspiciousCount = resultsTable.getLong("how_many");
 
-                    if (testValue == null) {
-                        cellRuns.put(last6, suspiciousCount);
-                    } else {
-                        cellRuns.put(last6, testValue.longValue() + suspiciousCount);
-                    }
+                        Long testValue = cellRuns.get(signature);
+
+                        if (testValue == null) {
+                            cellRuns.put(signature, suspiciousCount);
+                        } else {
+                            cellRuns.put(signature, testValue.longValue() + suspiciousCount);
+                        }
 
+                    }
                 }
 
             }
         }
 
-        ArrayList<String> cellIds = new ArrayList<String>();
+        ArrayList<Long> cellIds = new ArrayList<Long>();
 
         long maxValue = 0;
 
-        Iterator<Entry<String, Long>> it = cellRuns.entrySet().iterator();
+        Iterator<Entry<Long, Long>> it = cellRuns.entrySet().iterator();
         while (it.hasNext()) {
-            Entry<String, Long> pair = it.next();
+            Entry<Long, Long> pair = it.next();
 
             Long value = (Long) pair.getValue();
 
             if (value.longValue() >= COHORT_DETECTION_SIZE) {
-                cellIds.add((String) pair.getKey());
+                cellIds.add(pair.getKey());
 
                 if (maxValue < value.longValue()) {
                     maxValue = value.longValue();
@@ -540,83 +921,79 @@ public class SimboxDataGenerator {
             it.remove();
         }
 
-        reportStat("largest_6_cell_cohort", maxValue, voltClient);
+        statsPublisher.report("largest_" + detectionLevel + "_cell_cohort", maxValue);
 
-        String[] cellIdsAsStringArray = new String[cellIds.size()];
+        long[] cellIdHashes = new long[cellIds.size()];
 
-        return cellIds.toArray(cellIdsAsStringArray);
+        for (int i = 0; i < cellIdHashes.length; i++) {
+            cellIdHashes[i] = cellIds.get(i);
+        }
+
+        return cellIdHashes;
     }
 
     /**
-     * Get a number which isn't currently involved in making a call../
+     * Record the members of suspicious cohorts in every partition at once.
      * 
-     * @param callingNumber the number we're calling from
-     * @return A number we can call...
+     * @param cohortWrapper detection level and hashes of suspicious cohort
+     *                      cell changes
+     * @return how many cohort members were recorded
+     * @throws ProcCallException
+     * @throws IOException
+     * @throws NoConnectionsException
      */
-    private UserDevice getNonbusyLegalNumber(UserDevice callingNumber) {
-
-        for (int i = 0; i < RANDOM_SEARCH_ATTEMPTS; i++) {
-
-            if (callingNumber == null) {
-
-                long nonBusyNumber = r.nextInt(userCount);
-
-                if (!evilSimBox.isEvil(nonBusyNumber)) {
-
-                    UserDevice ourSession = sessionMap.get(nonBusyNumber);
+    private long noteSuspiciousCohort(Object[] cohortWrapper)
+            throws NoConnectionsException, IOException, ProcCallException {
 
-                    if (!ourSession.isBusy()) {
-                        return ourSession;
-                    }
+        long membersNoted = 0;
 
-                }
+        ClientResponseWithPartitionKey[] cr = voltClient.callAllPartitionProcedure("NoteSuspiciousCohort",
+                cohortWrapper);
 
+        for (int i = 0; i < cr.length; i++) {
+            if (cr[i].response.getStatus() == ClientResponse.SUCCESS) {
+                membersNoted += cr[i].response.getResults()[0].asScalarLong();
             } else {
-
-                long nextNumberToCall = callingNumber.getNextNumberToCall(evilSimBox, r, userCount);
-
-                UserDevice ourSession = sessionMap.get(nextNumberToCall);
-
-                if (!ourSession.isBusy()) {
-                    return ourSession;
-                }
-
+                SimboxDataGenerator.msg("NoteSuspiciousCohort: " + cr[i].response.getStatusString());
             }
         }
 
-        return null;
+        return membersNoted;
     }
 
     /**
-     * Store a statistic
-     * 
-     * @param statName
-     * @param statValue
-     * @param c
-     * @throws NoConnectionsException
-     * @throws IOException
+     * @return how many rows of history, in every partition, are older than
+     *         HISTORY_RETENTION_HOURS and waiting for PurgeHistory
      * @throws ProcCallException
+     * @throws IOException
+     * @throws NoConnectionsException
      */
-    private static void reportStat(String statName, long statValue, Client c)
-            throws NoConnectionsException, IOException, ProcCallException {
+    private long getPurgeBacklog() throws NoConnectionsException, IOException, ProcCallException {
 
-        c.callProcedure("@AdHoc", "UPSERT INTO simbox_stats " + "(stat_name, stat_value) " + "VALUES ('" + statName
-                + "'," + statValue + ");");
+        final long retentionHours = getParam("HISTORY_RETENTION_HOURS", 25, voltClient);
 
-    }
+        if (retentionHours <= 0) {
+            return 0;
+        }
 
-    /**
-     * zero statistics
-     * 
-     * @param c
-     * @throws NoConnectionsException
-     * @throws IOException
-     * @throws ProcCallException
-     */
-    private static void zeroStats(Client c) throws NoConnectionsException, IOException, ProcCallException {
+        final TimestampType cutoff = new TimestampType(
+                (System.currentTimeMillis() - (retentionHours * 60 * 60 * 1000)) * 1000);
+        long backlog = 0;
+
+        ClientResponseWithPartitionKey[] cr = voltClient.callAllPartitionProcedure("GetPurgeBacklog", cutoff, cutoff,
+                cutoff, cutoff);
 
-        c.callProcedure("clearStats");
+        for (int i = 0; i < cr.length; i++) {
+            if (cr[i].response.getStatus() == ClientResponse.SUCCESS) {
+                for (VoltTable t : cr[i].response.getResults()) {
+                    backlog += t.asScalarLong();
+                }
+            } else {
+                SimboxDataGenerator.msg("GetPurgeBacklog: " + cr[i].response.getStatusString());
+            }
+        }
 
+        return backlog;
     }
 
     /**
@@ -666,13 +1043,75 @@ public class SimboxDataGenerator {
         int cellCount = Integer.parseInt(args[4]);
         int maxRandomCallLengthSeconds = Integer.parseInt(args[5]);
 
+        // Optional settings, passed as -D options via JVMOPTS
+        int threadCount = Integer.getInteger("simbox.threads", 1);
+        boolean clientPerShard = Boolean.getBoolean("simbox.clientPerShard");
+        int burst = Integer.getInteger("simbox.burst", 0);
+        int bulkLoadBatchSize = Integer.getInteger("simbox.bulkLoadBatchSize", 500);
+        String checkpointDir = System.getProperty("simbox.checkpointDir", "/tmp/simbox");
+        String checkpointName = System.getProperty("simbox.checkpoint");
+        String restoreName = System.getProperty("simbox.restore");
+        String journalName = System.getProperty("simbox.journal");
+        long seed = Long.getLong("simbox.seed", System.nanoTime());
+        String replayName = System.getProperty("simbox.replay");
+        double replaySpeed = Double.parseDouble(System.getProperty("simbox.replaySpeed", "1"));
+        boolean replayRebaseTimestamps = Boolean
+                .parseBoolean(System.getProperty("simbox.replayRebaseTimestamps", "true"));
+        String sinkType = System.getProperty("simbox.sink", "voltdb");
+        int eventBatchSize = Integer.getInteger("simbox.eventBatchSize", 0);
+        long eventBatchLingerMs = Long.getLong("simbox.eventBatchLingerMs", 5);
+        int callGraphIntervalSeconds = Integer.getInteger("simbox.callGraphIntervalSeconds", 0);
+        int metricsPort = Integer.getInteger("simbox.metricsPort", 0);
+
         msg("[hostnames userCount tpMs durationSeconds cellCount maxRandomCallLengthSeconds ]="
                 + Arrays.toString(args));
         SimboxDataGenerator pdg = new SimboxDataGenerator(hostnames, userCount, tpMs, durationSeconds, cellCount,
-                maxRandomCallLengthSeconds);
+                maxRandomCallLengthSeconds, threadCount, clientPerShard, burst, bulkLoadBatchSize,
+                sinkType);
+        pdg.setCheckpoints(checkpointDir, checkpointName, restoreName);
+        pdg.setEventBatching(eventBatchSize, eventBatchLingerMs);
+        pdg.setCallGraphInterval(callGraphIntervalSeconds);
+        pdg.setMetricsPort(metricsPort);
+        pdg.setJournal(journalName == null ? null : new File(journalName), seed);
+
+        if (replayName != null) {
+            pdg.replay(new File(replayName), replaySpeed, replayRebaseTimestamps);
+        } else {
+            pdg.run();
+        }
 
-        pdg.run();
+    }
 
+    /**
+     * Create the sink our events go to. Only the VoltDB sink needs a
+     * connection; the others let us measure the generator on its own. In-memory
+     * sink settings are passed as -D options.
+     * 
+     * @return a new sink, based on sinkType
+     * @throws Exception
+     */
+    private EventSink createEventSink() throws Exception {
+
+        if (sinkType.equalsIgnoreCase("counting")) {
+            clientPerShard = false;
+            return new CountingEventSink();
+        }
+
+        if (sinkType.equalsIgnoreCase("memory")) {
+            clientPerShard = false;
+            return new InMemoryEventSink(Integer.getInteger("simbox.sinkPartitions", 8),
+                    Long.getLong("simbox.sinkServiceMicros", 50), Integer.getInteger("simbox.sinkMaxOutstanding", 3000),
+                    latencyTracker);
+        }
+
+        if (!sinkType.equalsIgnoreCase("voltdb")) {
+            SimboxDataGenerator.msg("Unknown sink '" + sinkType + "', using VoltDB");
+        }
+
+        SimboxDataGenerator.msg("Log into VoltDB");
+        voltClient = connectVoltDB(hostnames);
+
+        return new VoltDBEventSink(voltClient, latencyTracker);
     }
 
     /**
@@ -787,4 +1226,130 @@ public class SimboxDataGenerator {
         return maxRandomCallLengthSeconds;
     }
 
+    /**
+     * @param deviceId
+     * @return the device, whichever shard owns it
+     */
+    public UserDevice getDevice(long deviceId) {
+        return shards[getShardIdForDevice(deviceId)].getDevice(deviceId);
+    }
+
+    /**
+     * @return the simbox
+     */
+    public Simbox getSimbox() {
+        return evilSimBox;
+    }
+
+    /**
+     * @return the userCount
+     */
+    public int getUserCount() {
+        return userCount;
+    }
+
+    /**
+     * @return the cellCount
+     */
+    public int getCellCount() {
+        return cellCount;
+    }
+
+    /**
+     * Save our state and a database snapshot when the run finishes, and/or
+     * start from a saved state instead of creating one.
+     * 
+     * @param directory    where checkpoints and snapshots live
+     * @param saveName     name to save as, or null
+     * @param restoreName  name to restore from, or null
+     */
+    public void setCheckpoints(String directory, String saveName, String restoreName) {
+
+        if (saveName != null) {
+            saveCheckpoint = new GeneratorCheckpoint(directory, saveName);
+        }
+
+        if (restoreName != null) {
+            restoreCheckpoint = new GeneratorCheckpoint(directory, restoreName);
+        }
+    }
+
+    /**
+     * Look for dense calling communities every 'seconds' seconds while we run.
+     * 
+     * @param seconds how often we look, or 0 to not look
+     */
+    public void setCallGraphInterval(int seconds) {
+
+        this.callGraphIntervalSeconds = seconds;
+
+        if (seconds > 0) {
+            SimboxDataGenerator.msg("Looking for calling communities every " + seconds + " seconds");
+        }
+    }
+
+    /**
+     * Serve our metrics over HTTP, in Prometheus format, while we run.
+     * 
+     * @param port port to listen on, or 0 to not serve them
+     */
+    public void setMetricsPort(int port) {
+        this.metricsPort = port;
+    }
+
+    /**
+     * Send ReportCellChange and ReportDeviceActivity events in batches, one
+     * partition at a time.
+     * 
+     * @param batchSize most events in a batch, or 0 to not batch them
+     * @param lingerMs  longest an event waits for its batch to fill up
+     */
+    public void setEventBatching(int batchSize, long lingerMs) {
+
+        this.eventBatchSize = batchSize;
+        this.eventBatchLingerMs = lingerMs;
+
+        if (batchSize > 0) {
+            SimboxDataGenerator.msg("Batching up to " + batchSize + " events per partition, lingerMs=" + lingerMs);
+            eventSink = new BatchingEventSink(eventSink, batchSize, lingerMs);
+        }
+    }
+
+    /**
+     * Journal every call we make to 'journalFile', and seed our Random with
+     * 'seed' so the run can be recognised later.
+     * 
+     * @param journalFile where to journal to, or null
+     * @param seed
+     */
+    public void setJournal(File journalFile, long seed) {
+
+        this.journalFile = journalFile;
+        this.seed = seed;
+
+        r = new SplittableRandom(seed);
+        evilSimBox.setRandom(r.split());
+    }
+
+    /**
+     * @return our journal, or null
+     */
+    public EventJournal getJournal() {
+        return journal;
+    }
+
+    /**
+     * @return our shards, or null if we haven't created them yet
+     */
+    GeneratorShard[] getShards() {
+        return shards;
+    }
+
+    /**
+     * @return where we record latency for each procedure we call
+     */
+    public LatencyTracker getLatencyTracker() {
+        return latencyTracker;
+    }
+
 }
@@ -0,0 +1,123 @@
+package org.voltdb.simbox;
+
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.voltdb.client.Client;
+
+/**
+ * Collects statistics and publishes them all at once, in a single call to
+ * PublishStats. simbox_stats is partitioned by publisher, so publishing is a
+ * single partition write and doesn't hold up the rest of the cluster. The
+ * call is asynchronous, so it doesn't hold up the generator either.
+ * <p>
+ * If more than one generator is running against the same database, each one
+ * should have its own publisher ID. ShowSimboxActivity__promBL adds their
+ * statistics together.
+ *
+ */
+public class StatsPublisher {
+
+    /**
+     * Our handle to VoltDB, or null if we only print stats
+     */
+    private final Client voltClient;
+
+    /**
+     * Which partition our stats live in
+     */
+    private final long publisherId;
+
+    /**
+     * Stats we haven't published yet, in the order we were given them
+     */
+    private final LinkedHashMap<String, Long> stats = new LinkedHashMap<String, Long>();
+
+    /**
+     * Callback to make DB interaction run faster
+     */
+    private final ComplainOnErrorCallback coec = new ComplainOnErrorCallback();
+
+    /**
+     * @param voltClient  our handle to VoltDB, or null if we're not using it
+     * @param publisherId
+     */
+    public StatsPublisher(Client voltClient, long publisherId) {
+        super();
+        this.voltClient = voltClient;
+        this.publisherId = publisherId;
+    }
+
+    /**
+     * Store a statistic, to be published next time publish() is called.
+     * 
+     * @param statName
+     * @param statValue
+     */
+    public synchronized void report(String statName, long statValue) {
+        stats.put(statName, statValue);
+    }
+
+    /**
+     * Send every statistic we've been given since we were last called. Any
+     * statistic we published last time but haven't been given this time is set
+     * to zero.
+     * 
+     * @throws IOException
+     */
+    public synchronized void publish() throws IOException {
+
+        if (voltClient == null || stats.isEmpty()) {
+            stats.clear();
+            return;
+        }
+
+        String[] statNames = new String[stats.size()];
+        long[] statValues = new long[stats.size()];
+        int i = 0;
+
+        Iterator<Map.Entry<String, Long>> iterator = stats.entrySet().iterator();
+
+        while (iterator.hasNext()) {
+            Map.Entry<String, Long> entry = iterator.next();
+            statNames[i] = entry.getKey();
+            statValues[i++] = entry.getValue();
+            iterator.remove();
+        }
+
+        voltClient.callProcedure(coec, "PublishStats", publisherId, statNames, statValues);
+    }
+
+    /**
+     * @return which partition our stats live in
+     */
+    public long getPublisherId() {
+        return publisherId;
+    }
+
+}
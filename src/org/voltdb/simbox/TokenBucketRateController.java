@@ -0,0 +1,143 @@
+package org.voltdb.simbox;
+
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A token bucket with nanosecond resolution. Rather than counting tokens we
+ * keep a schedule: the n'th permit is due at start + n / rate. We can run up
+ * to 'burst' permits ahead of the schedule, and we never skip any if we fall
+ * behind, so the schedule is always the load we meant to offer.
+ * <p>
+ * The schedule starts at the first acquire, not when we're created, so
+ * time spent in warm up isn't owed as a burst of permits when we start.
+ * <p>
+ * Not thread safe. Each generator shard has its own.
+ *
+ */
+public class TokenBucketRateController implements RateController {
+
+    /**
+     * How long each permit lasts
+     */
+    private final double nanosPerPermit;
+
+    /**
+     * How far ahead of the schedule we may get
+     */
+    private final long burstNanos;
+
+    /**
+     * When the schedule started
+     */
+    private volatile long startNanos = 0;
+
+    /**
+     * Whether the schedule has started
+     */
+    private volatile boolean started = false;
+
+    /**
+     * How many permits we've handed out
+     */
+    private volatile long achievedPermits = 0;
+
+    /**
+     * How far behind schedule we were at our last acquire
+     */
+    private volatile long lagNanos = 0;
+
+    /**
+     * Create a rate controller.
+     *
+     * @param permitsPerSecond target rate
+     * @param burst            how many permits we may send ahead of schedule
+     */
+    public TokenBucketRateController(double permitsPerSecond, int burst) {
+        super();
+        this.nanosPerPermit = 1000000000d / permitsPerSecond;
+        this.burstNanos = (long) (Math.max(1, burst) * nanosPerPermit);
+    }
+
+    @Override
+    public long acquire(int permits) throws InterruptedException {
+
+        if (!started) {
+            startNanos = System.nanoTime();
+            started = true;
+        }
+
+        final long intendedNanos = getDueNanos(achievedPermits);
+        final long earliestNanos = intendedNanos - burstNanos;
+
+        long nowNanos = System.nanoTime();
+
+        // We're too far ahead of the schedule, so wait...
+        while (nowNanos < earliestNanos) {
+
+            LockSupport.parkNanos(earliestNanos - nowNanos);
+
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+
+            nowNanos = System.nanoTime();
+        }
+
+        achievedPermits += permits;
+        lagNanos = Math.max(0, nowNanos - intendedNanos);
+
+        return intendedNanos;
+    }
+
+    @Override
+    public long getOfferedPermits() {
+
+        if (!started) {
+            return 0;
+        }
+
+        return (long) ((System.nanoTime() - startNanos) / nanosPerPermit);
+    }
+
+    @Override
+    public long getAchievedPermits() {
+        return achievedPermits;
+    }
+
+    @Override
+    public long getLagNanos() {
+        return lagNanos;
+    }
+
+    /**
+     * @param permit
+     * @return when permit number 'permit' is due
+     */
+    private long getDueNanos(long permit) {
+        return startNanos + (long) (permit * nanosPerPermit);
+    }
+
+}
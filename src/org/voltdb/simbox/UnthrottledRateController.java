@@ -0,0 +1,60 @@
+package org.voltdb.simbox;
+
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+/**
+ * A rate controller that lets us go as fast as we can. Every transaction is
+ * due the moment we ask.
+ *
+ */
+public class UnthrottledRateController implements RateController {
+
+    /**
+     * How many permits we've handed out
+     */
+    private volatile long achievedPermits = 0;
+
+    @Override
+    public long acquire(int permits) {
+
+        achievedPermits += permits;
+        return System.nanoTime();
+    }
+
+    @Override
+    public long getOfferedPermits() {
+        return achievedPermits;
+    }
+
+    @Override
+    public long getAchievedPermits() {
+        return achievedPermits;
+    }
+
+    @Override
+    public long getLagNanos() {
+        return 0;
+    }
+
+}
@@ -24,107 +24,99 @@ package org.voltdb.simbox;
  */
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Collection;
 import java.util.Date;
-import java.util.Random;
+import java.util.SplittableRandom;
 
-import org.voltdb.client.Client;
-import org.voltdb.client.NoConnectionsException;
 import org.voltdb.types.TimestampType;
 
 /**
- * A simulated phone on our network
+ * A simulated phone on our network. The phone's state lives in a DeviceStore;
+ * this is just a view of it, so it's cheap to create and throw away. A device
+ * is owned by one generator shard, but can be called by devices owned by any
+ * shard, so anything that touches its busy state or popular numbers holds the
+ * store's lock for it.
  *
  */
 public class UserDevice {
 
-    /**
-     * We make most of our calls to POPULAR_NUMBER_LIST_SIZE numbers...
-     */
-    private static final int POPULAR_NUMBER_LIST_SIZE = 10;
-    
     /**
      * Probability of picking an entry
      */
     private static final int POPULAR_NUMBER_PCT = 30;
 
     /**
-     * Phone ID
-     */
-    private long deviceId;
-    
-    /**
-     * Current cell. 
-     */
-    private long cellId;
-    
-    /**
-     * When phone was created. Older phones are less likely to be suspect.
+     * Where our state lives.
+     * <p>
+     * This includes a list of popular numbers. When asked to make a call we
+     * start at element 0 and if a random number <= 100 is < POPULAR_NUMBER_PCT
+     * we pick it. If we run off the end of the list we pick a number at random.
+     * Once populated around 98% of calls will be to numbers on the list.
      */
-    private Date createDate = new Date();
-    
-    /**
-     * When the current call ends. Will be in past if call is over.
-     */
-    private Date callEndTimeMs = new Date();
-    
-    /**
-     * When the cell last moved.
-     */
-    private Date lastCellMove = new Date();
-    
+    private final DeviceStore store;
+
     /**
-     * Used by async DB calls
+     * Phone ID
      */
-    private ComplainOnErrorCallback coec = new ComplainOnErrorCallback();
-    
+    private final long deviceId;
+
     /**
-     * List of popular numbers. When asked to make a call we start at element 0 and 
-     * if a random number <= 100 is < POPULAR_NUMBER_PCT we pick it. If we run off 
-     * the end of the list we pick a number at random. Once populated around 98%
-     * of calls will be to numbers on the list.
+     * Where we are in 'store'
      */
-    private ArrayList<Long> popularNumbers = new ArrayList<Long>(POPULAR_NUMBER_LIST_SIZE);
+    private final int index;
 
     /**
-     * Create a device in a cell.
+     * Create a view of a device in a store.
+     * @param store
      * @param deviceId
-     * @param cellId
      */
-    public UserDevice(long deviceId, long cellId) {
+    public UserDevice(DeviceStore store, long deviceId) {
         super();
+        this.store = store;
         this.deviceId = deviceId;
-        this.cellId = cellId;
+        this.index = store.getIndex(deviceId);
     }
 
     /**
-     * Make a call to another number. We assume someone else has checked to see
-     * if this is a good idea.
+     * Make a call to another number. Someone else will have checked to see if
+     * this is a good idea, but as the called number may belong to another shard
+     * it can still be grabbed before we get to it.
      * 
      * @param r
      * @param calledNumber
      * @param durationSeconds
-     * @param c
-     * @throws NoConnectionsException
+     * @param sink where we send each leg of the call
+     * @param rc decides when we can send each leg of the call
+     * @return false if either number turned out to be busy
      * @throws IOException
+     * @throws InterruptedException
      */
-    public void makeCall(Random r, UserDevice calledNumber, int durationSeconds, Client c)
-            throws NoConnectionsException, IOException {
+    public boolean makeCall(SplittableRandom r, UserDevice calledNumber, int durationSeconds, EventSink sink,
+            RateController rc) throws IOException, InterruptedException {
 
-        callEndTimeMs = new Date(System.currentTimeMillis() + (1000 * durationSeconds));
-        TimestampType startTime = new TimestampType(new Date());
+        final long callEndTime = System.currentTimeMillis() + (1000 * durationSeconds);
 
-        long otherNumber = calledNumber.getDeviceId();
-        String status = "E";
+        if (!areBusyUntil(callEndTime)) {
+            return false;
+        }
 
         // make sure called number adds calling number to its popular
         // numbers list where appropriate, and notes that it's now busy
-        calledNumber.recordBeingCalled(this.getDeviceId(), durationSeconds);
+        if (!calledNumber.recordBeingCalled(this.getDeviceId(), durationSeconds)) {
+            endCall();
+            return false;
+        }
 
-        c.callProcedure(coec, "ReportDeviceActivity", deviceId, startTime, durationSeconds, "O", otherNumber, status);
-        c.callProcedure(coec, "ReportDeviceActivity", otherNumber, startTime, durationSeconds, "I", deviceId, status);
+        TimestampType startTime = new TimestampType(new Date());
+
+        long otherNumber = calledNumber.getDeviceId();
+        String status = "E";
+
+        sink.send(rc.acquire(1), "ReportDeviceActivity", deviceId, startTime, durationSeconds, "O", otherNumber,
+                status);
+        sink.send(rc.acquire(1), "ReportDeviceActivity", otherNumber, startTime, durationSeconds, "I", deviceId,
+                status);
 
+        return true;
     }
 
     /**
@@ -132,7 +124,7 @@ public class UserDevice {
      */
     public boolean isBusy() {
 
-        if (callEndTimeMs.getTime() >= System.currentTimeMillis()) {
+        if (store.getCallEndTimeMs(index) >= System.currentTimeMillis()) {
             return true;
         }
 
@@ -140,12 +132,32 @@ public class UserDevice {
     }
 
     /**
-     * set new busy until time
+     * set new busy until time, provided we aren't busy already
      * @param callEndTime
+     * @return false if we were already busy
+     */
+    public boolean areBusyUntil(long callEndTime) {
+
+        synchronized (store.getLock(index)) {
+
+            if (isBusy()) {
+                return false;
+            }
+
+            store.setCallEndTimeMs(index, callEndTime);
+            return true;
+        }
+
+    }
+
+    /**
+     * Stop being busy. Used when a call we reserved ourselves for can't happen.
      */
-    public void areBusyUntil(Date callEndTime) {
+    private void endCall() {
 
-        callEndTimeMs = callEndTime;
+        synchronized (store.getLock(index)) {
+            store.setCallEndTimeMs(index, System.currentTimeMillis() - 1);
+        }
 
     }
 
@@ -155,7 +167,7 @@ public class UserDevice {
      */
     public Object[] getParamsForRegisterProcedure() {
 
-        Object[] params = { deviceId, cellId, createDate };
+        Object[] params = { deviceId, getCellId(), new Date(store.getCreateTimeMs(index)) };
         return params;
 
     }
@@ -169,7 +181,7 @@ public class UserDevice {
 
         setCellId(newCellid);
 
-        Object[] params = { deviceId, cellId };
+        Object[] params = { deviceId, newCellid };
         return params;
 
     }
@@ -185,7 +197,7 @@ public class UserDevice {
      * @return the cellId
      */
     public long getCellId() {
-        return cellId;
+        return store.getCellId(index);
     }
 
     /**
@@ -193,9 +205,7 @@ public class UserDevice {
      * @param cellId
      */
     public void setCellId(long cellId) {
-        this.cellId = cellId;
-        lastCellMove = new Date();
-
+        store.setCellId(index, cellId, System.currentTimeMillis());
     }
 
     /**
@@ -204,18 +214,25 @@ public class UserDevice {
      */
     public boolean deviceInCellForNMinutes(int n) {
 
-        if (lastCellMove.getTime() + (n * 60 * 1000) < System.currentTimeMillis()) {
+        if (store.getLastCellMoveMs(index) + (n * 60 * 1000) < System.currentTimeMillis()) {
             return true;
         }
 
         return false;
     }
 
+    /**
+     * @return when the device was created
+     */
+    public long getCreateTimeMs() {
+        return store.getCreateTimeMs(index);
+    }
+
     /**
      * @param createDate the createDate to set
      */
     public void setCreateDate(Date createDate) {
-        this.createDate = createDate;
+        store.setCreateTimeMs(index, createDate.getTime());
     }
 
     /**
@@ -226,33 +243,35 @@ public class UserDevice {
      * @param userCount range of possible numbers to call
      * @return
      */
-    public long getNextNumberToCall(Simbox evilSimBox, Random r, int userCount) {
+    public long getNextNumberToCall(Simbox evilSimBox, SplittableRandom r, int userCount) {
+
+        synchronized (store.getLock(index)) {
 
-        // See if we can find a choice from our popular numbers list.
-        // We start at the top and roll a dice each time...
-        for (int i = 0; i < popularNumbers.size(); i++) {
-            if (r.nextInt(100) <= POPULAR_NUMBER_PCT) {
-                return popularNumbers.get(i);
+            // See if we can find a choice from our popular numbers list.
+            // We start at the top and roll a dice each time...
+            final int popularNumberCount = store.getPopularNumberCount(index);
+
+            for (int i = 0; i < popularNumberCount; i++) {
+                if (r.nextInt(100) <= POPULAR_NUMBER_PCT) {
+                    return store.getPopularNumber(index, i);
+                }
             }
-        }
 
-        // We did't find a popular number. Pick one randomly. This will
-        // work provided the number of devices in the simbox is < the total number of devices.
-        while (true) {
+            // We did't find a popular number. Pick one randomly. This will
+            // work provided the number of devices in the simbox is < the total number of devices.
+            while (true) {
 
-            long newNumber = r.nextInt(userCount);
+                long newNumber = r.nextInt(userCount);
 
-            if (!evilSimBox.isEvil(newNumber) && (newNumber != deviceId)) {
+                if (!evilSimBox.isEvil(newNumber) && (newNumber != deviceId)) {
 
-                // Add new number to our list
-                if (popularNumbers.size() < POPULAR_NUMBER_LIST_SIZE) {
-                    popularNumbers.add(newNumber);
+                    // Add new number to our list, if it has room
+                    store.addPopularNumber(index, newNumber);
 
+                    return newNumber;
                 }
 
-                return newNumber;
             }
-
         }
 
     }
@@ -260,17 +279,25 @@ public class UserDevice {
     /**
      * Record the fact that someone is calling us, so we know we're busy and can't make a call
      * of our own.
-     * @param proposedDeviceId
+     * @param callingDeviceId
      * @param duration
+     * @return false if we were already busy
      */
-    public void recordBeingCalled(long callingDeviceId, int duration) {
+    public boolean recordBeingCalled(long callingDeviceId, int duration) {
+
+        synchronized (store.getLock(index)) {
+
+            if (!areBusyUntil(System.currentTimeMillis() + (1000 * duration))) {
+                return false;
+            }
 
-        callEndTimeMs = new Date(System.currentTimeMillis() + (1000 * duration));
+            // Add number to our popular number list if it has space. This means that the first
+            // people we tend to call are they first people who called us...
+            if (deviceId != callingDeviceId) {
+                store.addPopularNumber(index, callingDeviceId);
+            }
 
-        // Add number to our popular number list if it has space. This means that the first
-        // people we tend to call are they first people who called us...
-        if (popularNumbers.size() < POPULAR_NUMBER_LIST_SIZE && deviceId != callingDeviceId) {
-            popularNumbers.add(callingDeviceId);
+            return true;
         }
     }
 
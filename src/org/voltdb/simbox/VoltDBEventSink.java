@@ -0,0 +1,132 @@
+package org.voltdb.simbox;
+
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.voltdb.VoltType;
+import org.voltdb.client.Client;
+import org.voltdb.client.ClientImpl;
+import org.voltdb.client.ClientResponse;
+import org.voltdb.client.ClientResponseWithPartitionKey;
+import org.voltdb.client.ProcCallException;
+
+/**
+ * Sends events to VoltDB, recording how long each one took.
+ *
+ */
+public class VoltDBEventSink implements EventSink {
+
+    /**
+     * DIRECTED procedures, which have to be run in every partition. These
+     * only turn up when a journal is replayed.
+     */
+    private static final Set<String> ALL_PARTITION_PROCEDURES = new HashSet<String>(
+            Arrays.asList("NoteSuspiciousCohort"));
+
+    /**
+     * Our handle to VoltDB
+     */
+    private final Client voltClient;
+
+    /**
+     * Where we record latency
+     */
+    private final LatencyTracker latencyTracker;
+
+    /**
+     * @param voltClient
+     * @param latencyTracker
+     */
+    public VoltDBEventSink(Client voltClient, LatencyTracker latencyTracker) {
+        super();
+        this.voltClient = voltClient;
+        this.latencyTracker = latencyTracker;
+    }
+
+    @Override
+    public void send(long intendedStartNanos, String procName, Object... params) throws IOException {
+
+        if (ALL_PARTITION_PROCEDURES.contains(procName)) {
+            try {
+                voltClient.callAllPartitionProcedure(responses -> complainOnErrors(procName, responses), procName,
+                        params);
+            } catch (ProcCallException e) {
+                throw new IOException(e);
+            }
+        } else {
+
+            LatencyCallback callback = latencyTracker.getCallback(procName, intendedStartNanos);
+            boolean queued = false;
+
+            try {
+                queued = voltClient.callProcedure(callback, procName, params);
+            } finally {
+                if (!queued) {
+                    callback.cancel();
+                }
+            }
+        }
+    }
+
+    /**
+     * @param procName
+     * @param responses one for each partition
+     */
+    private static void complainOnErrors(String procName, ClientResponseWithPartitionKey[] responses) {
+
+        for (int i = 0; i < responses.length; i++) {
+            if (responses[i].response.getStatus() != ClientResponse.SUCCESS) {
+                SimboxDataGenerator.msg(procName + ": " + responses[i].response.getStatusString());
+            }
+        }
+    }
+
+    @Override
+    public long getPartition(long deviceId) {
+
+        // The 10.x Client interface doesn't expose the hashinator
+        if (voltClient instanceof ClientImpl) {
+            return ((ClientImpl) voltClient).getPartitionForParameter(VoltType.BIGINT.getValue(), deviceId);
+        }
+
+        return -1;
+    }
+
+    @Override
+    public void drain() throws IOException, InterruptedException {
+        voltClient.drain();
+    }
+
+    /**
+     * @return our VoltDB client
+     */
+    public Client getVoltClient() {
+        return voltClient;
+    }
+
+}
@@ -0,0 +1,131 @@
+package org.voltdb.simbox;
+
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.AfterClass;
+import org.junit.Test;
+
+public class CallGraphTest {
+
+    private static final ForkJoinPool POOL = new ForkJoinPool(4);
+
+    @AfterClass
+    public static void shutdownPool() {
+        POOL.shutdown();
+    }
+
+    @Test
+    public void testBuild() {
+
+        CallGraph.Builder builder = new CallGraph.Builder();
+        builder.addCalls(0, 1, 2);
+        builder.addCalls(1, 0, 3);
+        builder.addCalls(2, 0, 1);
+        builder.addCalls(0, 0, 5);
+        builder.addCalls(5, 1, 1);
+        builder.addCalls(0, 2, 4);
+
+        // Calls to yourself are ignored
+        assertEquals(5, builder.size());
+
+        CallGraph graph = builder.build();
+
+        assertEquals(6, graph.getNodeCount());
+        assertEquals(6, graph.getEntryCount());
+        assertEquals(0, builder.size());
+
+        // Neighbours are sorted, and calls either way are added together
+        assertArrayEquals(new int[] { 1, 2 }, graph.getNeighbours(0));
+        assertArrayEquals(new int[] { 5, 5 }, graph.getWeights(0));
+        assertArrayEquals(new int[] { 0, 5 }, graph.getNeighbours(1));
+        assertArrayEquals(new int[] { 5, 1 }, graph.getWeights(1));
+        assertArrayEquals(new int[] { 0 }, graph.getNeighbours(2));
+        assertArrayEquals(new int[] { 5 }, graph.getWeights(2));
+        assertArrayEquals(new int[0], graph.getNeighbours(3));
+        assertArrayEquals(new int[0], graph.getNeighbours(4));
+        assertArrayEquals(new int[] { 1 }, graph.getNeighbours(5));
+    }
+
+    @Test
+    public void testFindCliqueNextToHub() {
+
+        final int nodeCount = 2000;
+        final int cliqueSize = 8;
+        final int hub = nodeCount - 1;
+
+        CallGraph.Builder builder = new CallGraph.Builder();
+
+        // A simbox calling itself...
+        for (int i = 0; i < cliqueSize; i++) {
+            for (int j = i + 1; j < cliqueSize; j++) {
+                builder.addCalls(i, j, 3);
+            }
+        }
+
+        // ...ordinary people calling a few random numbers...
+        SplittableRandom r = new SplittableRandom(0);
+
+        for (int i = cliqueSize; i < hub; i++) {
+            for (int j = 0; j < 3; j++) {
+                builder.addCalls(i, cliqueSize + r.nextInt(hub - cliqueSize), 1);
+            }
+        }
+
+        // ...and a call centre that everyone calls
+        for (int i = 0; i < hub; i++) {
+            builder.addCalls(i, hub, 1);
+        }
+
+        CallGraph graph = builder.build();
+        int[] labels = graph.findCommunities(POOL, 20, 100);
+
+        int[] communitySize = new int[labels.length];
+
+        for (int i = 0; i < labels.length; i++) {
+            communitySize[labels[i]]++;
+        }
+
+        final int cliqueLabel = labels[0];
+
+        for (int i = 0; i < cliqueSize; i++) {
+            assertEquals("Clique member " + i, cliqueLabel, labels[i]);
+        }
+
+        assertEquals(cliqueSize, communitySize[cliqueLabel]);
+        assertNotEquals(cliqueLabel, labels[hub]);
+        assertEquals(1, communitySize[labels[hub]]);
+
+        // Every pair in the clique calls every other, so it's completely dense
+        long[] internalEntries = graph.getInternalEntries(labels, communitySize);
+        assertEquals(cliqueSize * (cliqueSize - 1), internalEntries[cliqueLabel]);
+    }
+
+}
@@ -0,0 +1,187 @@
+package org.voltdb.simbox;
+
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.voltdb.types.TimestampType;
+
+public class EventJournalTest {
+
+    private static final long ONE_HOUR_MS = 3600000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Keeps every call it's sent
+     */
+    private static class RecordingEventSink implements EventSink {
+
+        final ArrayList<String> procNames = new ArrayList<String>();
+        final ArrayList<Object[]> params = new ArrayList<Object[]>();
+
+        @Override
+        public void send(long intendedStartNanos, String procName, Object... params) {
+            this.procNames.add(procName);
+            this.params.add(params);
+        }
+
+        @Override
+        public long getPartition(long deviceId) {
+            return -1;
+        }
+
+        @Override
+        public void drain() {
+        }
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+
+        File file = folder.newFile("roundtrip.sbj");
+        TimestampType eventTime = new TimestampType((System.currentTimeMillis() - ONE_HOUR_MS) * 1000);
+        Date createDate = new Date(System.currentTimeMillis() - (24 * ONE_HOUR_MS));
+
+        char[] bigChars = new char[200 * 1024];
+        Arrays.fill(bigChars, 'x');
+        String bigString = new String(bigChars);
+
+        EventJournal journal = new EventJournal(file, 42);
+        journal.record(System.nanoTime(), "ReportCellChange", 1L, 2, "three", eventTime, createDate,
+                new long[] { 4, -5 }, new String[] { "six" }, null);
+        journal.record(System.nanoTime(), "AddLog", bigString);
+        journal.close();
+
+        RecordingEventSink sink = replay(file, false);
+
+        assertEquals(Arrays.asList("ReportCellChange", "AddLog"), sink.procNames);
+
+        Object[] params = sink.params.get(0);
+        assertEquals(8, params.length);
+        assertEquals(1L, params[0]);
+        assertEquals(2, params[1]);
+        assertEquals("three", params[2]);
+        assertEquals(eventTime, params[3]);
+        assertEquals(createDate, params[4]);
+        assertArrayEquals(new long[] { 4, -5 }, (long[]) params[5]);
+        assertArrayEquals(new String[] { "six" }, (String[]) params[6]);
+        assertNull(params[7]);
+
+        assertEquals(bigString, sink.params.get(1)[0]);
+    }
+
+    @Test
+    public void testRebaseTimestamps() throws Exception {
+
+        File file = folder.newFile("rebase.sbj");
+        TimestampType eventTime = new TimestampType((System.currentTimeMillis() - ONE_HOUR_MS) * 1000);
+        Date createDate = new Date(System.currentTimeMillis() - (24 * ONE_HOUR_MS));
+
+        EventJournal journal = new EventJournal(file, 42);
+        journal.record(System.nanoTime(), "ReportCellChange", eventTime, createDate);
+        journal.close();
+
+        final long recordedStartMs = getRecordedStartMs(file);
+
+        // Make sure a replay starts at a different time to the recording
+        Thread.sleep(50);
+
+        final long beforeReplayMs = System.currentTimeMillis();
+        RecordingEventSink sink = replay(file, true);
+        final long afterReplayMs = System.currentTimeMillis();
+
+        Object[] params = sink.params.get(0);
+
+        // Each timestamp is the same distance from the replay's start as it was
+        // from the recording's
+        long replayStartMs = ((TimestampType) params[0]).getTime() / 1000 + (recordedStartMs
+                - eventTime.getTime() / 1000);
+        assertTrue(replayStartMs >= beforeReplayMs && replayStartMs <= afterReplayMs);
+
+        assertEquals(createDate.getTime() - recordedStartMs, ((Date) params[1]).getTime() - replayStartMs);
+    }
+
+    @Test
+    public void testTooManyParams() throws Exception {
+
+        EventJournal journal = new EventJournal(folder.newFile("toomany.sbj"), 42);
+
+        try {
+            journal.record(System.nanoTime(), "AddLog", new Object[256]);
+            fail("256 parameters can't be journalled");
+        } catch (IOException e) {
+            // expected
+        }
+
+        journal.record(System.nanoTime(), "AddLog", new Object[255]);
+        journal.close();
+
+        assertEquals(1, journal.getCallCount());
+    }
+
+    /**
+     * @param file
+     * @param rebaseTimestamps
+     * @return a sink containing every call in 'file'
+     * @throws Exception
+     */
+    private static RecordingEventSink replay(File file, boolean rebaseTimestamps) throws Exception {
+
+        RecordingEventSink sink = new RecordingEventSink();
+        new EventJournalReplayer(file, sink, new StatsPublisher(null, 0), 0, rebaseTimestamps, new LatencyTracker())
+                .run();
+        return sink;
+    }
+
+    /**
+     * @param file
+     * @return the start time in 'file's header
+     * @throws IOException
+     */
+    private static long getRecordedStartMs(File file) throws IOException {
+
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            in.skipBytes(16);
+            return in.readLong();
+        }
+    }
+
+}
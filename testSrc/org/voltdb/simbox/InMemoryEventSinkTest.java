@@ -0,0 +1,80 @@
+package org.voltdb.simbox;
+
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class InMemoryEventSinkTest {
+
+    @Test
+    public void testLatencyRecordedWhenEventsFinish() throws Exception {
+
+        LatencyTracker tracker = new LatencyTracker();
+        InMemoryEventSink sink = new InMemoryEventSink(4, 1000, 100, tracker);
+
+        for (long i = 0; i < 20; i++) {
+            sink.send(System.nanoTime(), "ReportCellChange", i, 1L);
+        }
+
+        assertTrue(tracker.getInFlight().get("ReportCellChange").get() > 0);
+
+        // Nothing else is sent, and we don't drain, but the events still finish
+        final long giveUpMs = System.currentTimeMillis() + 10000;
+
+        while (tracker.getInFlight().get("ReportCellChange").get() > 0 && System.currentTimeMillis() < giveUpMs) {
+            Thread.sleep(10);
+        }
+
+        assertEquals(0, tracker.getInFlight().get("ReportCellChange").get());
+
+        tracker.collect();
+        LatencyHistogram interval = tracker.getLastIntervalHistograms().get("ReportCellChange");
+        assertEquals(20, interval.getTotalCount());
+    }
+
+    @Test
+    public void testBackpressureAndDrain() throws Exception {
+
+        LatencyTracker tracker = new LatencyTracker();
+        InMemoryEventSink sink = new InMemoryEventSink(2, 1000, 5, tracker);
+
+        // Every event ties up every partition, so they finish one at a time
+        for (int i = 0; i < 10; i++) {
+            sink.send(System.nanoTime(), "NoteSuspiciousCohort", "x");
+        }
+
+        assertTrue(sink.getBackpressureCount() > 0);
+
+        sink.drain();
+
+        assertEquals(0, tracker.getInFlight().get("NoteSuspiciousCohort").get());
+
+        tracker.collect();
+        assertEquals(10, tracker.getLastIntervalHistograms().get("NoteSuspiciousCohort").getTotalCount());
+    }
+
+}
@@ -0,0 +1,82 @@
+package org.voltdb.simbox;
+
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class LatencyTrackerTest {
+
+    @Test
+    public void testCollectAndReportAndReset() {
+
+        LatencyTracker tracker = new LatencyTracker();
+        StatsPublisher stats = new StatsPublisher(null, 0);
+
+        tracker.getHistogram("ReportCellChange").recordMicros(100);
+        tracker.getHistogram("ReportCellChange").recordMicros(300);
+        tracker.collect();
+
+        LatencyHistogram interval = tracker.getLastIntervalHistograms().get("ReportCellChange");
+        assertEquals(2, interval.getTotalCount());
+        assertEquals(400, interval.getSumMicros());
+        assertEquals(300, interval.getMaxMicros());
+        assertEquals(2, tracker.getCallCounts().get("ReportCellChange").get());
+        assertEquals(400, tracker.getLatencySums().get("ReportCellChange").get());
+
+        // reportAndReset collects anything that's left...
+        tracker.getHistogram("ReportCellChange").recordMicros(500);
+        tracker.reportAndReset(stats);
+
+        interval = tracker.getLastIntervalHistograms().get("ReportCellChange");
+        assertEquals(1, interval.getTotalCount());
+        assertEquals(500, interval.getSumMicros());
+        assertEquals(3, tracker.getCallCounts().get("ReportCellChange").get());
+        assertEquals(900, tracker.getLatencySums().get("ReportCellChange").get());
+
+        // ...and the next interval starts empty, but totals don't
+        tracker.collect();
+
+        interval = tracker.getLastIntervalHistograms().get("ReportCellChange");
+        assertEquals(0, interval.getTotalCount());
+        assertEquals(0, interval.getSumMicros());
+        assertEquals(3, tracker.getCallCounts().get("ReportCellChange").get());
+        assertEquals(900, tracker.getLatencySums().get("ReportCellChange").get());
+    }
+
+    @Test
+    public void testCancelledCallIsNotInFlight() {
+
+        LatencyTracker tracker = new LatencyTracker();
+
+        LatencyCallback first = tracker.getCallback("ReportCellChange", System.nanoTime());
+        tracker.getCallback("ReportCellChange", System.nanoTime());
+        assertEquals(2, tracker.getInFlight().get("ReportCellChange").get());
+
+        first.cancel();
+        assertEquals(1, tracker.getInFlight().get("ReportCellChange").get());
+    }
+
+}
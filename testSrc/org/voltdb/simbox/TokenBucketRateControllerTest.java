@@ -0,0 +1,75 @@
+package org.voltdb.simbox;
+
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class TokenBucketRateControllerTest {
+
+    /**
+     * 1000 permits a second, so one every millisecond
+     */
+    private static final int PERMITS_PER_SECOND = 1000;
+
+    @Test
+    public void testNoBurstAfterIdleStart() throws InterruptedException {
+
+        TokenBucketRateController rc = new TokenBucketRateController(PERMITS_PER_SECOND, 1);
+
+        // Stand in for warm up. If the schedule started now we'd owe ~200
+        // permits by the time we first acquire.
+        Thread.sleep(200);
+
+        assertEquals(0, rc.getOfferedPermits());
+
+        final long startNanos = System.nanoTime();
+
+        for (int i = 0; i < 50; i++) {
+            rc.acquire(1);
+        }
+
+        final long elapsedMs = (System.nanoTime() - startNanos) / 1000000;
+
+        // 50 permits at 1 per ms, less the one we may send ahead of schedule
+        assertTrue("50 permits took " + elapsedMs + "ms", elapsedMs >= 45);
+        assertEquals(50, rc.getAchievedPermits());
+    }
+
+    @Test
+    public void testIntendedTimesFollowSchedule() throws InterruptedException {
+
+        TokenBucketRateController rc = new TokenBucketRateController(PERMITS_PER_SECOND, 1);
+
+        final long first = rc.acquire(1);
+        final long second = rc.acquire(1);
+        final long third = rc.acquire(1);
+
+        assertEquals(1000000, second - first, 1);
+        assertEquals(1000000, third - second, 1);
+    }
+
+}
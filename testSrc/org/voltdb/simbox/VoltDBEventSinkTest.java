@@ -0,0 +1,87 @@
+package org.voltdb.simbox;
+
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+
+import org.junit.Test;
+import org.voltdb.client.Client;
+
+public class VoltDBEventSinkTest {
+
+    /**
+     * @param result what callProcedure returns, or throws if it's an exception
+     * @return a Client whose callProcedure does nothing but return 'result'
+     */
+    private static Client getClient(Object result) {
+
+        return (Client) Proxy.newProxyInstance(Client.class.getClassLoader(), new Class<?>[] { Client.class },
+                (proxy, method, args) -> {
+                    if (result instanceof Exception) {
+                        throw (Exception) result;
+                    }
+                    return result;
+                });
+    }
+
+    @Test
+    public void testQueuedCallIsInFlight() throws Exception {
+
+        LatencyTracker tracker = new LatencyTracker();
+        new VoltDBEventSink(getClient(true), tracker).send(System.nanoTime(), "ReportCellChange", 1L);
+
+        assertEquals(1, tracker.getInFlight().get("ReportCellChange").get());
+    }
+
+    @Test
+    public void testRejectedCallIsNotInFlight() throws Exception {
+
+        LatencyTracker tracker = new LatencyTracker();
+        new VoltDBEventSink(getClient(false), tracker).send(System.nanoTime(), "ReportCellChange", 1L);
+
+        assertEquals(0, tracker.getInFlight().get("ReportCellChange").get());
+    }
+
+    @Test
+    public void testFailedCallIsNotInFlight() throws Exception {
+
+        LatencyTracker tracker = new LatencyTracker();
+        // As NoConnectionsException, which we can't create, would
+        VoltDBEventSink sink = new VoltDBEventSink(getClient(new IOException("No connections")), tracker);
+
+        try {
+            sink.send(System.nanoTime(), "ReportCellChange", 1L);
+            fail("send should have thrown");
+        } catch (IOException e) {
+            // expected
+        }
+
+        assertEquals(0, tracker.getInFlight().get("ReportCellChange").get());
+    }
+
+}